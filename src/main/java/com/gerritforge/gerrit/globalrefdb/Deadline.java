@@ -0,0 +1,154 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import java.time.Duration;
+
+/**
+ * Point in time by which an operation on the global refdb must be completed, so that a request
+ * about to time out gives up early instead of holding threads and locks.
+ *
+ * <p>The deadline of the current request can be carried to the global refdb operations executed on
+ * its behalf by entering its {@link Scope}:
+ *
+ * <pre>{@code
+ * try (Deadline.Scope scope = Deadline.after(timeout).enter()) {
+ *   // ref updates of the request
+ * }
+ * }</pre>
+ */
+public final class Deadline {
+  private static final Deadline NONE = new Deadline(0L, false);
+  private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+  /** Scope of a deadline, restoring the previous one when closed. */
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private final long deadlineNanos;
+  private final boolean bounded;
+
+  private Deadline(long deadlineNanos, boolean bounded) {
+    this.deadlineNanos = deadlineNanos;
+    this.bounded = bounded;
+  }
+
+  /**
+   * Returns the deadline of the operations that can take as long as the global refdb needs.
+   *
+   * @return the unbounded deadline
+   */
+  public static Deadline none() {
+    return NONE;
+  }
+
+  /**
+   * Returns the deadline expiring after the given timeout.
+   *
+   * @param timeout time left to complete the operation
+   * @return the deadline
+   */
+  public static Deadline after(Duration timeout) {
+    long timeoutNanos;
+    try {
+      timeoutNanos = timeout.toNanos();
+    } catch (ArithmeticException e) {
+      return NONE;
+    }
+    return new Deadline(System.nanoTime() + Math.max(0L, timeoutNanos), true);
+  }
+
+  /**
+   * Returns the deadline of the scope entered by the current thread.
+   *
+   * @return the current deadline, or {@link #none()} when no scope has been entered
+   */
+  public static Deadline current() {
+    Deadline current = CURRENT.get();
+    return current != null ? current : NONE;
+  }
+
+  /**
+   * Makes this deadline the current one of the calling thread, unless the current one expires
+   * earlier.
+   *
+   * @return the scope to be closed to restore the previous deadline
+   */
+  public Scope enter() {
+    Deadline previous = CURRENT.get();
+    CURRENT.set(earliest(previous != null ? previous : NONE));
+    return () -> {
+      if (previous != null) {
+        CURRENT.set(previous);
+      } else {
+        CURRENT.remove();
+      }
+    };
+  }
+
+  /**
+   * Returns the earliest between this and another deadline.
+   *
+   * @param other the other deadline
+   * @return the deadline expiring first
+   */
+  public Deadline earliest(Deadline other) {
+    if (!other.bounded) {
+      return this;
+    }
+    if (!bounded) {
+      return other;
+    }
+    return other.deadlineNanos - deadlineNanos < 0 ? other : this;
+  }
+
+  /**
+   * Whether the deadline expires at some point in time.
+   *
+   * @return true when bounded, false otherwise
+   */
+  public boolean isBounded() {
+    return bounded;
+  }
+
+  /**
+   * Whether the deadline has already expired.
+   *
+   * @return true when expired, false otherwise
+   */
+  public boolean isExpired() {
+    return bounded && deadlineNanos - System.nanoTime() <= 0;
+  }
+
+  /**
+   * Time left before the deadline expires.
+   *
+   * @return the time left, {@link Duration#ZERO} when expired or the longest representable duration
+   *     when not bounded
+   */
+  public Duration remaining() {
+    if (!bounded) {
+      return Duration.ofNanos(Long.MAX_VALUE);
+    }
+    return Duration.ofNanos(Math.max(0L, deadlineNanos - System.nanoTime()));
+  }
+
+  @Override
+  public String toString() {
+    return bounded ? "Deadline in " + remaining() : "No deadline";
+  }
+}
@@ -14,7 +14,12 @@
 
 package com.gerritforge.gerrit.globalrefdb;
 
+import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Project;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
@@ -32,6 +37,22 @@ public interface GlobalRefDatabase {
    */
   boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException;
 
+  /**
+   * Same as {@link #isUpToDate(Project.NameKey, Ref)}, giving up when the deadline expires.
+   *
+   * <p>The default implementation ignores the deadline.
+   *
+   * @param project project name of the ref
+   * @param ref to be checked against global ref-db
+   * @param deadline by which the check must be completed
+   * @return true if it is; false otherwise
+   * @throws GlobalRefDbLockException if the check could not be completed before the deadline
+   */
+  default boolean isUpToDate(Project.NameKey project, Ref ref, Deadline deadline)
+      throws GlobalRefDbLockException {
+    return isUpToDate(project, ref);
+  }
+
   /**
    * Compare a reference, and put if it is up-to-date with the current.
    *
@@ -56,6 +77,25 @@ public interface GlobalRefDatabase {
   boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError;
 
+  /**
+   * Same as {@link #compareAndPut(Project.NameKey, Ref, ObjectId)}, giving up when the deadline
+   * expires.
+   *
+   * <p>The default implementation ignores the deadline.
+   *
+   * @param project project name of the ref
+   * @param currRef old value to compare to
+   * @param newRefValue new reference to store.
+   * @param deadline by which the operation must be completed
+   * @return true if the put was successful; false otherwise.
+   * @throws GlobalRefDbSystemError the reference cannot be put due to a system error.
+   */
+  default boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, Deadline deadline)
+      throws GlobalRefDbSystemError {
+    return compareAndPut(project, currRef, newRefValue);
+  }
+
   /**
    * Compare a value of generic type T, and put if it is up-to-date with the current.
    *
@@ -75,6 +115,10 @@ public interface GlobalRefDatabase {
   /**
    * Lock a reference.
    *
+   * <p>Implementations should throw a {@link GlobalRefDbLockException} without a cause when the
+   * lock is held by someone else, and with the cause of the failure otherwise, so that the callers
+   * can tell the contention on the lock apart from the failures of the global refdb.
+   *
    * @param project project name
    * @param refName ref to lock
    * @return lock object
@@ -82,6 +126,64 @@ public interface GlobalRefDatabase {
    */
   AutoCloseable lockRef(Project.NameKey project, String refName) throws GlobalRefDbLockException;
 
+  /**
+   * Lock a reference, waiting at most for the given timeout while it is held by someone else.
+   *
+   * <p>The default implementation falls back to {@link #lockRef(Project.NameKey, String)}, which
+   * waits for as long as the implementation decides.
+   *
+   * @param project project name
+   * @param refName ref to lock
+   * @param timeout maximum time to wait for the lock
+   * @return lock object
+   * @throws GlobalRefDbLockException if the lock cannot be obtained within the timeout
+   */
+  default AutoCloseable tryLockRef(Project.NameKey project, String refName, Duration timeout)
+      throws GlobalRefDbLockException {
+    return lockRef(project, refName);
+  }
+
+  /**
+   * Lock a reference, giving up when the deadline expires.
+   *
+   * <p>The default implementation waits for the time left with {@link #tryLockRef(Project.NameKey,
+   * String, Duration)} when the deadline is bounded, or with {@link #lockRef(Project.NameKey,
+   * String)} otherwise.
+   *
+   * @param project project name
+   * @param refName ref to lock
+   * @param deadline by which the lock must be obtained
+   * @return lock object
+   * @throws GlobalRefDbLockException if the lock cannot be obtained before the deadline
+   */
+  default AutoCloseable lockRef(Project.NameKey project, String refName, Deadline deadline)
+      throws GlobalRefDbLockException {
+    if (deadline.isBounded()) {
+      return tryLockRef(project, refName, deadline.remaining());
+    }
+    return lockRef(project, refName);
+  }
+
+  /**
+   * Lock all the refs of a project at once, which is cheaper than locking them one by one when
+   * updating a large number of refs in a single batch.
+   *
+   * <p>While the project lock is held, {@link #lockRef(Project.NameKey, String)} must not grant the
+   * lock of any ref of the project to other callers, and the project lock must not be granted while
+   * any ref of the project is locked.
+   *
+   * <p>The default implementation does not support project locks and always returns {@link
+   * Optional#empty()}, so that callers fall back to locking the single refs.
+   *
+   * @param project project name
+   * @return the project lock, or empty if project locks are not supported
+   * @throws GlobalRefDbLockException if the lock cannot be obtained
+   */
+  default Optional<AutoCloseable> lockProject(Project.NameKey project)
+      throws GlobalRefDbLockException {
+    return Optional.empty();
+  }
+
   /**
    * Verify if the DB contains a value for the specific project and ref name
    *
@@ -99,6 +201,124 @@ public interface GlobalRefDatabase {
    */
   void remove(Project.NameKey project) throws GlobalRefDbSystemError;
 
+  /**
+   * Clean at most {@code maxRefs} refs of the project path from global-ref db. Allows projects with
+   * a very large number of refs to be removed incrementally, without holding the backend busy on a
+   * single huge operation.
+   *
+   * <p>The default implementation removes the whole project in one go.
+   *
+   * @param project project name
+   * @param maxRefs maximum number of refs to remove in this call
+   * @return true if the project has been completely removed; false if more refs are left
+   * @throws GlobalRefDbSystemError project cannot be removed due to a system error.
+   */
+  default boolean remove(Project.NameKey project, int maxRefs) throws GlobalRefDbSystemError {
+    remove(project);
+    return true;
+  }
+
+  /**
+   * Remove a reference from the global ref-db, if and only if it still matches the current value.
+   * The two references match under the same rules of {@link #compareAndPut(Project.NameKey, Ref,
+   * ObjectId)}.
+   *
+   * <p>This allows to purge the tombstones left by deleted refs, which are stored with a {@link
+   * ObjectId#zeroId()} value, without racing with a concurrent re-creation of the same ref.
+   *
+   * <p>The default implementation does not support the removal of single refs and always returns
+   * false.
+   *
+   * @param project project name of the ref
+   * @param currRef expected current value of the reference
+   * @return true if the reference has been removed; false otherwise.
+   * @throws GlobalRefDbSystemError the reference cannot be removed due to a system error.
+   */
+  default boolean compareAndRemove(Project.NameKey project, Ref currRef)
+      throws GlobalRefDbSystemError {
+    return false;
+  }
+
+  /**
+   * Lists the tombstones left by deleted refs in the global ref-db, i.e. the refs of any project
+   * stored with a {@link ObjectId#zeroId()} value, which have been deleted before a point in time.
+   *
+   * <p>This allows to purge with {@link #compareAndRemove(Project.NameKey, Ref)} the tombstones of
+   * the refs deleted by any node, including the ones deleted before the last restart, and requires
+   * the implementation to keep the time of the deletion of the refs.
+   *
+   * <p>The default implementation does not support listing the tombstones and always returns an
+   * empty list.
+   *
+   * @param deletedBeforeMillis time before which the refs have been deleted, in milliseconds since
+   *     the epoch
+   * @param maxTombstones maximum number of tombstones to return
+   * @return the project and name of the tombstones, at most {@code maxTombstones} of them
+   * @throws GlobalRefDbSystemError the tombstones cannot be listed due to a system error.
+   */
+  default List<BranchNameKey> listTombstones(long deletedBeforeMillis, int maxTombstones)
+      throws GlobalRefDbSystemError {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Atomically allocate a block of consecutive values of a counter, such as a sequence of IDs, so
+   * that the caller can hand them out locally without a round-trip per value.
+   *
+   * <p>The counter is stored as a {@link Long} holding the last value allocated, and a missing
+   * counter is considered to be 0: the first block allocated starts from 1.
+   *
+   * <p>The default implementation retries {@link #compareAndPut(Project.NameKey, String, Object,
+   * Object)} until it succeeds, implementations supporting atomic increments should override it to
+   * allocate the block in a single operation.
+   *
+   * @param project project name of the counter
+   * @param refName name of the counter
+   * @param blockSize number of values to allocate, greater than 0
+   * @return the first value of the block, the last one being {@code first + blockSize - 1}
+   * @throws GlobalRefDbSystemError the block cannot be allocated due to a system error.
+   */
+  default long allocateBlock(Project.NameKey project, String refName, long blockSize)
+      throws GlobalRefDbSystemError {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Invalid block size " + blockSize);
+    }
+
+    Long failedValue = null;
+    boolean failed = false;
+    while (true) {
+      Long currValue = get(project, refName, Long.class).orElse(null);
+      if (failed && Objects.equals(currValue, failedValue)) {
+        // Not changed by anybody else, retrying would never succeed
+        throw new GlobalRefDbSystemError(
+            String.format(
+                "Unable to allocate %d values of %s on project %s", blockSize, refName, project),
+            null);
+      }
+
+      long lastValue = currValue != null ? currValue : 0L;
+      if (compareAndPut(project, refName, currValue, Math.addExact(lastValue, blockSize))) {
+        return lastValue + 1;
+      }
+      failed = true;
+      failedValue = currValue;
+    }
+  }
+
+  /**
+   * Atomically increment a counter, same as {@link #allocateBlock(Project.NameKey, String, long)}
+   * with a block of a single value.
+   *
+   * @param project project name of the counter
+   * @param refName name of the counter
+   * @return the incremented value of the counter
+   * @throws GlobalRefDbSystemError the counter cannot be incremented due to a system error.
+   */
+  default long incrementAndGet(Project.NameKey project, String refName)
+      throws GlobalRefDbSystemError {
+    return allocateBlock(project, refName, 1);
+  }
+
   /**
    * Return value for a specific project and ref name
    *
@@ -0,0 +1,66 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+/**
+ * Binary encoding of the values of a type stored with {@link
+ * GlobalRefDatabase#compareAndPut(com.google.gerrit.entities.Project.NameKey, String, Object,
+ * Object)} and read with {@link GlobalRefDatabase#get(com.google.gerrit.entities.Project.NameKey,
+ * String, Class)}, shared by the implementations of the global refdb and the shared ref log.
+ *
+ * <p>The codecs of the common types are provided by {@link ValueCodecs}, and the codecs of other
+ * types can be plugged in as a {@link java.util.ServiceLoader} service from a jar installed in the
+ * {@code lib/} directory of the site, or registered with {@link ValueCodecs#register(ValueCodec)}.
+ *
+ * @param <T> type of the values
+ */
+public interface ValueCodec<T> {
+
+  /**
+   * Type of the values encoded, including its subtypes.
+   *
+   * @return the type of the values
+   */
+  Class<T> type();
+
+  /**
+   * Encodes a value.
+   *
+   * @param value the value to encode, not null
+   * @return the encoded value
+   */
+  byte[] encode(T value);
+
+  /**
+   * Decodes a value.
+   *
+   * @param bytes the encoded value
+   * @return the decoded value
+   * @throws IllegalArgumentException when the bytes are not a valid encoding of a value
+   */
+  T decode(byte[] bytes);
+
+  /**
+   * Formats a value as text, for example for logging it.
+   *
+   * <p>The default implementation uses {@link Object#toString()}.
+   *
+   * @param value the value to format, not null
+   * @return the textual representation of the value
+   */
+  default String format(T value) {
+    return value.toString();
+  }
+}
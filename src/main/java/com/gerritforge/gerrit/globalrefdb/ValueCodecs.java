@@ -0,0 +1,303 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * {@link ValueCodec} implementations of the common types of values stored in the global refdb, and
+ * lookup of the codec of a type among them and the ones plugged in.
+ *
+ * <p>Codecs are plugged in as {@link ServiceLoader} services, which are looked up with the class
+ * loader of this library and must therefore be packaged in a jar installed in the {@code lib/}
+ * directory of the site, or registered with {@link #register(ValueCodec)}, for example by a plugin
+ * when started, and unregistered when it is stopped.
+ */
+public final class ValueCodecs {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  /** Encodes a {@link Long} as its 8 bytes, most significant first. */
+  public static final ValueCodec<Long> LONG =
+      new ValueCodec<>() {
+        @Override
+        public Class<Long> type() {
+          return Long.class;
+        }
+
+        @Override
+        public byte[] encode(Long value) {
+          return ByteBuffer.allocate(Long.BYTES).putLong(value).array();
+        }
+
+        @Override
+        public Long decode(byte[] bytes) {
+          checkLength(bytes, Long.BYTES);
+          return ByteBuffer.wrap(bytes).getLong();
+        }
+      };
+
+  /** Encodes a {@link String} as UTF-8. */
+  public static final ValueCodec<String> STRING =
+      new ValueCodec<>() {
+        @Override
+        public Class<String> type() {
+          return String.class;
+        }
+
+        @Override
+        public byte[] encode(String value) {
+          return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+          return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String format(String value) {
+          return value;
+        }
+      };
+
+  /**
+   * Encodes an {@link ObjectId} as its raw bytes, rather than as its 40 hexadecimal characters, and
+   * formats it as its name.
+   */
+  public static final ValueCodec<AnyObjectId> OBJECT_ID =
+      new ValueCodec<>() {
+        @Override
+        public Class<AnyObjectId> type() {
+          return AnyObjectId.class;
+        }
+
+        @Override
+        public byte[] encode(AnyObjectId value) {
+          byte[] bytes = new byte[Constants.OBJECT_ID_LENGTH];
+          value.copyRawTo(bytes, 0);
+          return bytes;
+        }
+
+        @Override
+        public AnyObjectId decode(byte[] bytes) {
+          checkLength(bytes, Constants.OBJECT_ID_LENGTH);
+          return ObjectId.fromRaw(bytes);
+        }
+
+        @Override
+        public String format(AnyObjectId value) {
+          return value.name();
+        }
+      };
+
+  private static final byte UNCOMPRESSED = 0;
+  private static final byte COMPRESSED = 1;
+
+  private static final ImmutableList<ValueCodec<?>> LOADED_CODECS = loadCodecs();
+  private static final List<ValueCodec<?>> REGISTERED_CODECS = new CopyOnWriteArrayList<>();
+
+  // Replaced whenever the registered codecs change. A ClassValue does not keep the types, nor
+  // their class loaders, reachable.
+  private static volatile ClassValue<Optional<ValueCodec<?>>> codecsByType = newCodecsByType();
+
+  private ValueCodecs() {}
+
+  /**
+   * Returns the codec of a type, which is the first of the common, loaded and registered codecs
+   * encoding the type or one of its supertypes.
+   *
+   * @param type the type of the values
+   * @param <T> type of the values
+   * @return the codec of the type, or empty when there is none
+   */
+  @SuppressWarnings("unchecked")
+  public static <T> Optional<ValueCodec<? super T>> forType(Class<T> type) {
+    return codecsByType.get(type).map(codec -> (ValueCodec<? super T>) codec);
+  }
+
+  /**
+   * Registers a codec, which is looked up after the common codecs and the ones loaded as {@link
+   * ServiceLoader} services.
+   *
+   * @param codec the codec to register
+   * @return the handle removing the codec, to be called before its class loader is discarded
+   */
+  public static RegistrationHandle register(ValueCodec<?> codec) {
+    REGISTERED_CODECS.add(codec);
+    codecsByType = newCodecsByType();
+    return () -> {
+      REGISTERED_CODECS.remove(codec);
+      codecsByType = newCodecsByType();
+    };
+  }
+
+  /**
+   * Formats a value as text with the codec of its type, falling back to {@link Object#toString()}
+   * when it has no codec.
+   *
+   * @param value the value to format
+   * @return the textual representation of the value, or {@code "<null>"} when null
+   */
+  @SuppressWarnings("unchecked")
+  public static String format(Object value) {
+    if (value == null) {
+      return "<null>";
+    }
+    return forType((Class<Object>) value.getClass())
+        .map(codec -> codec.format(value))
+        .orElseGet(value::toString);
+  }
+
+  /**
+   * Returns a codec compressing the values encoded by another one when larger than a threshold, so
+   * that large values take less space in the global refdb. The encoded values start with a byte
+   * telling whether they are compressed.
+   *
+   * @param codec the codec of the values
+   * @param thresholdBytes size of the encoded values from which they are compressed
+   * @param <T> type of the values
+   * @return the compressing codec
+   */
+  public static <T> ValueCodec<T> compressing(ValueCodec<T> codec, int thresholdBytes) {
+    return new ValueCodec<>() {
+      @Override
+      public Class<T> type() {
+        return codec.type();
+      }
+
+      @Override
+      public byte[] encode(T value) {
+        byte[] bytes = codec.encode(value);
+        return bytes.length >= thresholdBytes ? deflate(bytes) : withHeader(UNCOMPRESSED, bytes);
+      }
+
+      @Override
+      public T decode(byte[] bytes) {
+        if (bytes.length == 0) {
+          throw new IllegalArgumentException("Missing compression header");
+        }
+        byte[] payload = Arrays.copyOfRange(bytes, 1, bytes.length);
+        switch (bytes[0]) {
+          case UNCOMPRESSED:
+            return codec.decode(payload);
+          case COMPRESSED:
+            return codec.decode(inflate(payload));
+          default:
+            throw new IllegalArgumentException("Invalid compression header " + bytes[0]);
+        }
+      }
+
+      @Override
+      public String format(T value) {
+        return codec.format(value);
+      }
+    };
+  }
+
+  private static ClassValue<Optional<ValueCodec<?>>> newCodecsByType() {
+    return new ClassValue<>() {
+      @Override
+      protected Optional<ValueCodec<?>> computeValue(Class<?> type) {
+        return Stream.concat(LOADED_CODECS.stream(), REGISTERED_CODECS.stream())
+            .filter(codec -> codec.type().isAssignableFrom(type))
+            .findFirst();
+      }
+    };
+  }
+
+  private static ImmutableList<ValueCodec<?>> loadCodecs() {
+    ImmutableList.Builder<ValueCodec<?>> codecs = ImmutableList.builder();
+    codecs.add(LONG, STRING, OBJECT_ID);
+    try {
+      for (ValueCodec<?> codec :
+          ServiceLoader.load(ValueCodec.class, ValueCodecs.class.getClassLoader())) {
+        codecs.add(codec);
+      }
+    } catch (ServiceConfigurationError e) {
+      logger.atSevere().withCause(e).log("Unable to load the value codecs of the global refdb");
+    }
+    return codecs.build();
+  }
+
+  private static byte[] withHeader(byte header, byte[] bytes) {
+    byte[] encoded = new byte[bytes.length + 1];
+    encoded[0] = header;
+    System.arraycopy(bytes, 0, encoded, 1, bytes.length);
+    return encoded;
+  }
+
+  private static byte[] deflate(byte[] bytes) {
+    Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(bytes);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 1);
+      out.write(COMPRESSED);
+      byte[] buffer = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static byte[] inflate(byte[] bytes) {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(bytes);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 2);
+      byte[] buffer = new byte[4096];
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(buffer);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalArgumentException("Truncated compressed value");
+        }
+        out.write(buffer, 0, inflated);
+      }
+      return out.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Invalid compressed value", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static void checkLength(byte[] bytes, int expectedLength) {
+    if (bytes.length != expectedLength) {
+      throw new IllegalArgumentException(
+          String.format("Invalid length %d, expected %d", bytes.length, expectedLength));
+    }
+  }
+}
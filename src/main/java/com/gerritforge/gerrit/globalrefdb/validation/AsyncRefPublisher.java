@@ -0,0 +1,361 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Publishes to the global refdb, in background, the ref updates subject to the {@link
+ * EnforcePolicy#ASYNC} policy.
+ *
+ * <p>Updates are published in order for each ref, with at most one publication in flight per ref.
+ * Updates queued while a ref is being published are coalesced, so that only the latest value is
+ * published. Publications failing because of a system or lock error are retried. Publications
+ * rejected because the global refdb has diverged, for example because another site has updated the
+ * ref, are published again on top of the value read from the global refdb a bounded number of times
+ * before being dropped.
+ *
+ * <p>The updates not yet published at shutdown are persisted under the data directory of the
+ * libModule and published again at the next startup.
+ */
+@Singleton
+public class AsyncRefPublisher implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String PUBLISHER_QUEUE_NAME = "GlobalRefDbAsyncPublisher";
+  private static final String PENDING_PUBLICATIONS_DIR = "pending-async-publications";
+  private static final int MAX_PUBLISH_ATTEMPTS = 3;
+
+  private final SharedRefDatabaseWrapper sharedDb;
+  private final SharedRefDBMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final WorkQueue workQueue;
+  private final Path pendingPublicationsDir;
+  private final ConcurrentMap<RefKey, PendingRef> pendingRefs = new ConcurrentHashMap<>();
+  private volatile ScheduledExecutorService executor;
+
+  /**
+   * Constructs an {@code AsyncRefPublisher}.
+   *
+   * @param sharedDb global refdb the ref updates are published to
+   * @param metrics to track pending and coalesced updates and publication lag
+   * @param cfg the global refdb configuration, defining publisher threads and retry delay
+   * @param sitePaths to locate the directory where the updates pending at shutdown are persisted
+   * @param workQueue to create the queue executing the publications
+   */
+  @Inject
+  public AsyncRefPublisher(
+      SharedRefDatabaseWrapper sharedDb,
+      SharedRefDBMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      SitePaths sitePaths,
+      WorkQueue workQueue) {
+    this.sharedDb = sharedDb;
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.workQueue = workQueue;
+    this.pendingPublicationsDir =
+        sitePaths.data_dir.resolve(cfg.pluginName()).resolve(PENDING_PUBLICATIONS_DIR);
+  }
+
+  /** Publishes the updates left pending at the last shutdown. */
+  @Override
+  public void start() {
+    if (!Files.isDirectory(pendingPublicationsDir)) {
+      return;
+    }
+
+    try (DirectoryStream<Path> pendingFiles = Files.newDirectoryStream(pendingPublicationsDir)) {
+      for (Path pendingFile : pendingFiles) {
+        List<String> lines = Files.readAllLines(pendingFile, UTF_8);
+        Files.delete(pendingFile);
+        if (lines.size() != 4) {
+          logger.atWarning().log("Ignoring invalid pending publication %s", pendingFile);
+          continue;
+        }
+        String refName = lines.get(1);
+        publish(
+            Project.nameKey(lines.get(0)),
+            new ObjectIdRef.Unpeeled(
+                Ref.Storage.NETWORK, refName, ObjectId.fromString(lines.get(2))),
+            ObjectId.fromString(lines.get(3)));
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to resume pending publications from %s", pendingPublicationsDir);
+    }
+  }
+
+  /** Persists the updates not yet published, so that they are published at the next startup. */
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    for (RefKey key : pendingRefs.keySet()) {
+      PendingRef pending = pendingRefs.remove(key);
+      if (pending != null) {
+        metrics.decrementPendingAsyncPublications();
+        persistPending(key, pending);
+      }
+    }
+  }
+
+  /**
+   * Queues the publication of a ref update, which has already been applied to the local refdb.
+   *
+   * @param project project name of the ref
+   * @param currRef value of the ref before the update
+   * @param newRefValue value of the ref after the update
+   */
+  public void publish(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    RefKey key = new RefKey(project, currRef.getName());
+    long nowNanos = System.nanoTime();
+    boolean[] schedule = new boolean[1];
+    pendingRefs.compute(
+        key,
+        (k, pending) -> {
+          if (pending == null) {
+            pending = new PendingRef(currRef);
+            schedule[0] = true;
+            metrics.incrementPendingAsyncPublications();
+          }
+          if (pending.newValue != null) {
+            metrics.incrementCoalescedAsyncPublications();
+          } else {
+            pending.pendingSinceNanos = nowNanos;
+          }
+          pending.newValue = newRefValue;
+          return pending;
+        });
+
+    if (schedule[0]) {
+      submit(key, 0L);
+    }
+  }
+
+  private void submit(RefKey key, long delayMs) {
+    try {
+      executor().schedule(() -> publishPending(key), delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      PendingRef pending = pendingRefs.remove(key);
+      if (pending != null) {
+        metrics.decrementPendingAsyncPublications();
+        persistPending(key, pending);
+      }
+    }
+  }
+
+  private void persistPending(RefKey key, PendingRef pending) {
+    ObjectId newValue = pending.latestValue();
+    if (newValue == null) {
+      return;
+    }
+
+    String content =
+        String.join(
+            "\n",
+            key.project.get(),
+            key.refName,
+            pending.compareRef.getObjectId().getName(),
+            newValue.getName());
+    try {
+      Files.createDirectories(pendingPublicationsDir);
+      Files.write(
+          pendingPublicationsDir.resolve(
+              Hashing.murmur3_128().hashString(key.toString(), UTF_8).toString()),
+          content.getBytes(UTF_8));
+      logger.atWarning().log(
+          "Publication of %s to the global refdb interrupted by shutdown, it will be resumed at"
+              + " the next restart",
+          key);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to persist the publication of %s=%s to the global refdb, it will not be"
+              + " published",
+          key, newValue.getName());
+    }
+  }
+
+  private void publishPending(RefKey key) {
+    if (sharedDb.isCircuitOpen()) {
+      // Kept pending, together with the updates coalesced meanwhile, until the breaker is probed
+      submit(key, cfg.getAsyncPublishRetryDelayMs());
+      return;
+    }
+
+    PendingRef[] inFlight = new PendingRef[1];
+    pendingRefs.computeIfPresent(
+        key,
+        (k, p) -> {
+          inFlight[0] = p.takeSnapshot();
+          return p;
+        });
+    if (inFlight[0] == null) {
+      return;
+    }
+    ObjectId newValue = inFlight[0].newValue;
+    // The last value known to be in the global refdb, never a value not actually published
+    Ref[] globalRef = {inFlight[0].compareRef};
+
+    boolean retry = false;
+    try (AutoCloseable lock = sharedDb.lockRef(key.project, key.refName)) {
+      if (publishOnTopOfGlobalValue(key, globalRef, newValue)) {
+        metrics.recordAsyncPublicationLag(
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - inFlight[0].pendingSinceNanos));
+      } else {
+        metrics.incrementFailedAsyncPublications();
+        logger.atWarning().log(
+            "Unable to publish %s=%s to the global refdb after %d attempts, last seen at %s",
+            key, newValue.getName(), MAX_PUBLISH_ATTEMPTS, globalRef[0].getObjectId().getName());
+      }
+    } catch (GlobalRefDbLockException | GlobalRefDbSystemError e) {
+      retry = true;
+      logger.atWarning().withCause(e).log(
+          "Unable to publish %s to the global refdb, retrying in %d ms",
+          key, cfg.getAsyncPublishRetryDelayMs());
+    } catch (Exception e) {
+      logger.atSevere().withCause(e).log("Unable to release the global lock of %s", key);
+    }
+
+    boolean failed = retry;
+    boolean[] reschedule = new boolean[1];
+    pendingRefs.computeIfPresent(
+        key,
+        (k, p) -> {
+          p.inFlightValue = null;
+          if (failed) {
+            p.restore(inFlight[0]);
+          } else if (p.newValue == null) {
+            metrics.decrementPendingAsyncPublications();
+            return null;
+          } else {
+            // Updates coalesced while publishing are published on top of the global value
+            p.compareRef = globalRef[0];
+          }
+          reschedule[0] = true;
+          return p;
+        });
+
+    if (reschedule[0]) {
+      submit(key, failed ? cfg.getAsyncPublishRetryDelayMs() : 0L);
+    }
+  }
+
+  /**
+   * Publishes a value on top of the one in the global refdb, which is read again whenever it is not
+   * the expected one.
+   *
+   * @param globalRef the expected value in the global refdb, updated to the last value seen there
+   * @return true when the global refdb has the new value, false otherwise
+   */
+  private boolean publishOnTopOfGlobalValue(RefKey key, Ref[] globalRef, ObjectId newValue) {
+    for (int attempt = 1; ; attempt++) {
+      if (sharedDb.compareAndPut(key.project, globalRef[0], newValue)) {
+        globalRef[0] = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, key.refName, newValue);
+        return true;
+      }
+
+      ObjectId globalValue =
+          sharedDb.get(key.project, key.refName, ObjectId.class).orElse(ObjectId.zeroId());
+      globalRef[0] = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, key.refName, globalValue);
+      if (globalValue.equals(newValue)) {
+        return true;
+      }
+      if (attempt >= MAX_PUBLISH_ATTEMPTS) {
+        return false;
+      }
+      logger.atFine().log(
+          "Global refdb at %s=%s, publishing %s on top of it",
+          key, globalValue.getName(), newValue.getName());
+    }
+  }
+
+  private ScheduledExecutorService executor() {
+    ScheduledExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = workQueue.createQueue(cfg.getAsyncPublisherThreads(), PUBLISHER_QUEUE_NAME);
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Update of a ref waiting to be published. Instances are only accessed within the compute
+   * functions of the pending refs map, which serialise the access for each ref.
+   */
+  private static class PendingRef {
+    private Ref compareRef;
+    private ObjectId newValue;
+    private ObjectId inFlightValue;
+    private long pendingSinceNanos;
+
+    PendingRef(Ref compareRef) {
+      this.compareRef = compareRef;
+    }
+
+    /** Takes the update to be published, leaving room for the updates coalesced meanwhile. */
+    PendingRef takeSnapshot() {
+      PendingRef snapshot = new PendingRef(compareRef);
+      snapshot.newValue = newValue;
+      snapshot.pendingSinceNanos = pendingSinceNanos;
+      inFlightValue = newValue;
+      newValue = null;
+      return snapshot;
+    }
+
+    /** Returns the latest value of the ref, whether queued or being published. */
+    ObjectId latestValue() {
+      return newValue != null ? newValue : inFlightValue;
+    }
+
+    /** Restores an update which failed to be published, unless superseded by a newer one. */
+    void restore(PendingRef snapshot) {
+      if (newValue == null) {
+        newValue = snapshot.newValue;
+      }
+      pendingSinceNanos = Math.min(pendingSinceNanos, snapshot.pendingSinceNanos);
+    }
+  }
+}
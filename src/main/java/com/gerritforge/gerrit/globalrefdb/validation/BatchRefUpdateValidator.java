@@ -14,9 +14,11 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.CustomSharedRefEnforcementByProject;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.OutOfSyncException;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedLockException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
 import com.google.common.collect.ImmutableSet;
@@ -25,12 +27,16 @@ import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.transport.ReceiveCommand;
@@ -39,12 +45,38 @@ import org.eclipse.jgit.transport.ReceiveCommand;
 public class BatchRefUpdateValidator extends RefUpdateValidator {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 
+  private final SharedRefCompensator sharedRefCompensator;
+  private final int batchProjectLockThreshold;
+  private final int batchChunkSize;
+
   /** {@code BatchRefUpdateValidator} Factory for Guice assisted injection. */
   public interface Factory {
     BatchRefUpdateValidator create(
         String projectName, RefDatabase refDb, ImmutableSet<String> ignoredRefs);
   }
 
+  /** How the refs of a batch ref-update are locked in the global refdb. */
+  public enum LockMode {
+    /** Each ref is locked individually. */
+    REF,
+    /** The whole project is locked at once. */
+    PROJECT
+  }
+
+  /** Outcome of the validation of a single command of a non-atomic batch ref-update. */
+  public enum CommandOutcome {
+    /** The command has been executed and published to the global refdb. */
+    OK,
+    /** The command has been failed because the local ref is out of sync with the global refdb. */
+    OUT_OF_SYNC,
+    /** The command has been failed because the ref could not be locked in the global refdb. */
+    LOCK_FAILURE,
+    /** The command has not been executed by the local refdb. */
+    REJECTED,
+    /** The command has been rolled back because it could not be published to the global refdb. */
+    ROLLED_BACK
+  }
+
   public interface BatchValidationWrapper {
     void apply(BatchRefUpdate batchRefUpdate, NoParameterVoidFunction arg) throws IOException;
   }
@@ -61,6 +93,16 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
    * @param lockWrapperFactory factory providing a {@link LockWrapper}
    * @param projectsFilter filter to match whether the project being updated should be validated
    *     against global refdb
+   * @param asyncRefPublisher publisher of the ref updates under the {@link EnforcePolicy#ASYNC}
+   *     policy
+   * @param shadowRefValidator validator of the ref updates under the {@link EnforcePolicy#SHADOW}
+   *     policy
+   * @param localRefLocks node-local table of the ref locks, queueing the threads of this node
+   *     locking the same ref before requesting it to the global refdb
+   * @param sharedRefCompensator reverts the refs already published to the global refdb when a batch
+   *     ref-update is rolled back
+   * @param cfg the configuration of the global refdb, providing the size of the batches for which
+   *     the whole project is locked and of the chunks in which large batches are streamed
    * @param projectName the name of the project being updated.
    * @param refDb for ref operations
    * @param ignoredRefs A set of refs for which updates should not be checked against the shared
@@ -73,6 +115,11 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
       SharedRefEnforcement refEnforcement,
       LockWrapper.Factory lockWrapperFactory,
       ProjectsFilter projectsFilter,
+      AsyncRefPublisher asyncRefPublisher,
+      ShadowRefValidator shadowRefValidator,
+      LocalRefLocks localRefLocks,
+      SharedRefCompensator sharedRefCompensator,
+      SharedRefDbConfiguration cfg,
       @Assisted String projectName,
       @Assisted RefDatabase refDb,
       @Assisted ImmutableSet<String> ignoredRefs) {
@@ -82,9 +129,16 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
         refEnforcement,
         lockWrapperFactory,
         projectsFilter,
+        asyncRefPublisher,
+        shadowRefValidator,
+        localRefLocks,
+        cfg,
         projectName,
         refDb,
         ignoredRefs);
+    this.sharedRefCompensator = sharedRefCompensator;
+    this.batchProjectLockThreshold = cfg.getSharedRefDb().getBatchProjectLockThreshold();
+    this.batchChunkSize = cfg.getSharedRefDb().getBatchChunkSize();
   }
 
   /**
@@ -92,11 +146,15 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
    * If not it just execute the provided batchRefUpdateFunction. Upon success the batchRefUpdate is
    * returned, upon failure split brain metrics are incremented and a {@link IOException} is thrown.
    *
+   * <p>Atomic batches are failed as a whole when any of their refs is out of sync or cannot be
+   * published to the global refdb. Non-atomic batches fail only the offending commands, while the
+   * others are executed and published.
+   *
    * <p>Validation is performed when either of these condition is true:
    *
    * <ul>
    *   <li>The project being updated is a global project ({@link
-   *       RefUpdateValidator#isGlobalProject(String)}
+   *       RefUpdateValidator#isGlobalProject()}
    *   <li>The enforcement policy for the project being updated is {@link EnforcePolicy#IGNORED}
    * </ul>
    *
@@ -112,68 +170,332 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
       NoParameterVoidFunction batchRefUpdateFunction,
       OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateRollbackFunction)
       throws IOException {
-    if (refEnforcement.getPolicy(projectName) == EnforcePolicy.IGNORED
-        || !isGlobalProject(projectName)) {
+    if (refEnforcement.getPolicy(projectName) == EnforcePolicy.IGNORED || !isGlobalProject()) {
       batchRefUpdateFunction.invoke();
       return;
     }
 
     try {
-      doExecuteBatchUpdate(batchRefUpdate, batchRefUpdateFunction, batchRefUpdateRollbackFunction);
+      if (batchRefUpdate.isAtomic()) {
+        doExecuteBatchUpdate(
+            batchRefUpdate.getCommands(), batchRefUpdateFunction, batchRefUpdateRollbackFunction);
+      } else {
+        try (CloseableSet<AutoCloseable> locks = newLocks()) {
+          lockProjectIfLargeBatch(batchRefUpdate.getCommands().size(), locks);
+          doExecuteNonAtomicBatchUpdate(
+              batchRefUpdate.getCommands(),
+              batchRefUpdateFunction,
+              batchRefUpdateRollbackFunction,
+              locks);
+        }
+      }
     } catch (IOException e) {
-      logger.atWarning().withCause(e).log(
-          "Failed to execute Batch Update on project %s", projectName);
-      if (refEnforcement.getPolicy(projectName) == EnforcePolicy.REQUIRED) {
-        throw e;
+      failBatchUpdateBasedOnEnforcement(e);
+    }
+  }
+
+  /**
+   * Same as {@link #executeBatchUpdateWithValidation(BatchRefUpdate, NoParameterVoidFunction,
+   * OneParameterVoidFunction)}, but non-atomic batches with more commands than the configured chunk
+   * size are streamed: each chunk of commands is validated, locked, executed and published to the
+   * global refdb before moving to the next one, so that the memory needed does not grow with the
+   * size of the batch.
+   *
+   * <p>As for any non-atomic batch, only the offending commands of each chunk are failed, while the
+   * execution of the following chunks is not attempted when the validation of a chunk fails under
+   * the {@link EnforcePolicy#REQUIRED} policy.
+   *
+   * @param batchRefUpdate batchRefUpdate object
+   * @param monitor progress monitor receiving the number of commands of each completed chunk
+   * @param batchRefUpdateFunction batchRefUpdate function to execute upon validation, when the
+   *     batch is not chunked
+   * @param chunkUpdateFunction function executing a chunk of the commands of the batch upon its
+   *     validation
+   * @param batchRefUpdateRollbackFunction function to invoke when the ref-update needs to be rolled
+   *     back
+   * @throws IOException batch update failed
+   */
+  public void executeBatchUpdateWithValidation(
+      BatchRefUpdate batchRefUpdate,
+      ProgressMonitor monitor,
+      NoParameterVoidFunction batchRefUpdateFunction,
+      OneParameterVoidFunction<List<ReceiveCommand>> chunkUpdateFunction,
+      OneParameterVoidFunction<List<ReceiveCommand>> batchRefUpdateRollbackFunction)
+      throws IOException {
+    if (!isChunked(batchRefUpdate)) {
+      executeBatchUpdateWithValidation(
+          batchRefUpdate, batchRefUpdateFunction, batchRefUpdateRollbackFunction);
+      return;
+    }
+
+    if (refEnforcement.getPolicy(projectName) == EnforcePolicy.IGNORED || !isGlobalProject()) {
+      batchRefUpdateFunction.invoke();
+      return;
+    }
+
+    List<ReceiveCommand> commands = batchRefUpdate.getCommands();
+    int numCommands = commands.size();
+    monitor.beginTask("Validating ref updates against the global refdb", numCommands);
+    // The project lock is decided upon the size of the whole batch and, when acquired, held across
+    // all its chunks, while the refs are otherwise locked and released chunk by chunk
+    try (CloseableSet<AutoCloseable> batchLocks = newLocks()) {
+      lockProjectIfLargeBatch(numCommands, batchLocks);
+      boolean projectLocked = batchLocks.containsResource(SharedRefDatabaseWrapper.ALL_REFS);
+      for (int from = 0; from < numCommands; from += batchChunkSize) {
+        if (monitor.isCancelled()) {
+          ReceiveCommand.abort(commands.subList(from, numCommands));
+          return;
+        }
+        List<ReceiveCommand> chunk =
+            commands.subList(from, Math.min(from + batchChunkSize, numCommands));
+        NoParameterVoidFunction chunkUpdate = () -> chunkUpdateFunction.invoke(chunk);
+        if (projectLocked) {
+          doExecuteNonAtomicBatchUpdate(
+              chunk, chunkUpdate, batchRefUpdateRollbackFunction, batchLocks);
+        } else {
+          try (CloseableSet<AutoCloseable> chunkLocks = newLocks()) {
+            doExecuteNonAtomicBatchUpdate(
+                chunk, chunkUpdate, batchRefUpdateRollbackFunction, chunkLocks);
+          }
+        }
+        monitor.update(chunk.size());
       }
+    } catch (IOException e) {
+      failBatchUpdateBasedOnEnforcement(e);
+    } finally {
+      monitor.endTask();
+    }
+  }
+
+  private boolean isChunked(BatchRefUpdate batchRefUpdate) {
+    return batchChunkSize > 0
+        && !batchRefUpdate.isAtomic()
+        && batchRefUpdate.getProposedTimestamps().isEmpty()
+        && batchRefUpdate.getCommands().size() > batchChunkSize;
+  }
+
+  private void failBatchUpdateBasedOnEnforcement(IOException e) throws IOException {
+    logger.atWarning().withCause(e).log(
+        "Failed to execute Batch Update on project %s", projectName);
+    if (refEnforcement.getPolicy(projectName) == EnforcePolicy.REQUIRED) {
+      throw e;
     }
   }
 
   private void doExecuteBatchUpdate(
-      BatchRefUpdate batchRefUpdate,
+      List<ReceiveCommand> commands,
       NoParameterVoidFunction delegateUpdate,
       OneParameterVoidFunction<List<ReceiveCommand>> delegateUpdateRollback)
       throws IOException {
-
-    List<ReceiveCommand> commands = batchRefUpdate.getCommands();
     if (commands.isEmpty()) {
       return;
     }
 
-    List<RefPair> refsToUpdate = getRefsPairs(commands).collect(Collectors.toList());
-    List<RefPair> refsFailures =
-        refsToUpdate.stream().filter(RefPair::hasFailed).collect(Collectors.toList());
-    if (!refsFailures.isEmpty()) {
-      String allFailuresMessage =
-          refsFailures.stream()
-              .map(refPair -> String.format("Failed to fetch ref %s", refPair.compareRef.getName()))
-              .collect(Collectors.joining(", "));
-      Exception firstFailureException = refsFailures.get(0).exception;
+    try (CloseableSet<AutoCloseable> locks = newLocks()) {
+      lockProjectIfLargeBatch(commands.size(), locks);
+      // Identical-value commands are tracked with a null policy, as they are neither locked nor
+      // published: their old value is checked by the local refdb when executing the batch.
+      EnforcePolicy[] refEnforcementPolicies = new EnforcePolicy[commands.size()];
+      for (int i = 0; i < commands.size(); i++) {
+        ReceiveCommand command = commands.get(i);
+        if (isIdenticalValueUpToDate(command)) {
+          continue;
+        }
+        refEnforcementPolicies[i] = refEnforcement.getPolicy(projectName, command.getRefName());
+        if (isValidatedUnderLock(refEnforcementPolicies[i])) {
+          lockRef(command.getRefName(), locks);
+        }
+      }
 
-      logger.atSevere().withCause(firstFailureException).log(allFailuresMessage);
-      throw new IOException(allFailuresMessage, firstFailureException);
-    }
+      List<RefPair> refPairs =
+          newRefPairs(
+              commands, readLocalRefs(commands, refEnforcementPolicies), refEnforcementPolicies);
+      List<CompletableFuture<Boolean>> upToDateChecks =
+          checkAreUpToDate(refPairs, refEnforcementPolicies);
+      final List<RefPair> finalRefsToUpdate = new ArrayList<>(commands.size());
+      for (int i = 0; i < commands.size(); i++) {
+        RefPair refPair = refPairs.get(i);
+        if (refPair == null) {
+          continue;
+        }
+        if (upToDateChecks.get(i) != null) {
+          checkIsUpToDate(
+              refPair, refEnforcementPolicies[i], GlobalRefDbExecutor.await(upToDateChecks.get(i)));
+        }
+        finalRefsToUpdate.add(refPair);
+      }
 
-    try (CloseableSet<AutoCloseable> locks = new CloseableSet<>()) {
-      final List<RefPair> finalRefsToUpdate = compareAndGetLatestLocalRefs(refsToUpdate, locks);
       delegateUpdate.invoke();
       try {
-        updateSharedRefDb(batchRefUpdate.getCommands().stream(), finalRefsToUpdate);
+        updateSharedRefDb(commands, finalRefsToUpdate);
       } catch (Exception e) {
-        List<ReceiveCommand> receiveCommands = batchRefUpdate.getCommands();
         logger.atWarning().withCause(e).log(
             String.format(
                 "Batch ref-update failing because of failure during the global refdb update. Set all commands Result to LOCK_FAILURE [%d]",
-                receiveCommands.size()));
-        rollback(delegateUpdateRollback, finalRefsToUpdate, receiveCommands);
+                commands.size()));
+        rollback(delegateUpdateRollback, finalRefsToUpdate, commands);
       }
     } catch (OutOfSyncException e) {
-      List<ReceiveCommand> receiveCommands = batchRefUpdate.getCommands();
       logger.atWarning().withCause(e).log(
           String.format(
               "Batch ref-update failing because node is out of sync with the shared ref-db. Set all commands Result to LOCK_FAILURE [%d]",
-              receiveCommands.size()));
-      receiveCommands.forEach((command) -> command.setResult(ReceiveCommand.Result.LOCK_FAILURE));
+              commands.size()));
+      commands.forEach((command) -> command.setResult(ReceiveCommand.Result.LOCK_FAILURE));
+    }
+  }
+
+  private void lockProjectIfLargeBatch(int batchSize, CloseableSet<AutoCloseable> locks)
+      throws SharedLockException {
+    if (locks.containsResource(SharedRefDatabaseWrapper.ALL_REFS)) {
+      validationMetrics.incrementBatchLockMode(LockMode.PROJECT);
+      return;
+    }
+    // The project lock is not granted while any of its refs is locked, including by the same
+    // thread through a RefLockSession
+    if (batchProjectLockThreshold > 0
+        && batchSize >= batchProjectLockThreshold
+        && locks.isEmpty()) {
+      Optional<AutoCloseable> projectLock = sharedRefDb.lockProject(projectNameKey);
+      if (projectLock.isPresent()) {
+        locks.addResourceIfNotExist(
+            SharedRefDatabaseWrapper.ALL_REFS,
+            () ->
+                lockWrapperFactory.create(
+                    projectName, SharedRefDatabaseWrapper.ALL_REFS, projectLock.get()));
+        validationMetrics.incrementBatchLockMode(LockMode.PROJECT);
+        return;
+      }
+      logger.atFine().log(
+          "Project locks not supported by the global refdb, locking the %d refs of project %s"
+              + " individually",
+          batchSize, projectName);
+    }
+    validationMetrics.incrementBatchLockMode(LockMode.REF);
+  }
+
+  private void doExecuteNonAtomicBatchUpdate(
+      List<ReceiveCommand> commands,
+      NoParameterVoidFunction delegateUpdate,
+      OneParameterVoidFunction<List<ReceiveCommand>> delegateUpdateRollback,
+      CloseableSet<AutoCloseable> locks)
+      throws IOException {
+    if (commands.isEmpty()) {
+      return;
+    }
+
+    // Commands failed before the execution are not attempted by the local refdb and are tracked
+    // with a null entry, so that the validated refs stay aligned with their commands. So are the
+    // identical-value commands, which are executed but neither locked nor published.
+    EnforcePolicy[] refEnforcementPolicies = new EnforcePolicy[commands.size()];
+    for (int i = 0; i < commands.size(); i++) {
+      ReceiveCommand command = commands.get(i);
+      if (isIdenticalValueUpToDate(command)) {
+        continue;
+      }
+      refEnforcementPolicies[i] = refEnforcement.getPolicy(projectName, command.getRefName());
+      if (isValidatedUnderLock(refEnforcementPolicies[i]) && !lockCommandRef(command, locks)) {
+        refEnforcementPolicies[i] = null;
+      }
+    }
+
+    Map<String, Ref> localRefs;
+    try {
+      localRefs = readLocalRefs(commands, refEnforcementPolicies);
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Failed to read the refs of project %s, rejecting the batch", projectName);
+      for (int i = 0; i < commands.size(); i++) {
+        if (commands.get(i).getResult() == ReceiveCommand.Result.NOT_ATTEMPTED) {
+          commands
+              .get(i)
+              .setResult(ReceiveCommand.Result.REJECTED_OTHER_REASON, "failed to read the ref");
+          validationMetrics.incrementBatchCommandOutcome(CommandOutcome.REJECTED);
+        }
+      }
+      return;
+    }
+
+    List<RefPair> validatedRefs = newRefPairs(commands, localRefs, refEnforcementPolicies);
+    List<CompletableFuture<Boolean>> upToDateChecks =
+        checkAreUpToDate(validatedRefs, refEnforcementPolicies);
+    for (int i = 0; i < commands.size(); i++) {
+      if (upToDateChecks.get(i) != null
+          && !validateCommand(
+              commands.get(i),
+              validatedRefs.get(i),
+              refEnforcementPolicies[i],
+              upToDateChecks.get(i))) {
+        validatedRefs.set(i, null);
+      }
+    }
+
+    delegateUpdate.invoke();
+
+    List<RefPair> refsToRollback = null;
+    List<ReceiveCommand> commandsToRollback = null;
+    for (int i = 0; i < commands.size(); i++) {
+      RefPair refPair = validatedRefs.get(i);
+      if (refPair == null) {
+        continue;
+      }
+      ReceiveCommand command = commands.get(i);
+      if (command.getResult() != ReceiveCommand.Result.OK) {
+        validationMetrics.incrementBatchCommandOutcome(CommandOutcome.REJECTED);
+        continue;
+      }
+      try {
+        updateSharedDbOrThrowExceptionFor(refPair);
+        validationMetrics.incrementBatchCommandOutcome(CommandOutcome.OK);
+      } catch (Exception e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to update ref %s of project %s in the global refdb, rolling it back",
+            refPair.getName(), projectName);
+        if (refsToRollback == null) {
+          refsToRollback = new ArrayList<>();
+          commandsToRollback = new ArrayList<>();
+        }
+        refsToRollback.add(refPair);
+        commandsToRollback.add(command);
+      }
+    }
+
+    if (refsToRollback != null) {
+      rollback(delegateUpdateRollback, refsToRollback, commandsToRollback);
+      for (int i = 0; i < refsToRollback.size(); i++) {
+        validationMetrics.incrementBatchCommandOutcome(CommandOutcome.ROLLED_BACK);
+      }
+    }
+  }
+
+  private boolean lockCommandRef(ReceiveCommand command, CloseableSet<AutoCloseable> locks) {
+    try {
+      lockRef(command.getRefName(), locks);
+      return true;
+    } catch (SharedLockException | GlobalRefDbLockException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to lock ref %s of project %s in the global refdb, failing its command",
+          command.getRefName(), projectName);
+      command.setResult(ReceiveCommand.Result.LOCK_FAILURE, "unable to lock the global refdb");
+      validationMetrics.incrementBatchCommandOutcome(CommandOutcome.LOCK_FAILURE);
+      return false;
+    }
+  }
+
+  private boolean validateCommand(
+      ReceiveCommand command,
+      RefPair refPair,
+      EnforcePolicy refEnforcementPolicy,
+      CompletableFuture<Boolean> upToDateCheck) {
+    try {
+      checkIsUpToDate(refPair, refEnforcementPolicy, GlobalRefDbExecutor.await(upToDateCheck));
+      return true;
+    } catch (OutOfSyncException e) {
+      logger.atWarning().withCause(e).log(
+          "Ref %s of project %s is out of sync with the global refdb, failing its command",
+          command.getRefName(), projectName);
+      command.setResult(ReceiveCommand.Result.LOCK_FAILURE, "out of sync with the global refdb");
+      validationMetrics.incrementBatchCommandOutcome(CommandOutcome.OUT_OF_SYNC);
+      return false;
     }
   }
 
@@ -195,58 +517,124 @@ public class BatchRefUpdateValidator extends RefUpdateValidator {
     receiveCommands.forEach(command -> command.setResult(ReceiveCommand.Result.LOCK_FAILURE));
   }
 
-  private void updateSharedRefDb(Stream<ReceiveCommand> commandStream, List<RefPair> refsToUpdate)
+  private void updateSharedRefDb(List<ReceiveCommand> commands, List<RefPair> refsToUpdate)
       throws IOException {
-    if (commandStream
-        .filter(cmd -> cmd.getResult() != ReceiveCommand.Result.OK)
-        .findFirst()
-        .isPresent()) {
-      return;
+    for (ReceiveCommand cmd : commands) {
+      if (cmd.getResult() != ReceiveCommand.Result.OK) {
+        return;
+      }
     }
 
-    for (RefPair refPair : refsToUpdate) {
-      updateSharedDbOrThrowExceptionFor(refPair);
+    // The refs already published are reverted upon failure, as the whole batch is rolled back,
+    // while the refs written in the background are handed off only once all the others have
+    // been published, as their write cannot be reverted
+    List<RefPair> publishedRefs = null;
+    List<RefPair> deferredRefs = null;
+    try {
+      for (RefPair refPair : refsToUpdate) {
+        EnforcePolicy refEnforcementPolicy =
+            refEnforcement.getPolicy(projectName, refPair.getName());
+        if (isWrittenInBackground(refEnforcementPolicy)) {
+          if (deferredRefs == null) {
+            deferredRefs = new ArrayList<>();
+          }
+          deferredRefs.add(refPair);
+        } else if (refEnforcementPolicy != EnforcePolicy.IGNORED) {
+          updateSharedDbOrThrowExceptionFor(refPair);
+          if (publishedRefs == null) {
+            publishedRefs = new ArrayList<>(refsToUpdate.size());
+          }
+          publishedRefs.add(refPair);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      if (publishedRefs != null) {
+        sharedRefCompensator.compensate(projectNameKey, publishedRefs);
+      }
+      throw e;
     }
-  }
 
-  private Stream<RefPair> getRefsPairs(List<ReceiveCommand> receivedCommands) {
-    return receivedCommands.stream().map(this::getRefPairForCommand);
+    if (deferredRefs != null) {
+      for (RefPair refPair : deferredRefs) {
+        updateSharedDbOrThrowExceptionFor(refPair);
+      }
+    }
   }
 
-  private RefPair getRefPairForCommand(ReceiveCommand command) {
-    try {
-      switch (command.getType()) {
-        case CREATE:
-          return new RefPair(nullRef(command.getRefName()), getNewRef(command));
+  /**
+   * Reads the current local value of the refs of all the commands at once, once their locks are
+   * held, so that each ref is looked up only once and the packed refs are scanned once per batch.
+   */
+  private Map<String, Ref> readLocalRefs(
+      List<ReceiveCommand> commands, EnforcePolicy[] refEnforcementPolicies) throws IOException {
+    List<String> refNames = new ArrayList<>(commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      if (refEnforcementPolicies[i] != null) {
+        refNames.add(commands.get(i).getRefName());
+      }
+    }
+    return refNames.isEmpty()
+        ? Collections.emptyMap()
+        : refDb.exactRef(refNames.toArray(new String[0]));
+  }
 
-        case UPDATE:
-        case UPDATE_NONFASTFORWARD:
-          return new RefPair(getCurrentRef(command.getRefName()), getNewRef(command));
+  private boolean isIdenticalValueUpToDate(ReceiveCommand command) {
+    // The old value of the command is checked by the local refdb, hence it is the current value
+    // of the ref when the command succeeds
+    return command.getType() == ReceiveCommand.Type.UPDATE
+        && isIdenticalValueUpToDate(command.getRefName(), command.getOldId(), command.getNewId());
+  }
 
-        case DELETE:
-          return new RefPair(getCurrentRef(command.getRefName()), ObjectId.zeroId());
+  private static List<RefPair> newRefPairs(
+      List<ReceiveCommand> commands,
+      Map<String, Ref> localRefs,
+      EnforcePolicy[] refEnforcementPolicies) {
+    List<RefPair> refPairs = new ArrayList<>(commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      refPairs.add(
+          refEnforcementPolicies[i] == null ? null : newRefPair(commands.get(i), localRefs));
+    }
+    return refPairs;
+  }
 
-        default:
-          return new RefPair(
-              command.getRef(),
-              new IllegalArgumentException("Unsupported command type " + command.getType()));
+  /**
+   * Compares with the global refdb the local values of the refs validated under lock. The refs are
+   * checked concurrently on the {@link GlobalRefDbExecutor}, unless there is only one of them,
+   * which is checked on the calling thread.
+   *
+   * @return the future outcomes of the checks, aligned with the refs, null for the refs which are
+   *     not validated
+   */
+  private List<CompletableFuture<Boolean>> checkAreUpToDate(
+      List<RefPair> refPairs, EnforcePolicy[] refEnforcementPolicies) {
+    int validatedRefs = 0;
+    for (int i = 0; i < refPairs.size(); i++) {
+      if (refPairs.get(i) != null && isValidatedUnderLock(refEnforcementPolicies[i])) {
+        validatedRefs++;
       }
-    } catch (IOException e) {
-      return new RefPair(command.getRef(), e);
     }
-  }
 
-  private ObjectId getNewRef(ReceiveCommand command) {
-    return command.getNewId();
+    List<CompletableFuture<Boolean>> upToDateChecks = new ArrayList<>(refPairs.size());
+    for (int i = 0; i < refPairs.size(); i++) {
+      RefPair refPair = refPairs.get(i);
+      if (refPair == null || !isValidatedUnderLock(refEnforcementPolicies[i])) {
+        upToDateChecks.add(null);
+      } else if (validatedRefs == 1) {
+        upToDateChecks.add(
+            CompletableFuture.completedFuture(
+                sharedRefDb.isUpToDate(projectNameKey, refPair.compareRef)));
+      } else {
+        upToDateChecks.add(sharedRefDb.isUpToDateAsync(projectNameKey, refPair.compareRef));
+      }
+    }
+    return upToDateChecks;
   }
 
-  private List<RefPair> compareAndGetLatestLocalRefs(
-      List<RefPair> refsToUpdate, CloseableSet<AutoCloseable> locks) throws IOException {
-    List<RefPair> latestRefsToUpdate = new ArrayList<>();
-    for (RefPair refPair : refsToUpdate) {
-      latestRefsToUpdate.add(compareAndGetLatestLocalRef(refPair, locks));
-    }
-    return latestRefsToUpdate;
+  private static RefPair newRefPair(ReceiveCommand command, Map<String, Ref> localRefs) {
+    String refName = command.getRefName();
+    Ref currentRef = localRefs.get(refName);
+    // The new id of DELETE commands is the zero id, which is the value of deleted refs
+    return new RefPair(currentRef != null ? currentRef : nullRef(refName), command.getNewId());
   }
 
   private static final Ref nullRef(String refName) {
@@ -0,0 +1,239 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calling the global refdb after a number of consecutive failures, so that the operations
+ * fail fast instead of waiting for the backend to time out while it is unavailable.
+ *
+ * <p>Once open, the breaker rejects all the operations for the configured open duration and then
+ * lets a small number of probes through: the first successful probe closes it, while a failed one
+ * opens it again.
+ */
+@Singleton
+public class CircuitBreaker {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private static final Call NO_CALL =
+      new Call() {
+        @Override
+        public void succeeded() {}
+
+        @Override
+        public void failed() {}
+
+        @Override
+        public void abandoned() {}
+      };
+
+  /** State of the circuit breaker. */
+  public enum State {
+    /** The operations are executed. */
+    CLOSED,
+    /** The operations are rejected without calling the global refdb. */
+    OPEN,
+    /** Only a limited number of probes are executed, to find out whether it is back. */
+    HALF_OPEN
+  }
+
+  /** Operation let through the breaker, whose outcome must be reported exactly once. */
+  public interface Call {
+    /** The global refdb executed the operation. */
+    void succeeded();
+
+    /** The global refdb failed to execute the operation. */
+    void failed();
+
+    /** The operation was not executed, or its outcome says nothing about the global refdb. */
+    void abandoned();
+  }
+
+  private final SharedRefDBMetrics metrics;
+  private final boolean enabled;
+  private final int failureThreshold;
+  private final long openDurationNanos;
+  private final int halfOpenProbes;
+  private final LongSupplier nanoTime;
+
+  private final Call closedCall = new ClosedCall();
+
+  // Written under the lock, read without it on the fast path of the closed breaker
+  private volatile State state = State.CLOSED;
+  private volatile int consecutiveFailures;
+  private long openedAtNanos;
+  private int probesInFlight;
+
+  /**
+   * Constructs a {@code CircuitBreaker}.
+   *
+   * @param metrics to record the state, the transitions and the rejections of the breaker
+   * @param cfg the global refdb configuration, defining the failure threshold, the open duration
+   *     and the number of probes
+   */
+  @Inject
+  public CircuitBreaker(SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg) {
+    this(metrics, cfg, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  CircuitBreaker(SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg, LongSupplier nanoTime) {
+    SharedRefDbConfiguration.SharedRefDatabase sharedRefDbCfg = cfg.getSharedRefDb();
+    this.metrics = metrics;
+    this.failureThreshold = sharedRefDbCfg.getCircuitBreakerFailureThreshold();
+    this.enabled = failureThreshold > 0;
+    this.openDurationNanos =
+        TimeUnit.MILLISECONDS.toNanos(sharedRefDbCfg.getCircuitBreakerOpenDurationMs());
+    this.halfOpenProbes = Math.max(1, sharedRefDbCfg.getCircuitBreakerHalfOpenProbes());
+    this.nanoTime = nanoTime;
+    metrics.setCircuitBreakerState(state);
+  }
+
+  /**
+   * Lets an operation on the global refdb through the breaker.
+   *
+   * @param project project name of the operation
+   * @param refName ref name of the operation
+   * @return the call whose outcome must be reported once the operation is completed
+   * @throws GlobalRefDbLockException when the breaker is open, or half-open with all the probes
+   *     already in flight
+   */
+  public Call enter(String project, String refName) throws GlobalRefDbLockException {
+    if (!enabled) {
+      return NO_CALL;
+    }
+    if (state == State.CLOSED) {
+      return closedCall;
+    }
+
+    synchronized (this) {
+      if (state == State.OPEN && nanoTime.getAsLong() - openedAtNanos >= openDurationNanos) {
+        transitionTo(State.HALF_OPEN);
+      }
+      if (state == State.OPEN || (state == State.HALF_OPEN && probesInFlight >= halfOpenProbes)) {
+        metrics.incrementCircuitBreakerRejections();
+        throw new GlobalRefDbLockException(
+            project,
+            refName,
+            new IllegalStateException("Global refdb circuit breaker is " + state));
+      }
+      if (state == State.HALF_OPEN) {
+        probesInFlight++;
+        return new ProbeCall();
+      }
+    }
+    return closedCall;
+  }
+
+  /**
+   * Whether the breaker is currently rejecting all the operations, so that the callers able to
+   * defer them can avoid even trying.
+   *
+   * @return true when open and not ready to be probed yet, false otherwise
+   */
+  public boolean isOpen() {
+    if (!enabled || state != State.OPEN) {
+      return false;
+    }
+
+    synchronized (this) {
+      return state == State.OPEN && nanoTime.getAsLong() - openedAtNanos < openDurationNanos;
+    }
+  }
+
+  @VisibleForTesting
+  synchronized State getState() {
+    return state;
+  }
+
+  private synchronized void onSuccess(boolean probe) {
+    if (probe) {
+      probesInFlight--;
+    }
+    consecutiveFailures = 0;
+    if (state == State.HALF_OPEN) {
+      transitionTo(State.CLOSED);
+    }
+  }
+
+  private synchronized void onFailure(boolean probe) {
+    if (probe) {
+      probesInFlight--;
+    }
+    if (state == State.HALF_OPEN || ++consecutiveFailures >= failureThreshold) {
+      if (state != State.OPEN) {
+        transitionTo(State.OPEN);
+      }
+      openedAtNanos = nanoTime.getAsLong();
+    }
+  }
+
+  private synchronized void onAbandoned(boolean probe) {
+    if (probe) {
+      probesInFlight--;
+    }
+  }
+
+  private void transitionTo(State newState) {
+    logger.atWarning().log("Global refdb circuit breaker moving from %s to %s", state, newState);
+    state = newState;
+    if (newState != State.OPEN) {
+      consecutiveFailures = 0;
+    }
+    metrics.setCircuitBreakerState(newState);
+    metrics.incrementCircuitBreakerTransitions(newState);
+  }
+
+  private class ClosedCall implements Call {
+    @Override
+    public void succeeded() {
+      if (consecutiveFailures > 0 || state != State.CLOSED) {
+        onSuccess(false);
+      }
+    }
+
+    @Override
+    public void failed() {
+      onFailure(false);
+    }
+
+    @Override
+    public void abandoned() {}
+  }
+
+  private class ProbeCall implements Call {
+    @Override
+    public void succeeded() {
+      onSuccess(true);
+    }
+
+    @Override
+    public void failed() {
+      onFailure(true);
+    }
+
+    @Override
+    public void abandoned() {
+      onAbandoned(true);
+    }
+  }
+}
@@ -0,0 +1,256 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of concurrent operations on the global refdb, adapting the limit to the latency
+ * observed with an additive-increase/multiplicative-decrease (AIMD) algorithm.
+ *
+ * <p>Each operation completed within the configured latency increases the limit by {@code 1/limit}
+ * while the limit is saturated, so that it grows by about one per round-trip. An operation slower
+ * than that decreases it by {@link #BACKOFF_RATIO}, at most once per latency threshold, so that a
+ * degraded backend is quickly relieved without the limit collapsing because of the many slow
+ * operations already in flight. Operations above the limit wait for a bounded time and are then
+ * rejected.
+ *
+ * <p>The waiting operations are queued by {@link PriorityLane} and served with weighted fairness:
+ * up to the configured weight of interactive operations are granted for each background one, so
+ * that interactive updates keep a low latency while a large background batch is running, without
+ * starving the latter.
+ */
+@Singleton
+public class ConcurrencyLimiter {
+  @VisibleForTesting static final double BACKOFF_RATIO = 0.9;
+
+  private static final Permit NO_PERMIT = () -> {};
+
+  /** Permit to run an operation, to be closed when the operation is completed. */
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private final SharedRefDBMetrics metrics;
+  private final boolean enabled;
+  private final int minLimit;
+  private final int maxLimit;
+  private final long latencyThresholdNanos;
+  private final long maxWaitNanos;
+  private final LongSupplier nanoTime;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final List<String> backgroundThreadPrefixes;
+  private final int interactiveWeight;
+  private final Map<PriorityLane, ArrayDeque<Waiter>> waiters = new EnumMap<>(PriorityLane.class);
+
+  private double limit;
+  private int inFlight;
+  private long lastDecreaseNanos;
+  private int interactiveGrants;
+
+  /**
+   * Constructs a {@code ConcurrencyLimiter}.
+   *
+   * @param metrics to record the current limit, the operations waiting for it and the rejections
+   * @param cfg the global refdb configuration, defining the initial, minimum and maximum limit, the
+   *     latency threshold, the maximum wait and the weight of the priority lanes
+   */
+  @Inject
+  public ConcurrencyLimiter(SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg) {
+    this(metrics, cfg, System::nanoTime);
+  }
+
+  @VisibleForTesting
+  ConcurrencyLimiter(
+      SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg, LongSupplier nanoTime) {
+    SharedRefDbConfiguration.SharedRefDatabase sharedRefDbCfg = cfg.getSharedRefDb();
+    this.metrics = metrics;
+    this.enabled = sharedRefDbCfg.getConcurrencyLimit() > 0;
+    this.minLimit = Math.max(1, sharedRefDbCfg.getMinConcurrencyLimit());
+    this.maxLimit = Math.max(minLimit, sharedRefDbCfg.getMaxConcurrencyLimit());
+    this.latencyThresholdNanos =
+        TimeUnit.MILLISECONDS.toNanos(sharedRefDbCfg.getConcurrencyLimitLatencyMs());
+    this.maxWaitNanos =
+        TimeUnit.MILLISECONDS.toNanos(sharedRefDbCfg.getConcurrencyLimitMaxWaitMs());
+    this.nanoTime = nanoTime;
+    this.backgroundThreadPrefixes = sharedRefDbCfg.getBackgroundThreadPrefixes();
+    this.interactiveWeight = Math.max(1, sharedRefDbCfg.getInteractiveWeight());
+    for (PriorityLane lane : PriorityLane.values()) {
+      waiters.put(lane, new ArrayDeque<>());
+    }
+    this.limit =
+        Math.min(maxLimit, Math.max(minLimit, (double) sharedRefDbCfg.getConcurrencyLimit()));
+    this.lastDecreaseNanos = nanoTime.getAsLong() - latencyThresholdNanos;
+    metrics.setConcurrencyLimit(enabled ? (long) limit : 0);
+  }
+
+  /**
+   * Acquires a permit to run an operation on the global refdb, waiting up to the configured maximum
+   * wait when the limit is reached.
+   *
+   * @param project project name of the operation
+   * @param refName ref name of the operation
+   * @return the permit to be closed when the operation is completed
+   * @throws GlobalRefDbLockException when the limit is still reached after the maximum wait
+   */
+  public Permit acquire(String project, String refName) throws GlobalRefDbLockException {
+    if (!enabled) {
+      return NO_PERMIT;
+    }
+
+    lock.lock();
+    try {
+      if (inFlight < (int) limit && !hasWaiters()) {
+        inFlight++;
+      } else {
+        awaitPermit(project, refName, PriorityLane.current(backgroundThreadPrefixes));
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    long startNanos = nanoTime.getAsLong();
+    return () -> release(startNanos, nanoTime.getAsLong());
+  }
+
+  @VisibleForTesting
+  int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void awaitPermit(String project, String refName, PriorityLane lane) {
+    Waiter waiter = new Waiter(lock.newCondition());
+    waiters.get(lane).add(waiter);
+    metrics.incrementConcurrencyLimitQueueDepth();
+    long waitStartNanos = nanoTime.getAsLong();
+    try {
+      grantPermits();
+      long remainingNanos = maxWaitNanos;
+      while (!waiter.granted) {
+        if (remainingNanos <= 0) {
+          waiters.get(lane).remove(waiter);
+          throw reject(project, refName, new TimeoutException(limitReachedMessage()));
+        }
+        remainingNanos = waiter.permitGranted.awaitNanos(remainingNanos);
+      }
+    } catch (InterruptedException e) {
+      if (waiter.granted) {
+        // Handed over to the next waiter, as it will never be released by this one
+        inFlight--;
+        grantPermits();
+      } else {
+        waiters.get(lane).remove(waiter);
+      }
+      Thread.currentThread().interrupt();
+      throw reject(project, refName, e);
+    } finally {
+      metrics.decrementConcurrencyLimitQueueDepth();
+      metrics.recordConcurrencyLimitQueueWait(lane, nanoTime.getAsLong() - waitStartNanos);
+    }
+  }
+
+  /** Grants the permits available to the waiters, counting them as in flight. */
+  private void grantPermits() {
+    while (inFlight < (int) limit) {
+      Waiter waiter = nextWaiter();
+      if (waiter == null) {
+        return;
+      }
+      waiter.granted = true;
+      inFlight++;
+      waiter.permitGranted.signal();
+    }
+  }
+
+  private Waiter nextWaiter() {
+    ArrayDeque<Waiter> interactive = waiters.get(PriorityLane.INTERACTIVE);
+    ArrayDeque<Waiter> background = waiters.get(PriorityLane.BACKGROUND);
+    if (background.isEmpty()) {
+      interactiveGrants = 0;
+      return interactive.poll();
+    }
+    if (interactive.isEmpty() || interactiveGrants >= interactiveWeight) {
+      interactiveGrants = 0;
+      return background.poll();
+    }
+    interactiveGrants++;
+    return interactive.poll();
+  }
+
+  private boolean hasWaiters() {
+    for (ArrayDeque<Waiter> laneWaiters : waiters.values()) {
+      if (!laneWaiters.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private GlobalRefDbLockException reject(String project, String refName, Exception cause) {
+    metrics.incrementConcurrencyLimitRejections();
+    return new GlobalRefDbLockException(project, refName, cause);
+  }
+
+  private String limitReachedMessage() {
+    return String.format("Global refdb concurrency limit of %d operations reached", (int) limit);
+  }
+
+  private void release(long startNanos, long endNanos) {
+    lock.lock();
+    try {
+      boolean saturated = inFlight >= (int) limit;
+      inFlight--;
+      if (endNanos - startNanos > latencyThresholdNanos) {
+        if (endNanos - lastDecreaseNanos >= latencyThresholdNanos) {
+          limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+          lastDecreaseNanos = endNanos;
+        }
+      } else if (saturated) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      metrics.setConcurrencyLimit((long) limit);
+      grantPermits();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static class Waiter {
+    private final Condition permitGranted;
+    private boolean granted;
+
+    private Waiter(Condition permitGranted) {
+      this.permitGranted = permitGranted;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking operations of the global refdb off the calling thread, so that the operations
+ * needed by a request can be executed concurrently.
+ *
+ * <p>Operations run on virtual threads when the JVM supports them, so that thousands of them can be
+ * in flight without holding as many platform threads. On older JVMs, or when disabled by
+ * configuration, they run on a fixed pool of platform threads created through the Gerrit {@link
+ * WorkQueue}.
+ */
+@Singleton
+public class GlobalRefDbExecutor implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  static final String EXECUTOR_QUEUE_NAME = "GlobalRefDbExecutor";
+
+  private final SharedRefDBMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final IntFunction<ExecutorService> platformThreadPool;
+  private volatile ExecutorService executor;
+
+  /**
+   * Constructs a {@code GlobalRefDbExecutor}.
+   *
+   * @param metrics to record the number of operations in flight
+   * @param cfg the global refdb configuration, defining whether virtual threads are used and the
+   *     size of the platform threads pool otherwise
+   * @param workQueue to create the pool of platform threads
+   */
+  @Inject
+  public GlobalRefDbExecutor(
+      SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg, WorkQueue workQueue) {
+    this(metrics, cfg, threads -> workQueue.createQueue(threads, EXECUTOR_QUEUE_NAME));
+  }
+
+  /**
+   * Constructs a {@code GlobalRefDbExecutor} creating its own pool of platform threads, for use
+   * outside of a Gerrit server.
+   *
+   * @param metrics to record the number of operations in flight
+   * @param cfg the global refdb configuration, defining whether virtual threads are used and the
+   *     size of the platform threads pool otherwise
+   */
+  @VisibleForTesting
+  public GlobalRefDbExecutor(SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg) {
+    this(
+        metrics,
+        cfg,
+        threads ->
+            Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                    .setNameFormat(EXECUTOR_QUEUE_NAME + "-%d")
+                    .setDaemon(true)
+                    .build()));
+  }
+
+  private GlobalRefDbExecutor(
+      SharedRefDBMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      IntFunction<ExecutorService> platformThreadPool) {
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.platformThreadPool = platformThreadPool;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Runs a blocking operation of the global refdb on the executor, in the {@link PriorityLane} of
+   * the calling thread.
+   *
+   * @param operation the operation to run
+   * @param <T> type of the result of the operation
+   * @return the future result of the operation
+   */
+  public <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+    // Resolved on the calling thread, as the name of the executor threads says nothing about it
+    PriorityLane lane = PriorityLane.current(cfg.getBackgroundThreadPrefixes());
+    metrics.incrementInFlightOperations();
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> {
+            try (PriorityLane.Scope scope = lane.enter()) {
+              return operation.get();
+            } finally {
+              metrics.decrementInFlightOperations();
+            }
+          },
+          executor());
+    } catch (RejectedExecutionException e) {
+      metrics.decrementInFlightOperations();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the result of an operation run on the executor, rethrowing the unchecked exceptions
+   * thrown by the operation as they are.
+   *
+   * @param future the future result of the operation
+   * @param <T> type of the result of the operation
+   * @return the result of the operation
+   * @throws GlobalRefDbSystemError when the operation failed with a checked exception
+   */
+  public static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new GlobalRefDbSystemError("Global refdb operation failed", (Exception) cause);
+    }
+  }
+
+  private ExecutorService executor() {
+    ExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = newExecutor();
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+
+  private ExecutorService newExecutor() {
+    if (cfg.isVirtualThreads()) {
+      Optional<ExecutorService> virtualThreadExecutor = newVirtualThreadExecutor();
+      if (virtualThreadExecutor.isPresent()) {
+        logger.atInfo().log("Running the global refdb operations on virtual threads");
+        return virtualThreadExecutor.get();
+      }
+      logger.atInfo().log(
+          "Virtual threads not supported by the JVM, running the global refdb operations on %d"
+              + " platform threads",
+          cfg.getExecutorThreads());
+    }
+    return platformThreadPool.apply(cfg.getExecutorThreads());
+  }
+
+  @VisibleForTesting
+  static Optional<ExecutorService> newVirtualThreadExecutor() {
+    // Looked up by reflection, as the library is built for JVMs without virtual threads
+    try {
+      return Optional.of(
+          (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      return Optional.empty();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.gerrit.lifecycle.LifecycleModule;
+
+/**
+ * Registers the lifecycle listeners of the library, so that their background tasks are started with
+ * the server and their queues are stopped at shutdown.
+ *
+ * <p>The listeners whose feature is not configured do nothing when started.
+ */
+public class GlobalRefDbLifecycleModule extends LifecycleModule {
+
+  @Override
+  protected void configure() {
+    listener().to(GlobalRefDbExecutor.class);
+    listener().to(AsyncRefPublisher.class);
+    listener().to(ShadowRefValidator.class);
+    listener().to(SharedRefCompensator.class);
+    listener().to(TombstoneCompactor.class);
+    listener().to(ProjectDeletedSharedDbCleanup.class);
+    listener().to(SharedRefDbConfigurationWatcher.class);
+  }
+}
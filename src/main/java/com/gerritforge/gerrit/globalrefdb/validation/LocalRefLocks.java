@@ -0,0 +1,210 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.Deadline;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Node-local table of the ref locks, queueing the threads of this node locking the same ref so that
+ * only one of them at a time requests the lock to the global refdb.
+ *
+ * <p>The local locks are held by threads and are reentrant: the global lock returned by {@link
+ * #lock(String, String, Deadline, Supplier)} must be released by the thread that acquired it. The
+ * table holds an entry only for the refs currently locked or waited for.
+ */
+@Singleton
+public class LocalRefLocks {
+  private final SharedRefDBMetrics metrics;
+  private final boolean enabled;
+  private final long lockTimeoutMs;
+  private final Map<RefLockKey, RefLock> locks = new ConcurrentHashMap<>();
+  // Held in a field, so that no lambda is allocated by every lock
+  private final BiFunction<RefLockKey, RefLock, RefLock> retainLock =
+      (key, refLock) -> (refLock != null ? refLock : new RefLock(key)).retain();
+
+  /**
+   * Constructs a {@code LocalRefLocks}.
+   *
+   * @param metrics to count the ref locks waited for locally
+   * @param cfg the global refdb configuration, defining whether the locks are coalesced and the
+   *     lock timeout
+   */
+  @Inject
+  public LocalRefLocks(SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg) {
+    this.metrics = metrics;
+    this.enabled = cfg.getSharedRefDb().isLocalLockCoalescing();
+    this.lockTimeoutMs = cfg.getSharedRefDb().getLockTimeoutMs();
+  }
+
+  /**
+   * Locks a ref locally and then in the global refdb.
+   *
+   * @param project project name of the ref
+   * @param refName name of the ref
+   * @param deadline deadline of the wait for the local lock, bounded by the configured lock timeout
+   *     when unbounded
+   * @param globalLock acquires the lock of the ref in the global refdb, once the local one is held
+   * @return the lock releasing the global and then the local lock when closed
+   * @throws GlobalRefDbLockException when the deadline expires or the thread is interrupted while
+   *     waiting for the local lock, or when the global lock cannot be acquired
+   */
+  public AutoCloseable lock(
+      String project, String refName, Deadline deadline, Supplier<AutoCloseable> globalLock)
+      throws GlobalRefDbLockException {
+    if (!enabled) {
+      return globalLock.get();
+    }
+
+    RefLockKey key = new RefLockKey(project, refName);
+    RefLock refLock = locks.compute(key, retainLock);
+    try {
+      acquire(refLock, project, refName, deadline);
+    } catch (RuntimeException e) {
+      release(key);
+      throw e;
+    }
+
+    try {
+      AutoCloseable lock = globalLock.get();
+      if (refLock.getHoldCount() == 1) {
+        // The outermost holder of the local lock is the lock returned, saving a wrapper per lock
+        refLock.globalLock = lock;
+        return refLock;
+      }
+      return () -> {
+        try {
+          lock.close();
+        } finally {
+          refLock.unlock();
+          release(key);
+        }
+      };
+    } catch (RuntimeException e) {
+      refLock.unlock();
+      release(key);
+      throw e;
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    return locks.size();
+  }
+
+  private void acquire(ReentrantLock lock, String project, String refName, Deadline deadline) {
+    if (lock.tryLock()) {
+      return;
+    }
+
+    metrics.incrementLocalLockWaits();
+    // Otherwise each waiter could wait for the global lock timeout of all the ones queued before it
+    if (!deadline.isBounded() && lockTimeoutMs > 0) {
+      deadline = Deadline.after(Duration.ofMillis(lockTimeoutMs));
+    }
+    try {
+      if (!deadline.isBounded()) {
+        lock.lockInterruptibly();
+      } else if (!lock.tryLock(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS)) {
+        metrics.incrementDeadlineExceeded();
+        throw new GlobalRefDbLockException(
+            project, refName, new TimeoutException("Deadline exceeded waiting for the local lock"));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlobalRefDbLockException(project, refName, e);
+    }
+  }
+
+  private void release(RefLockKey key) {
+    locks.computeIfPresent(key, (k, l) -> l.releaseAndGet() > 0 ? l : null);
+  }
+
+  /** Key of the local lock of a ref, compared without concatenating the project and ref names. */
+  private static final class RefLockKey {
+    private final String project;
+    private final String refName;
+
+    private RefLockKey(String project, String refName) {
+      this.project = project;
+      this.refName = refName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof RefLockKey)) {
+        return false;
+      }
+      RefLockKey other = (RefLockKey) o;
+      return project.equals(other.project) && refName.equals(other.refName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * project.hashCode() + refName.hashCode();
+    }
+  }
+
+  /**
+   * Local lock of a ref, counting the threads holding it or waiting for it. Once acquired by its
+   * outermost holder, closing it releases the global lock and then the local one.
+   */
+  @SuppressWarnings("serial")
+  private class RefLock extends ReentrantLock implements AutoCloseable {
+    private final RefLockKey key;
+    private int users;
+    private AutoCloseable globalLock;
+
+    private RefLock(RefLockKey key) {
+      super(true);
+      this.key = key;
+    }
+
+    @Override
+    public void close() throws Exception {
+      AutoCloseable lock = globalLock;
+      globalLock = null;
+      try {
+        lock.close();
+      } finally {
+        unlock();
+        release(key);
+      }
+    }
+
+    private RefLock retain() {
+      users++;
+      return this;
+    }
+
+    private int releaseAndGet() {
+      return --users;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 import static org.eclipse.jgit.lib.Constants.OBJ_BLOB;
 import static org.eclipse.jgit.lib.Constants.OBJ_COMMIT;
 
+import com.gerritforge.gerrit.globalrefdb.ValueCodecs;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Project;
@@ -125,7 +126,8 @@ public class Log4jSharedRefLogger extends LibModuleLogFile implements SharedRefL
    * {@inheritDoc}.
    *
    * <p>Logs Json serialization of {@link SharedRefLogEntry.UpdateRef} or a {@link
-   * SharedRefLogEntry.DeleteRef}, when 'newRefValue' is null
+   * SharedRefLogEntry.DeleteRef}, when 'newRefValue' is null. The values are formatted by their
+   * {@link com.gerritforge.gerrit.globalrefdb.ValueCodec}, when they have one.
    */
   @Override
   public <T> void logRefUpdate(String project, String refName, T currRef, T newRefValue) {
@@ -133,13 +135,29 @@ public class Log4jSharedRefLogger extends LibModuleLogFile implements SharedRefL
       sharedRefDBLog.info(
           gson.toJson(
               new SharedRefLogEntry.UpdateRef(
-                  project, refName, safeToString(currRef), safeToString(newRefValue), null, null)));
+                  project,
+                  refName,
+                  ValueCodecs.format(currRef),
+                  ValueCodecs.format(newRefValue),
+                  null,
+                  null)));
     } else {
       sharedRefDBLog.info(
-          gson.toJson(new SharedRefLogEntry.DeleteRef(project, refName, safeToString(currRef))));
+          gson.toJson(
+              new SharedRefLogEntry.DeleteRef(project, refName, ValueCodecs.format(currRef))));
     }
   }
 
+  /**
+   * {@inheritDoc}.
+   *
+   * <p>Logs Json serialization of {@link SharedRefLogEntry.RemoveRef}
+   */
+  @Override
+  public void logRefRemoval(String project, String refName) {
+    sharedRefDBLog.info(gson.toJson(new SharedRefLogEntry.RemoveRef(project, refName)));
+  }
+
   /**
    * {@inheritDoc}.
    *
@@ -174,11 +192,4 @@ public class Log4jSharedRefLogger extends LibModuleLogFile implements SharedRefL
   public void setLogger(Logger logger) {
     this.sharedRefDBLog = logger;
   }
-
-  private <T> String safeToString(T currRef) {
-    if (currRef == null) {
-      return "<null>";
-    }
-    return currRef.toString();
-  }
 }
@@ -0,0 +1,78 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import java.util.List;
+
+/**
+ * Priority of the operations on the global refdb, used by the {@link ConcurrencyLimiter} to serve
+ * the interactive operations ahead of the background ones when they are queued.
+ *
+ * <p>The lane of the operations of the current thread can be set explicitly by entering its {@link
+ * Scope}, otherwise it is derived from the name of the thread.
+ */
+public enum PriorityLane {
+  /** Operations on behalf of users waiting for them, such as pushes and submits. */
+  INTERACTIVE,
+  /** Operations of background work, such as replication, reindexing and cleanups. */
+  BACKGROUND;
+
+  private static final ThreadLocal<PriorityLane> CURRENT = new ThreadLocal<>();
+
+  /** Scope of a lane, restoring the previous one when closed. */
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * Makes this lane the one of the operations of the calling thread.
+   *
+   * @return the scope to be closed to restore the previous lane
+   */
+  public Scope enter() {
+    PriorityLane previous = CURRENT.get();
+    CURRENT.set(this);
+    return () -> {
+      if (previous != null) {
+        CURRENT.set(previous);
+      } else {
+        CURRENT.remove();
+      }
+    };
+  }
+
+  /**
+   * Returns the lane of the operations of the calling thread.
+   *
+   * @param backgroundThreadPrefixes name prefixes of the threads running background work
+   * @return the lane of the scope entered by the thread, or {@link #BACKGROUND} when the name of
+   *     the thread starts with any of the given prefixes, {@link #INTERACTIVE} otherwise
+   */
+  public static PriorityLane current(List<String> backgroundThreadPrefixes) {
+    PriorityLane current = CURRENT.get();
+    if (current != null) {
+      return current;
+    }
+
+    String threadName = Thread.currentThread().getName();
+    for (String prefix : backgroundThreadPrefixes) {
+      if (threadName.startsWith(prefix)) {
+        return BACKGROUND;
+      }
+    }
+    return INTERACTIVE;
+  }
+}
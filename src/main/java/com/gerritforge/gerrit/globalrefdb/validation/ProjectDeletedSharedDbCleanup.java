@@ -14,19 +14,47 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
-import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.common.flogger.FluentLogger;
+import com.google.common.hash.Hashing;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-/** Removes a project from the global refdb upon deletion */
-public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener {
+/**
+ * Removes a project from the global refdb upon deletion.
+ *
+ * <p>The removal is performed asynchronously on a dedicated work queue, so that the event
+ * dispatcher is never blocked by the global refdb. Failed removals are retried with an exponential
+ * backoff and pending removals are persisted under the libModule's data directory, so that they are
+ * resumed after a restart.
+ */
+@Singleton
+public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener, LifecycleListener {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String CLEANUP_QUEUE_NAME = "GlobalRefDbProjectCleanup";
+  private static final String PENDING_CLEANUP_DIR = "pending-project-cleanup";
 
   private final SharedRefDatabaseWrapper sharedDb;
 
   private final ValidationMetrics validationMetrics;
+  private final SharedRefDBMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final Path pendingCleanupDir;
+  private final ScheduledExecutorService executor;
 
   /**
    * Constructs a {@code ProjectDeletedSharedDbCleanup} with the provided validation metrics and
@@ -34,18 +62,60 @@ public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener {
    *
    * @param sharedDb global refdb used to validate project deletion
    * @param validationMetrics to increase split-brain upon project failed validation
+   * @param metrics to track pending removals, retries and removal latency
+   * @param cfg the global refdb configuration, defining retries and chunk size of removals
+   * @param sitePaths to locate the directory where pending removals are persisted
+   * @param workQueue to create the queue executing the removals
    */
   @Inject
   public ProjectDeletedSharedDbCleanup(
-      SharedRefDatabaseWrapper sharedDb, ValidationMetrics validationMetrics) {
+      SharedRefDatabaseWrapper sharedDb,
+      ValidationMetrics validationMetrics,
+      SharedRefDBMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      SitePaths sitePaths,
+      WorkQueue workQueue) {
     this.sharedDb = sharedDb;
     this.validationMetrics = validationMetrics;
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.pendingCleanupDir =
+        sitePaths.data_dir.resolve(cfg.pluginName()).resolve(PENDING_CLEANUP_DIR);
+    this.executor = workQueue.createQueue(this.cfg.getProjectCleanupThreads(), CLEANUP_QUEUE_NAME);
+  }
+
+  /** Resumes the removal of the projects left pending before the last shutdown. */
+  @Override
+  public void start() {
+    if (!Files.isDirectory(pendingCleanupDir)) {
+      return;
+    }
+
+    try (DirectoryStream<Path> pendingFiles = Files.newDirectoryStream(pendingCleanupDir)) {
+      for (Path pendingFile : pendingFiles) {
+        String projectName = new String(Files.readAllBytes(pendingFile), UTF_8);
+        logger.atInfo().log(
+            "Resuming cleanup of project '%s' from the Shared-Ref database", projectName);
+        metrics.incrementPendingProjectCleanups();
+        submit(new ProjectCleanupTask(Project.nameKey(projectName)), 0L);
+      }
+    } catch (IOException e) {
+      logger.atSevere().withCause(e).log(
+          "Unable to resume pending project cleanups from %s", pendingCleanupDir);
+    }
+  }
+
+  @Override
+  public void stop() {
+    executor.shutdownNow();
   }
 
   /**
-   * Attempts to delete a project from the global refdb. Upon failure, it swallows {@link
-   * GlobalRefDbSystemError} exceptions and increments split brain metrics. Executed upon project
-   * deletion.
+   * Schedules the deletion of a project from the global refdb. Executed upon project deletion.
+   *
+   * <p>The removal is persisted and retried until it succeeds or the configured number of retries
+   * is exhausted, in which case split brain metrics are incremented and the removal is resumed at
+   * the next restart.
    *
    * @param event the project deletion event
    */
@@ -55,14 +125,108 @@ public class ProjectDeletedSharedDbCleanup implements ProjectDeletedListener {
     logger.atInfo().log(
         "Deleting project '%s'. Will perform a cleanup in Shared-Ref database.", projectName);
 
+    persistPendingCleanup(projectName);
+    metrics.incrementPendingProjectCleanups();
+    submit(new ProjectCleanupTask(Project.nameKey(projectName)), 0L);
+  }
+
+  private void submit(ProjectCleanupTask task, long delayMs) {
     try {
-      sharedDb.remove(Project.nameKey(projectName));
-    } catch (GlobalRefDbSystemError e) {
-      validationMetrics.incrementSplitBrain();
-      logger.atSevere().withCause(e).log(
-          "Project '%s' deleted from GIT but it was not able to cleanup"
-              + " from Shared-Ref database",
+      executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      metrics.decrementPendingProjectCleanups();
+      logger.atWarning().log(
+          "Cleanup of project '%s' from the Shared-Ref database interrupted by shutdown,"
+              + " it will be resumed at the next restart",
+          task.project);
+    }
+  }
+
+  private long retryDelayMs(int attempt) {
+    long delayMs = cfg.getProjectCleanupRetryDelayMs() << Math.min(attempt, 30);
+    return Math.min(delayMs, cfg.getProjectCleanupMaxRetryDelayMs());
+  }
+
+  private void persistPendingCleanup(String projectName) {
+    try {
+      Files.createDirectories(pendingCleanupDir);
+      Files.write(pendingCleanupFile(projectName), projectName.getBytes(UTF_8));
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to persist pending cleanup of project '%s', it will not survive a restart",
+          projectName);
+    }
+  }
+
+  private void removePendingCleanup(String projectName) {
+    try {
+      Files.delete(pendingCleanupFile(projectName));
+    } catch (NoSuchFileException e) {
+      // Nothing to remove, the cleanup was never persisted
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to remove pending cleanup of project '%s', it will be repeated at next restart",
           projectName);
     }
   }
+
+  private Path pendingCleanupFile(String projectName) {
+    return pendingCleanupDir.resolve(
+        Hashing.murmur3_128().hashString(projectName, UTF_8).toString());
+  }
+
+  private class ProjectCleanupTask implements Runnable {
+    private final Project.NameKey project;
+    private final long startNanos = System.nanoTime();
+    private int attempt;
+
+    ProjectCleanupTask(Project.NameKey project) {
+      this.project = project;
+    }
+
+    @Override
+    public void run() {
+      boolean removed;
+      try {
+        removed = sharedDb.remove(project, cfg.getProjectCleanupChunkSize());
+      } catch (RuntimeException e) {
+        if (attempt >= cfg.getProjectCleanupMaxRetries()) {
+          metrics.decrementPendingProjectCleanups();
+          validationMetrics.incrementSplitBrain();
+          logger.atSevere().withCause(e).log(
+              "Project '%s' deleted from GIT but it was not able to cleanup"
+                  + " from Shared-Ref database after %d attempts, will retry at next restart",
+              project, attempt + 1);
+          return;
+        }
+
+        long delayMs = retryDelayMs(attempt++);
+        metrics.incrementProjectCleanupRetries();
+        logger.atWarning().withCause(e).log(
+            "Unable to cleanup project '%s' from Shared-Ref database, retrying in %d ms",
+            project, delayMs);
+        submit(this, delayMs);
+        return;
+      }
+
+      // Each chunk removed is progress: only consecutive failures count towards the retries
+      attempt = 0;
+      if (!removed) {
+        // More refs are left: reschedule rather than looping, so that other projects can progress
+        submit(this, 0L);
+        return;
+      }
+
+      removePendingCleanup(project.get());
+      metrics.decrementPendingProjectCleanups();
+      metrics.recordProjectCleanupLatency(
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+      logger.atInfo().log("Project '%s' removed from Shared-Ref database", project);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Cleanup of project '%s' from the global refdb", project);
+    }
+  }
 }
@@ -14,6 +14,8 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
 import com.google.common.base.Strings;
 import com.google.common.collect.Sets;
 import com.google.gerrit.entities.Project;
@@ -24,6 +26,8 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 // import com.google.gerrit.entities.AccessSection;
 
@@ -71,18 +75,19 @@ public class ProjectsFilter {
     }
   }
 
-  private Set<NameKey> globalProjects = Sets.newConcurrentHashSet();
-  private Set<NameKey> localProjects = Sets.newConcurrentHashSet();
-  private final List<String> projectPatterns;
+  private volatile CompiledPatterns compiledPatterns;
 
   /**
-   * Constructs a {@code ProjectsFilter} by providing the libModule configuration
+   * Constructs a {@code ProjectsFilter} by providing the libModule configuration. The filter is
+   * rebuilt whenever the configuration is reloaded.
    *
    * @param cfg the libModule configuration
    */
   @Inject
   public ProjectsFilter(SharedRefDbConfiguration cfg) {
-    projectPatterns = cfg.projects().getPatterns();
+    compiledPatterns = new CompiledPatterns(cfg.projects().getPatterns());
+    cfg.addReloadListener(
+        () -> compiledPatterns = new CompiledPatterns(cfg.projects().getPatterns()));
   }
 
   /**
@@ -125,38 +130,54 @@ public class ProjectsFilter {
       throw new IllegalArgumentException(
           String.format("Project name cannot be null or empty, but was %s", name));
     }
-    if (projectPatterns.isEmpty() || globalProjects.contains(name)) {
-      return true;
-    }
+    return compiledPatterns.matches(name);
+  }
 
-    if (localProjects.contains(name)) {
-      return false;
-    }
+  /**
+   * Immutable set of project patterns, compiled once and swapped as a whole upon configuration
+   * reload, together with the cache of the projects already matched against them.
+   */
+  private static class CompiledPatterns {
+    private final Set<NameKey> globalProjects = Sets.newConcurrentHashSet();
+    private final Set<NameKey> localProjects = Sets.newConcurrentHashSet();
+    private final List<Predicate<String>> projectPatterns;
 
-    String projectName = name.get();
+    CompiledPatterns(List<String> patterns) {
+      projectPatterns = patterns.stream().map(CompiledPatterns::compile).collect(toImmutableList());
+    }
 
-    for (String pattern : projectPatterns) {
-      if (matchesPattern(projectName, pattern)) {
-        globalProjects.add(name);
+    boolean matches(Project.NameKey name) {
+      if (projectPatterns.isEmpty() || globalProjects.contains(name)) {
         return true;
       }
+
+      if (localProjects.contains(name)) {
+        return false;
+      }
+
+      String projectName = name.get();
+
+      for (Predicate<String> pattern : projectPatterns) {
+        if (pattern.test(projectName)) {
+          globalProjects.add(name);
+          return true;
+        }
+      }
+      localProjects.add(name);
+      return false;
     }
-    localProjects.add(name);
-    return false;
-  }
 
-  private boolean matchesPattern(String projectName, String pattern) {
-    boolean match = false;
-    switch (PatternType.getPatternType(pattern)) {
-      case REGEX:
-        match = projectName.matches(pattern);
-        break;
-      case WILDCARD:
-        match = projectName.startsWith(pattern.substring(0, pattern.length() - 1));
-        break;
-      case EXACT_MATCH:
-        match = projectName.equals(pattern);
+    private static Predicate<String> compile(String pattern) {
+      switch (PatternType.getPatternType(pattern)) {
+        case REGEX:
+          return Pattern.compile(pattern).asMatchPredicate();
+        case WILDCARD:
+          String prefix = pattern.substring(0, pattern.length() - 1);
+          return projectName -> projectName.startsWith(prefix);
+        case EXACT_MATCH:
+        default:
+          return pattern::equals;
+      }
     }
-    return match;
   }
 }
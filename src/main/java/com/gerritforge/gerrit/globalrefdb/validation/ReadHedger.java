@@ -0,0 +1,220 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.Deadline;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Hedges the read-only operations on the global refdb: when the first attempt has not completed
+ * within the configured percentile of the recently observed latencies, a second attempt is sent and
+ * the first successful result is used.
+ *
+ * <p>The hedges are capped by a budget, expressed as a percentage of the reads, so that a globally
+ * slow backend does not receive twice the load.
+ */
+@Singleton
+public class ReadHedger {
+  @VisibleForTesting static final int LATENCY_SAMPLES = 1024;
+  @VisibleForTesting static final int DELAY_UPDATE_INTERVAL = 128;
+  private static final double MAX_HEDGE_CREDITS = 10;
+
+  private final GlobalRefDbExecutor executor;
+  private final SharedRefDBMetrics metrics;
+  private final boolean enabled;
+  private final int percentile;
+  private final long minDelayNanos;
+  private final double creditsPerRead;
+
+  private final long[] latencySamples = new long[LATENCY_SAMPLES];
+  private int latencySamplesCount;
+  private int nextLatencySample;
+  private int samplesSinceDelayUpdate;
+  private double hedgeCredits;
+  private volatile long hedgeDelayNanos = -1;
+
+  /**
+   * Constructs a {@code ReadHedger}.
+   *
+   * @param executor executor of the attempts of the read operations
+   * @param metrics to record the hedges fired and won
+   * @param cfg the global refdb configuration, defining the latency percentile, the minimum delay
+   *     and the budget of the hedges
+   */
+  @Inject
+  public ReadHedger(
+      GlobalRefDbExecutor executor, SharedRefDBMetrics metrics, SharedRefDbConfiguration cfg) {
+    SharedRefDbConfiguration.SharedRefDatabase sharedRefDbCfg = cfg.getSharedRefDb();
+    this.executor = executor;
+    this.metrics = metrics;
+    this.percentile = Math.min(99, sharedRefDbCfg.getHedgingPercentile());
+    this.enabled = percentile > 0;
+    this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(sharedRefDbCfg.getHedgingMinDelayMs());
+    this.creditsPerRead = Math.max(0, sharedRefDbCfg.getHedgingBudget()) / 100.0;
+  }
+
+  /**
+   * Executes a read operation, hedging it when enabled.
+   *
+   * <p>The attempts run within the {@link Deadline#current()} deadline of the calling thread, which
+   * also bounds the wait for their result.
+   *
+   * @param operation the read operation, executed once per attempt
+   * @param <T> type of the result of the operation
+   * @return the result of the first successful attempt
+   * @throws GlobalRefDbSystemError when the deadline expires before the result is available
+   */
+  public <T> T read(Supplier<T> operation) {
+    return read(operation, Deadline.current());
+  }
+
+  /**
+   * Same as {@link #read(Supplier)}, but within the given deadline.
+   *
+   * @param operation the read operation, executed once per attempt
+   * @param deadline the deadline of the attempts and of the wait for their result
+   * @param <T> type of the result of the operation
+   * @return the result of the first successful attempt
+   * @throws GlobalRefDbSystemError when the deadline expires before the result is available
+   */
+  public <T> T read(Supplier<T> operation, Deadline deadline) {
+    if (!enabled) {
+      return operation.get();
+    }
+
+    CompletableFuture<T> result = readAsync(operation, deadline);
+    if (deadline.isBounded()) {
+      result = result.orTimeout(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS);
+    }
+    try {
+      return result.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        metrics.incrementDeadlineExceeded();
+        throw new GlobalRefDbSystemError(
+            "Deadline expired waiting for the global refdb read", (TimeoutException) e.getCause());
+      }
+      return GlobalRefDbExecutor.await(result);
+    }
+  }
+
+  /**
+   * Same as {@link #read(Supplier)}, but without waiting for the result.
+   *
+   * <p>The attempts run within the {@link Deadline#current()} deadline of the calling thread.
+   *
+   * @param operation the read operation, executed once per attempt
+   * @param <T> type of the result of the operation
+   * @return the future result of the first successful attempt
+   */
+  public <T> CompletableFuture<T> readAsync(Supplier<T> operation) {
+    return readAsync(operation, Deadline.current());
+  }
+
+  private <T> CompletableFuture<T> readAsync(Supplier<T> read, Deadline deadline) {
+    // Captured on the calling thread, as the attempts run on other ones
+    Supplier<T> operation =
+        () -> {
+          try (Deadline.Scope scope = deadline.enter()) {
+            return read.get();
+          }
+        };
+    if (!enabled) {
+      return executor.supplyAsync(operation);
+    }
+
+    long startNanos = System.nanoTime();
+    CompletableFuture<T> primary = executor.supplyAsync(operation);
+    primary.whenComplete((v, e) -> recordLatency(System.nanoTime() - startNanos));
+    long delayNanos = onRead();
+    if (delayNanos < 0) {
+      return primary;
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    AtomicInteger attempts = new AtomicInteger(1);
+    primary.whenComplete(completeWith(result, attempts, false));
+    CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS, Runnable::run)
+        .execute(
+            () -> {
+              // The attempts are only added while the result is still pending
+              if (result.isDone()
+                  || !tryAcquireHedge()
+                  || attempts.getAndUpdate(n -> n == 0 ? 0 : n + 1) == 0) {
+                return;
+              }
+              metrics.incrementHedgedReads();
+              executor.supplyAsync(operation).whenComplete(completeWith(result, attempts, true));
+            });
+    return result;
+  }
+
+  private <T> BiConsumer<T, Throwable> completeWith(
+      CompletableFuture<T> result, AtomicInteger attempts, boolean hedge) {
+    return (value, error) -> {
+      if (error == null) {
+        if (result.complete(value) && hedge) {
+          metrics.incrementHedgedReadsWon();
+        }
+      } else if (attempts.decrementAndGet() == 0) {
+        result.completeExceptionally(error);
+      }
+    };
+  }
+
+  /** Accrues the hedge budget of a read and returns the hedge delay, negative while unknown. */
+  private synchronized long onRead() {
+    hedgeCredits = Math.min(MAX_HEDGE_CREDITS, hedgeCredits + creditsPerRead);
+    return hedgeDelayNanos;
+  }
+
+  private synchronized boolean tryAcquireHedge() {
+    if (hedgeCredits < 1) {
+      return false;
+    }
+    hedgeCredits--;
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized void recordLatency(long latencyNanos) {
+    latencySamples[nextLatencySample] = latencyNanos;
+    nextLatencySample = (nextLatencySample + 1) % LATENCY_SAMPLES;
+    latencySamplesCount = Math.min(LATENCY_SAMPLES, latencySamplesCount + 1);
+    if (++samplesSinceDelayUpdate == DELAY_UPDATE_INTERVAL) {
+      samplesSinceDelayUpdate = 0;
+      long[] sortedSamples = Arrays.copyOf(latencySamples, latencySamplesCount);
+      Arrays.sort(sortedSamples);
+      int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+      hedgeDelayNanos = Math.max(minDelayNanos, sortedSamples[Math.max(0, index)]);
+    }
+  }
+
+  @VisibleForTesting
+  long getHedgeDelayNanos() {
+    return hedgeDelayNanos;
+  }
+}
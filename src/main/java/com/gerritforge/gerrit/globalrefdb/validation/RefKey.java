@@ -0,0 +1,51 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.gerrit.entities.Project;
+import java.util.Objects;
+
+/** Key of a ref of a project, serialising the background processing of its updates. */
+class RefKey {
+  final Project.NameKey project;
+  final String refName;
+
+  RefKey(Project.NameKey project, String refName) {
+    this.project = project;
+    this.refName = refName;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof RefKey)) {
+      return false;
+    }
+    RefKey other = (RefKey) o;
+    return project.equals(other.project) && refName.equals(other.refName);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(project, refName);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s:%s", project, refName);
+  }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.CloseableSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session holding the global ref locks acquired by the ref updates of the current thread until it
+ * is closed, so that multi-step operations updating the same refs several times, such as a submit,
+ * lock each of them in the global refdb only once.
+ *
+ * <pre>{@code
+ * try (RefLockSession session = RefLockSession.open()) {
+ *   // ref updates of the operation
+ * }
+ * }</pre>
+ *
+ * <p>While the session is open, the locks already held are found by a local lookup and all of them
+ * are released together when the session is closed. Sessions opened while another one is open join
+ * it, and their closing has no effect. Locks are held for longer than the single updates, hence
+ * sessions should only cover operations that complete in a short time. A session must be closed by
+ * the thread that opened it.
+ *
+ * <p>No acquisition order is imposed on the refs of a session, hence two sessions locking the same
+ * refs in a different order wait for each other. The wait for the locks within a session is
+ * therefore always bounded, by the {@code ref-database.lockTimeout} or by its default when
+ * disabled, so that one of the sessions fails its update with a lock failure instead of
+ * deadlocking.
+ */
+public final class RefLockSession implements AutoCloseable {
+  private static final ThreadLocal<RefLockSession> CURRENT = new ThreadLocal<>();
+
+  private final Map<String, HashMap<String, AutoCloseable>> locksByProject;
+  private final boolean owner;
+
+  private RefLockSession(
+      Map<String, HashMap<String, AutoCloseable>> locksByProject, boolean owner) {
+    this.locksByProject = locksByProject;
+    this.owner = owner;
+  }
+
+  /**
+   * Opens a session on the calling thread, or joins the one already open.
+   *
+   * @return the session to be closed to release its locks
+   */
+  public static RefLockSession open() {
+    RefLockSession current = CURRENT.get();
+    if (current != null) {
+      return new RefLockSession(current.locksByProject, false);
+    }
+
+    RefLockSession session = new RefLockSession(new HashMap<>(), true);
+    CURRENT.set(session);
+    return session;
+  }
+
+  /**
+   * Whether a session is open on the calling thread.
+   *
+   * @return true when a session is open, false otherwise
+   */
+  public static boolean isOpen() {
+    return CURRENT.get() != null;
+  }
+
+  /**
+   * Returns the locks of a ref update on a project: the locks held by the session open on the
+   * calling thread, which are not released when the update closes them, or new locks otherwise.
+   *
+   * @param projectName the name of the project being updated
+   * @return the locks of the update
+   */
+  static CloseableSet<AutoCloseable> newLocks(String projectName) {
+    RefLockSession current = CURRENT.get();
+    if (current == null) {
+      return new CloseableSet<>();
+    }
+    return new CloseableSet<>(
+        current.locksByProject.computeIfAbsent(projectName, p -> new HashMap<>())) {
+      @Override
+      public void close() {
+        // Released by the session
+      }
+    };
+  }
+
+  /** Releases the locks held by the session, unless joined to another one. */
+  @Override
+  public void close() {
+    if (!owner) {
+      return;
+    }
+
+    CURRENT.remove();
+    for (HashMap<String, AutoCloseable> locks : locksByProject.values()) {
+      new CloseableSet<>(locks).close();
+    }
+    locksByProject.clear();
+  }
+}
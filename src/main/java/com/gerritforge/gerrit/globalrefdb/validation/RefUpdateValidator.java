@@ -14,6 +14,7 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.Deadline;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.CustomSharedRefEnforcementByProject;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
@@ -22,14 +23,17 @@ import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedDbSplitBrain
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedLockException;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
-import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.FluentLogger;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.cancellation.RequestStateContext;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
 import org.eclipse.jgit.lib.Ref;
@@ -40,16 +44,23 @@ import org.eclipse.jgit.lib.RefUpdate.Result;
 /** Enables the detection of out-of-sync by validating ref updates against the global refdb. */
 public class RefUpdateValidator {
   private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final Duration DEFAULT_LOCK_TIMEOUT =
+      Duration.ofMillis(SharedRefDbConfiguration.SharedRefDatabase.DEFAULT_LOCK_TIMEOUT_MS);
 
   protected final SharedRefDatabaseWrapper sharedRefDb;
   protected final ValidationMetrics validationMetrics;
 
   protected final String projectName;
-  private final LockWrapper.Factory lockWrapperFactory;
+  protected final Project.NameKey projectNameKey;
+  protected final LockWrapper.Factory lockWrapperFactory;
   protected final RefDatabase refDb;
   protected final SharedRefEnforcement refEnforcement;
   protected final ProjectsFilter projectsFilter;
+  protected final AsyncRefPublisher asyncRefPublisher;
+  protected final ShadowRefValidator shadowRefValidator;
+  protected final LocalRefLocks localRefLocks;
   private final ImmutableSet<String> ignoredRefs;
+  private final Duration lockTimeout;
 
   /** {@code RefUpdateValidator} Factory for Guice assisted injection. */
   public interface Factory {
@@ -57,6 +68,16 @@ public class RefUpdateValidator {
         String projectName, RefDatabase refDb, ImmutableSet<String> ignoredRefs);
   }
 
+  /** Outcome of a ref-update setting a ref to the value it already has. */
+  public enum IdenticalValueOutcome {
+    /**
+     * The ref is up-to-date with the global refdb and the update is neither locked nor published.
+     */
+    SHORT_CIRCUITED,
+    /** The ref is not up-to-date with the global refdb and the update is fully validated. */
+    VALIDATED
+  }
+
   public interface ExceptionThrowingSupplier<T, E extends Exception> {
     T create() throws E;
   }
@@ -94,6 +115,13 @@ public class RefUpdateValidator {
    * @param lockWrapperFactory factory providing a {@link LockWrapper}
    * @param projectsFilter filter to match whether the project being updated should be validated
    *     against global refdb
+   * @param asyncRefPublisher publisher of the ref updates under the {@link EnforcePolicy#ASYNC}
+   *     policy
+   * @param shadowRefValidator validator of the ref updates under the {@link EnforcePolicy#SHADOW}
+   *     policy
+   * @param localRefLocks node-local table of the ref locks, queueing the threads of this node
+   *     locking the same ref before requesting it to the global refdb
+   * @param cfg the global refdb configuration, defining the lock timeout
    * @param projectName the name of the project being updated.
    * @param refDb for ref operations
    * @param ignoredRefs A set of refs for which updates should not be checked against the shared
@@ -106,6 +134,10 @@ public class RefUpdateValidator {
       SharedRefEnforcement refEnforcement,
       LockWrapper.Factory lockWrapperFactory,
       ProjectsFilter projectsFilter,
+      AsyncRefPublisher asyncRefPublisher,
+      ShadowRefValidator shadowRefValidator,
+      LocalRefLocks localRefLocks,
+      SharedRefDbConfiguration cfg,
       @Assisted String projectName,
       @Assisted RefDatabase refDb,
       @Assisted ImmutableSet<String> ignoredRefs) {
@@ -115,8 +147,57 @@ public class RefUpdateValidator {
     this.refDb = refDb;
     this.ignoredRefs = ignoredRefs;
     this.projectName = projectName;
+    this.projectNameKey = Project.nameKey(projectName);
     this.refEnforcement = refEnforcement;
     this.projectsFilter = projectsFilter;
+    this.asyncRefPublisher = asyncRefPublisher;
+    this.shadowRefValidator = shadowRefValidator;
+    this.localRefLocks = localRefLocks;
+    this.lockTimeout = Duration.ofMillis(Math.max(0L, cfg.getSharedRefDb().getLockTimeoutMs()));
+  }
+
+  /**
+   * Constructs a {@code RefUpdateValidator} able to check the validity of ref-updates against a
+   * global refdb before execution.
+   *
+   * @param sharedRefDb an instance of the global refdb to check for out-of-sync refs.
+   * @param validationMetrics to update validation results, such as split-brains.
+   * @param refEnforcement Specific ref enforcements for this project.
+   * @param lockWrapperFactory factory providing a {@link LockWrapper}
+   * @param projectsFilter filter to match whether the project being updated should be validated
+   *     against global refdb
+   * @param projectName the name of the project being updated.
+   * @param refDb for ref operations
+   * @param ignoredRefs A set of refs for which updates should not be checked against the shared
+   *     ref-db
+   * @deprecated use the injected constructor. The validators constructed without a publisher and a
+   *     validator of background updates enforce the {@link EnforcePolicy#ASYNC} and {@link
+   *     EnforcePolicy#SHADOW} policies as {@link EnforcePolicy#REQUIRED}, and lock the refs without
+   *     coalescing, bounded by the default lock timeout.
+   */
+  @Deprecated
+  public RefUpdateValidator(
+      SharedRefDatabaseWrapper sharedRefDb,
+      ValidationMetrics validationMetrics,
+      SharedRefEnforcement refEnforcement,
+      LockWrapper.Factory lockWrapperFactory,
+      ProjectsFilter projectsFilter,
+      String projectName,
+      RefDatabase refDb,
+      ImmutableSet<String> ignoredRefs) {
+    this(
+        sharedRefDb,
+        validationMetrics,
+        new SynchronousRefEnforcement(refEnforcement),
+        lockWrapperFactory,
+        projectsFilter,
+        null,
+        null,
+        DefaultLocking.LOCAL_REF_LOCKS,
+        DefaultLocking.CONFIGURATION,
+        projectName,
+        refDb,
+        ignoredRefs);
   }
 
   /**
@@ -132,7 +213,7 @@ public class RefUpdateValidator {
    *   <li>The ref being updated is not to be ignored ({@link
    *       RefUpdateValidator#isRefToBeIgnored(String)})
    *   <li>The project being updated is a global project ({@link
-   *       RefUpdateValidator#isGlobalProject(String)}
+   *       RefUpdateValidator#isGlobalProject()}
    *   <li>The enforcement policy for the project being updated is {@link EnforcePolicy#IGNORED}
    * </ul>
    *
@@ -148,18 +229,45 @@ public class RefUpdateValidator {
       NoParameterFunction<RefUpdate.Result> refUpdateFunction,
       OneParameterFunction<ObjectId, Result> rollbackFunction)
       throws IOException {
+    return executeRefUpdate(refUpdate, refUpdateFunction, rollbackFunction, false);
+  }
+
+  /**
+   * Same as {@link #executeRefUpdate(RefUpdate, NoParameterFunction, OneParameterFunction)}, with
+   * the updates setting the ref to the value it already has locally and in the global refdb
+   * executed without being locked, validated or published when allowed.
+   *
+   * <p>Only updates of the value of the ref may allow it: deletes and links change the ref even
+   * when their new object id is its current value.
+   *
+   * @param refUpdate the refUpdate command
+   * @param refUpdateFunction the refUpdate function to execute after validation
+   * @param rollbackFunction function to invoke when the ref-update needs to be rolled back
+   * @param allowIdenticalValueShortCircuit whether an update to the current value of the ref can
+   *     skip its validation
+   * @return the result of the update, or "null" in case a split brain was detected but the policy
+   *     enforcement was not REQUIRED
+   * @throws IOException Execution of ref update failed
+   */
+  public RefUpdate.Result executeRefUpdate(
+      RefUpdate refUpdate,
+      NoParameterFunction<RefUpdate.Result> refUpdateFunction,
+      OneParameterFunction<ObjectId, Result> rollbackFunction,
+      boolean allowIdenticalValueShortCircuit)
+      throws IOException {
     if (isRefToBeIgnored(refUpdate.getName())
-        || !isGlobalProject(projectName)
+        || !isGlobalProject()
         || refEnforcement.getPolicy(projectName) == EnforcePolicy.IGNORED) {
       return refUpdateFunction.invoke();
     }
 
-    return doExecuteRefUpdate(refUpdate, refUpdateFunction, rollbackFunction);
+    return doExecuteRefUpdate(
+        refUpdate, refUpdateFunction, rollbackFunction, allowIdenticalValueShortCircuit);
   }
 
-  private Boolean isRefToBeIgnored(String refName) {
-    Boolean isRefToBeIgnored = ignoredRefs.contains(refName);
-    logger.atFine().log("Is project version update? " + isRefToBeIgnored);
+  private boolean isRefToBeIgnored(String refName) {
+    boolean isRefToBeIgnored = ignoredRefs.contains(refName);
+    logger.atFine().log("Is project version update? %s", isRefToBeIgnored);
     return isRefToBeIgnored;
   }
 
@@ -174,20 +282,40 @@ public class RefUpdateValidator {
     }
   }
 
-  protected Boolean isGlobalProject(String projectName) {
-    Boolean isGlobalProject = projectsFilter.matches(projectName);
-    logger.atFine().log("Is global project? " + isGlobalProject);
+  protected boolean isGlobalProject() {
+    boolean isGlobalProject = projectsFilter.matches(projectNameKey);
+    logger.atFine().log("Is global project? %s", isGlobalProject);
     return isGlobalProject;
   }
 
+  /**
+   * Checks whether a project should be validated against the global refdb.
+   *
+   * @param projectName the name of the project
+   * @return true when the project is validated against the global refdb
+   * @deprecated use {@link #isGlobalProject()}, which checks the project of this validator without
+   *     allocating its name key. Overrides of this method are not invoked by the validator.
+   */
+  @Deprecated
+  protected Boolean isGlobalProject(String projectName) {
+    return projectsFilter.matches(Project.nameKey(projectName));
+  }
+
   protected RefUpdate.Result doExecuteRefUpdate(
       RefUpdate refUpdate,
       NoParameterFunction<Result> refUpdateFunction,
-      OneParameterFunction<ObjectId, Result> rollbackFunction)
+      OneParameterFunction<ObjectId, Result> rollbackFunction,
+      boolean allowIdenticalValueShortCircuit)
       throws IOException {
-    try (CloseableSet<AutoCloseable> locks = new CloseableSet<>()) {
-      RefPair refPairForUpdate = newRefPairFrom(refUpdate);
-      compareAndGetLatestLocalRef(refPairForUpdate, locks);
+    if (allowIdenticalValueShortCircuit && isIdenticalValueUpdate(refUpdate)) {
+      // Guards the unlocked update against concurrent changes of the local ref, which would
+      // otherwise be overwritten without being validated
+      refUpdate.setExpectedOldObjectId(refUpdate.getNewObjectId());
+      return refUpdateFunction.invoke();
+    }
+
+    try (CloseableSet<AutoCloseable> locks = newLocks()) {
+      RefPair refPairForUpdate = lockAndGetLatestLocalRef(refUpdate, locks);
       RefUpdate.Result result = refUpdateFunction.invoke();
       try {
         if (isSuccessful(result)) {
@@ -212,23 +340,32 @@ public class RefUpdateValidator {
     }
   }
 
+  /**
+   * Publishes the new value of the ref to the global refdb, according to its enforcement policy:
+   * written straight away, handed off to the background publication or validation, or ignored.
+   *
+   * @param refPair the previous and new value of the ref
+   * @throws IOException when the global refdb could not be updated
+   */
   protected void updateSharedDbOrThrowExceptionFor(RefPair refPair) throws IOException {
     // We are not checking refs that should be ignored
     final EnforcePolicy refEnforcementPolicy =
         refEnforcement.getPolicy(projectName, refPair.getName());
     if (refEnforcementPolicy == EnforcePolicy.IGNORED) return;
 
-    String errorMessage =
-        String.format(
-            "Not able to persist the data in Zookeeper for project '%s' and ref '%s',"
-                + "the cluster is now in Split Brain since the commit has been "
-                + "persisted locally but not in SharedRef the value %s",
-            projectName, refPair.getName(), refPair.putValue);
+    if (refEnforcementPolicy == EnforcePolicy.ASYNC) {
+      asyncRefPublisher.publish(projectNameKey, refPair.compareRef, refPair.putValue);
+      return;
+    }
+
+    if (refEnforcementPolicy == EnforcePolicy.SHADOW) {
+      shadowRefValidator.validate(projectNameKey, refPair.compareRef, refPair.putValue);
+      return;
+    }
+
     boolean succeeded;
     try {
-      succeeded =
-          sharedRefDb.compareAndPut(
-              Project.nameKey(projectName), refPair.compareRef, refPair.putValue);
+      succeeded = sharedRefDb.compareAndPut(projectNameKey, refPair.compareRef, refPair.putValue);
     } catch (GlobalRefDbSystemError e) {
       logger.atWarning().withCause(e).log(
           "Not able to persist the data in Zookeeper for project '%s' and ref '%s', message: %s",
@@ -237,37 +374,239 @@ public class RefUpdateValidator {
     }
 
     if (!succeeded) {
-      throw new SharedDbSplitBrainException(errorMessage);
+      throw new SharedDbSplitBrainException(
+          String.format(
+              "Not able to persist the data in Zookeeper for project '%s' and ref '%s',"
+                  + "the cluster is now in Split Brain since the commit has been "
+                  + "persisted locally but not in SharedRef the value %s",
+              projectName, refPair.getName(), refPair.putValue));
     }
   }
 
-  protected RefPair compareAndGetLatestLocalRef(RefPair refPair, CloseableSet<AutoCloseable> locks)
-      throws SharedLockException, OutOfSyncException, IOException {
-    String refName = refPair.getName();
-    EnforcePolicy refEnforcementPolicy = refEnforcement.getPolicy(projectName, refName);
-    if (refEnforcementPolicy == EnforcePolicy.IGNORED) {
-      return refPair;
+  /**
+   * Whether refs under the given policy are written to the global refdb in the background, once
+   * updated locally, rather than by the update itself: published under {@link EnforcePolicy#ASYNC}
+   * or validated under {@link EnforcePolicy#SHADOW}.
+   *
+   * @param refEnforcementPolicy the enforcement policy of the ref
+   * @return true when the ref is written in the background, false otherwise
+   */
+  protected static boolean isWrittenInBackground(EnforcePolicy refEnforcementPolicy) {
+    return refEnforcementPolicy == EnforcePolicy.ASYNC
+        || refEnforcementPolicy == EnforcePolicy.SHADOW;
+  }
+
+  /**
+   * Whether refs under the given policy are locked and validated against the global refdb before
+   * being updated.
+   *
+   * @param refEnforcementPolicy the enforcement policy of the ref
+   * @return true when the ref is locked and validated, false otherwise
+   */
+  protected static boolean isValidatedUnderLock(EnforcePolicy refEnforcementPolicy) {
+    return refEnforcementPolicy != EnforcePolicy.IGNORED
+        && refEnforcementPolicy != EnforcePolicy.ASYNC
+        && refEnforcementPolicy != EnforcePolicy.SHADOW;
+  }
+
+  /**
+   * Returns the locks of an update, held by the {@link RefLockSession} when open on the current
+   * thread.
+   *
+   * @return the locks of the update, to be closed when the update is completed
+   */
+  protected CloseableSet<AutoCloseable> newLocks() {
+    return RefLockSession.newLocks(projectName);
+  }
+
+  /**
+   * Locks a ref in the global refdb, unless already covered by the locks held.
+   *
+   * <p>Gives up straight away when the current request has been cancelled, for example because its
+   * Gerrit deadline has been exceeded, and once the {@link Deadline#current()} deadline expires
+   * while waiting for the lock.
+   *
+   * <p>The threads of this node locking the same ref queue in the {@link LocalRefLocks}, so that
+   * only one of them at a time waits for the lock in the global refdb.
+   *
+   * @param refName the name of the ref
+   * @param locks the locks held by the update
+   * @throws SharedLockException when the lock could not be wrapped
+   */
+  protected void lockRef(String refName, CloseableSet<AutoCloseable> locks)
+      throws SharedLockException {
+    RequestStateContext.abortIfCancelled();
+    // Locks are scoped to a single project, hence the ref name is enough for identifying them.
+    // The lock of the whole project, when held, covers the ref already.
+    if (!locks.containsResource(SharedRefDatabaseWrapper.ALL_REFS)) {
+      locks.addResourceIfNotExist(
+          refName,
+          () -> {
+            Deadline deadline = lockDeadline();
+            return lockWrapperFactory.create(
+                projectName,
+                refName,
+                localRefLocks.lock(
+                    projectName,
+                    refName,
+                    deadline,
+                    () -> sharedRefDb.lockRef(projectNameKey, refName, deadline)));
+          });
     }
+  }
 
-    locks.addResourceIfNotExist(
-        String.format("%s-%s", projectName, refName),
-        () ->
-            lockWrapperFactory.create(
-                projectName, refName, sharedRefDb.lockRef(Project.nameKey(projectName), refName)));
+  /**
+   * Returns the deadline of a lock acquisition: the {@link Deadline#current()} deadline of the
+   * thread, bounded by the configured lock timeout. Within a {@link RefLockSession} the wait is
+   * bounded by the default lock timeout even when disabled, as sessions locking the same refs in a
+   * different order would otherwise deadlock.
+   */
+  private Deadline lockDeadline() {
+    Duration timeout =
+        lockTimeout.isZero() && RefLockSession.isOpen() ? DEFAULT_LOCK_TIMEOUT : lockTimeout;
+    Deadline deadline = Deadline.current();
+    return timeout.isZero() ? deadline : deadline.earliest(Deadline.after(timeout));
+  }
+
+  /**
+   * Checks that the local value of the ref, read once its lock is held, is up-to-date with the
+   * global refdb.
+   *
+   * @param latestRefPair the latest local value of the ref and its new value
+   * @param refEnforcementPolicy the enforcement policy of the ref
+   * @throws OutOfSyncException when the local ref is out of sync and the policy is {@link
+   *     EnforcePolicy#REQUIRED}
+   */
+  protected void checkIsUpToDate(RefPair latestRefPair, EnforcePolicy refEnforcementPolicy)
+      throws OutOfSyncException {
+    checkIsUpToDate(
+        latestRefPair,
+        refEnforcementPolicy,
+        sharedRefDb.isUpToDate(projectNameKey, latestRefPair.compareRef));
+  }
 
-    RefPair latestRefPair = getLatestLocalRef(refPair);
-    if (sharedRefDb.isUpToDate(Project.nameKey(projectName), latestRefPair.compareRef)) {
-      return latestRefPair;
+  /**
+   * Same as {@link #checkIsUpToDate(RefPair, EnforcePolicy)}, for a ref whose local value has
+   * already been compared with the global refdb.
+   *
+   * @param latestRefPair the latest local value of the ref and its new value
+   * @param refEnforcementPolicy the enforcement policy of the ref
+   * @param isUpToDate whether the local value of the ref is up-to-date with the global refdb
+   * @throws OutOfSyncException when the local ref is out of sync and the policy is {@link
+   *     EnforcePolicy#REQUIRED}
+   */
+  protected void checkIsUpToDate(
+      RefPair latestRefPair, EnforcePolicy refEnforcementPolicy, boolean isUpToDate)
+      throws OutOfSyncException {
+    if (isUpToDate) {
+      return;
     }
 
     if (isNullRef(latestRefPair.compareRef)
-        || sharedRefDb.exists(Project.nameKey(projectName), refName)) {
+        || sharedRefDb.exists(projectNameKey, latestRefPair.getName())) {
       validationMetrics.incrementSplitBrainPrevention();
 
       softFailBasedOnEnforcement(
           new OutOfSyncException(projectName, latestRefPair.compareRef), refEnforcementPolicy);
     }
+  }
+
+  private boolean isIdenticalValueUpdate(RefUpdate refUpdate) {
+    // The ref read by the local refdb when creating the update is used, so that no extra lookup
+    // is needed for the updates of refs to a different value
+    Ref localRef = refUpdate.getRef();
+    if (localRef == null
+        || localRef.isSymbolic()
+        || (refUpdate.getExpectedOldObjectId() != null
+            && !refUpdate.getExpectedOldObjectId().equals(refUpdate.getNewObjectId()))) {
+      return false;
+    }
+    return isIdenticalValueUpToDate(
+        refUpdate.getName(), localRef.getObjectId(), refUpdate.getNewObjectId());
+  }
+
+  /**
+   * Checks whether a ref-update sets the ref to the value it already has locally and the global
+   * refdb has it too, in which case it does not need to be locked, validated or published.
+   *
+   * <p>Only refs under a policy requiring their validation under lock are checked, with a single
+   * lookup of the global refdb.
+   *
+   * @param refName the name of the ref
+   * @param currentId the current local value of the ref, null when it does not exist
+   * @param newId the value the ref is updated to
+   * @return true when the ref has already the new value locally and in the global refdb
+   */
+  protected boolean isIdenticalValueUpToDate(String refName, ObjectId currentId, ObjectId newId) {
+    if (newId == null
+        || ObjectId.zeroId().equals(newId)
+        || !newId.equals(currentId)
+        || !isValidatedUnderLock(refEnforcement.getPolicy(projectName, refName))) {
+      return false;
+    }
+
+    if (sharedRefDb.isUpToDate(
+        projectNameKey, new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, newId))) {
+      validationMetrics.incrementIdenticalValueUpdate(IdenticalValueOutcome.SHORT_CIRCUITED);
+      return true;
+    }
+    validationMetrics.incrementIdenticalValueUpdate(IdenticalValueOutcome.VALIDATED);
+    return false;
+  }
+
+  /**
+   * Creates the pair of the current local value of the ref being updated and its new value.
+   *
+   * @param refUpdate the ref-update
+   * @return the current local value of the ref and its new value
+   * @throws IOException when the local ref cannot be read
+   * @deprecated reading the local ref before its lock is held requires reading it again once
+   *     locked, use {@link #compareAndGetLatestLocalRef(RefPair, CloseableSet)} which reads it
+   *     once, after locking it.
+   */
+  @Deprecated
+  protected RefPair newRefPairFrom(RefUpdate refUpdate) throws IOException {
+    return new RefPair(getCurrentRef(refUpdate.getName()), refUpdate.getNewObjectId());
+  }
+
+  /**
+   * Locks the ref, when validated under lock, and checks that its latest local value is up-to-date
+   * with the global refdb.
+   *
+   * @param refPair the ref being updated and its new value, only its name and new value are used
+   * @param locks the locks held by the update
+   * @return the latest local value of the ref, read once locked, and its new value
+   * @throws SharedLockException when the ref cannot be locked
+   * @throws OutOfSyncException when the local ref is out of sync and the policy is {@link
+   *     EnforcePolicy#REQUIRED}
+   * @throws IOException when the local ref cannot be read
+   * @deprecated the value of the ref in the pair is ignored, the ref being read after locking it.
+   *     Kept for the subclasses of the validator.
+   */
+  @Deprecated
+  protected RefPair compareAndGetLatestLocalRef(RefPair refPair, CloseableSet<AutoCloseable> locks)
+      throws SharedLockException, OutOfSyncException, IOException {
+    return lockAndGetLatestLocalRef(refPair.getName(), refPair.putValue, locks);
+  }
+
+  private RefPair lockAndGetLatestLocalRef(RefUpdate refUpdate, CloseableSet<AutoCloseable> locks)
+      throws IOException {
+    return lockAndGetLatestLocalRef(refUpdate.getName(), refUpdate.getNewObjectId(), locks);
+  }
+
+  private RefPair lockAndGetLatestLocalRef(
+      String refName, ObjectId newId, CloseableSet<AutoCloseable> locks) throws IOException {
+    EnforcePolicy refEnforcementPolicy = refEnforcement.getPolicy(projectName, refName);
+    boolean validatedUnderLock = isValidatedUnderLock(refEnforcementPolicy);
+    if (validatedUnderLock) {
+      lockRef(refName, locks);
+    }
 
+    // The local ref is read only once, after the lock is held
+    RefPair latestRefPair = new RefPair(getCurrentRef(refName), newId);
+    if (validatedUnderLock) {
+      checkIsUpToDate(latestRefPair, refEnforcementPolicy);
+    }
     return latestRefPair;
   }
 
@@ -275,12 +614,6 @@ public class RefUpdateValidator {
     return ref.getObjectId().equals(ObjectId.zeroId());
   }
 
-  private RefPair getLatestLocalRef(RefPair refPair) throws IOException {
-    Ref latestRef = refDb.exactRef(refPair.getName());
-    return new RefPair(
-        latestRef == null ? nullRef(refPair.getName()) : latestRef, refPair.putValue);
-  }
-
   private Ref nullRef(String name) {
     return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, name, ObjectId.zeroId());
   }
@@ -306,12 +639,54 @@ public class RefUpdateValidator {
     }
   }
 
-  protected RefPair newRefPairFrom(RefUpdate refUpdate) throws IOException {
-    return new RefPair(getCurrentRef(refUpdate.getName()), refUpdate.getNewObjectId());
+  protected Ref getCurrentRef(String refName) throws IOException {
+    Ref currentRef = refDb.exactRef(refName);
+    return currentRef != null ? currentRef : nullRef(refName);
   }
 
-  protected Ref getCurrentRef(String refName) throws IOException {
-    return MoreObjects.firstNonNull(refDb.findRef(refName), nullRef(refName));
+  /** Enforces the policies of refs written in background as {@link EnforcePolicy#REQUIRED}. */
+  private static class SynchronousRefEnforcement implements SharedRefEnforcement {
+    private final SharedRefEnforcement refEnforcement;
+
+    SynchronousRefEnforcement(SharedRefEnforcement refEnforcement) {
+      this.refEnforcement = refEnforcement;
+    }
+
+    @Override
+    public EnforcePolicy getPolicy(String projectName, String refName) {
+      return synchronous(refEnforcement.getPolicy(projectName, refName));
+    }
+
+    @Override
+    public EnforcePolicy getPolicy(String projectName) {
+      return synchronous(refEnforcement.getPolicy(projectName));
+    }
+
+    @Override
+    public boolean isRefToBeIgnoredBySharedRefDb(String refName) {
+      return refEnforcement.isRefToBeIgnoredBySharedRefDb(refName);
+    }
+
+    private static EnforcePolicy synchronous(EnforcePolicy policy) {
+      return isWrittenInBackground(policy) ? EnforcePolicy.REQUIRED : policy;
+    }
+  }
+
+  /** Default locking of the validators constructed without a configuration. */
+  private static class DefaultLocking {
+    static final SharedRefDbConfiguration CONFIGURATION = newConfiguration();
+    static final LocalRefLocks LOCAL_REF_LOCKS =
+        new LocalRefLocks(new SharedRefDBMetrics(new DisabledMetricMaker()), CONFIGURATION);
+
+    private static SharedRefDbConfiguration newConfiguration() {
+      Config config = new Config();
+      config.setBoolean(
+          SharedRefDbConfiguration.SharedRefDatabase.SECTION,
+          null,
+          SharedRefDbConfiguration.SharedRefDatabase.LOCAL_LOCK_COALESCING_KEY,
+          false);
+      return new SharedRefDbConfiguration(config, "global-refdb");
+    }
   }
 
   public static class CloseableSet<T extends AutoCloseable> implements AutoCloseable {
@@ -325,6 +700,14 @@ public class RefUpdateValidator {
       this.elements = elements;
     }
 
+    public boolean containsResource(String key) {
+      return elements.containsKey(key);
+    }
+
+    public boolean isEmpty() {
+      return elements.isEmpty();
+    }
+
     public void addResourceIfNotExist(
         String key, ExceptionThrowingSupplier<T, SharedLockException> resourceFactory)
         throws SharedLockException {
@@ -335,19 +718,17 @@ public class RefUpdateValidator {
 
     @Override
     public void close() {
-      elements.values().stream()
-          .forEach(
-              closeable -> {
-                try {
-                  closeable.close();
-                } catch (Exception closingException) {
-                  logger.atSevere().withCause(closingException).log(
-                      "Exception trying to release resource %s, "
-                          + "the locked resources won't be accessible in all cluster unless"
-                          + " the lock is removed from ZK manually",
-                      closeable);
-                }
-              });
+      for (AutoCloseable closeable : elements.values()) {
+        try {
+          closeable.close();
+        } catch (Exception closingException) {
+          logger.atSevere().withCause(closingException).log(
+              "Exception trying to release resource %s, "
+                  + "the locked resources won't be accessible in all cluster unless"
+                  + " the lock is removed from ZK manually",
+              closeable);
+        }
+      }
     }
   }
 }
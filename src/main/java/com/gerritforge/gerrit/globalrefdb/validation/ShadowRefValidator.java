@@ -0,0 +1,310 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Validates against the global refdb, in background, the ref updates subject to the {@link
+ * EnforcePolicy#SHADOW} policy.
+ *
+ * <p>The validation performed is the same of the {@link EnforcePolicy#REQUIRED} policy, but its
+ * outcome and latency are only recorded in metrics: the ref update has already been executed
+ * locally and is never rolled back. Validations are executed on a bounded pool and are dropped when
+ * the pool is saturated, so that the shadow mode never slows down the ref updates.
+ *
+ * <p>The validations of the same ref are executed in order, one at a time. As the validations
+ * publish the new values to the global refdb, a dropped validation leaves the global refdb behind
+ * the local ref: the next validation of the ref then publishes its new value on top of the one in
+ * the global refdb, without recording its outcome, which would be an out-of-sync caused by the
+ * shadow mode itself.
+ */
+@Singleton
+public class ShadowRefValidator implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String SHADOW_VALIDATOR_QUEUE_NAME = "GlobalRefDbShadowValidator";
+
+  /** Outcome a ref update would have had if the validation was enforced. */
+  public enum Outcome {
+    /** The ref update would have been accepted and published to the global refdb. */
+    SUCCESS,
+    /** The ref update would have been rejected because the local ref was out of sync. */
+    OUT_OF_SYNC,
+    /** The global refdb rejected the new value, the ref update would have been rolled back. */
+    SPLIT_BRAIN,
+    /** The ref update would have failed because the global lock could not be acquired. */
+    LOCK_FAILURE,
+    /** The ref update would have failed because of a global refdb error. */
+    ERROR,
+    /**
+     * The validation was not performed because the shadow validation pool was saturated or the
+     * global refdb circuit breaker was open.
+     */
+    DROPPED;
+  }
+
+  private final SharedRefDatabaseWrapper sharedDb;
+  private final ValidationMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final WorkQueue workQueue;
+  private final int maxValidations;
+  private final AtomicInteger validations = new AtomicInteger();
+  private final ConcurrentMap<RefKey, RefValidations> validationsByRef = new ConcurrentHashMap<>();
+  private volatile ScheduledExecutorService executor;
+
+  /**
+   * Constructs a {@code ShadowRefValidator}.
+   *
+   * @param sharedDb global refdb the ref updates are validated against
+   * @param metrics to record the would-be outcomes and latency of the validations
+   * @param cfg the global refdb configuration, defining the size of the validation pool
+   * @param workQueue to create the queue executing the validations
+   */
+  @Inject
+  public ShadowRefValidator(
+      SharedRefDatabaseWrapper sharedDb,
+      ValidationMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      WorkQueue workQueue) {
+    this.sharedDb = sharedDb;
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.workQueue = workQueue;
+    this.maxValidations =
+        this.cfg.getShadowValidationThreads() + this.cfg.getShadowValidationQueueSize();
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Queues the shadow validation of a ref update, which has already been applied to the local
+   * refdb.
+   *
+   * @param project project name of the ref
+   * @param currRef value of the ref before the update
+   * @param newRefValue value of the ref after the update
+   */
+  public void validate(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    RefKey key = new RefKey(project, currRef.getName());
+    if (sharedDb.isCircuitOpen()) {
+      drop(key, "the global refdb circuit breaker is open");
+      return;
+    }
+
+    // The work queues are unbounded, hence the validations running or waiting for a thread are
+    // counted to drop the ones exceeding the pool and its queue
+    if (validations.incrementAndGet() > maxValidations) {
+      validations.decrementAndGet();
+      drop(key, "the validation pool is saturated");
+      return;
+    }
+
+    boolean[] schedule = new boolean[1];
+    validationsByRef.compute(
+        key,
+        (k, v) -> {
+          if (v == null) {
+            v = new RefValidations();
+          }
+          v.pending.add(new PendingValidation(currRef, newRefValue));
+          schedule[0] = !v.running;
+          v.running = true;
+          return v;
+        });
+    if (!schedule[0]) {
+      return;
+    }
+
+    try {
+      executor().execute(() -> validateInOrder(key));
+    } catch (RejectedExecutionException e) {
+      RefValidations rejected = validationsByRef.remove(key);
+      for (PendingValidation validation : rejected.pending) {
+        if (validation != PendingValidation.DROPPED) {
+          validations.decrementAndGet();
+          drop(key, "the validation pool is shut down");
+        }
+      }
+    }
+  }
+
+  private void drop(RefKey key, String reason) {
+    metrics.incrementShadowValidation(Outcome.DROPPED);
+    logger.atFine().log("Shadow validation of %s dropped, %s", key, reason);
+    validationsByRef.compute(
+        key,
+        (k, v) -> {
+          if (v == null) {
+            v = new RefValidations();
+          }
+          // Queued in order, so that only the validations following the dropped one resync the ref
+          v.pending.add(PendingValidation.DROPPED);
+          return v;
+        });
+  }
+
+  private void validateInOrder(RefKey key) {
+    while (true) {
+      PendingValidation[] next = new PendingValidation[1];
+      boolean[] resync = new boolean[1];
+      validationsByRef.computeIfPresent(
+          key,
+          (k, v) -> {
+            while ((next[0] = v.pending.poll()) == PendingValidation.DROPPED) {
+              v.resync = true;
+            }
+            if (next[0] == null) {
+              v.running = false;
+              return v.resync ? v : null;
+            }
+            resync[0] = v.resync;
+            v.resync = false;
+            return v;
+          });
+      if (next[0] == null) {
+        return;
+      }
+
+      try {
+        if (resync[0]) {
+          resync(key, next[0].newRefValue);
+        } else {
+          doValidate(key.project, next[0].currRef, next[0].newRefValue);
+        }
+      } finally {
+        validations.decrementAndGet();
+      }
+    }
+  }
+
+  private void resync(RefKey key, ObjectId newRefValue) {
+    try (AutoCloseable lock = sharedDb.lockRef(key.project, key.refName)) {
+      ObjectId globalValue =
+          sharedDb.get(key.project, key.refName, ObjectId.class).orElse(ObjectId.zeroId());
+      Ref globalRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, key.refName, globalValue);
+      boolean resynced =
+          globalValue.equals(newRefValue)
+              || sharedDb.compareAndPut(key.project, globalRef, newRefValue);
+      logger.atFine().log(
+          "Shadow validation of %s=%s skipped after a dropped one, resync from %s: %s",
+          key, newRefValue.getName(), globalValue.getName(), resynced);
+    } catch (Exception e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to resync %s in the global refdb after a dropped shadow validation", key);
+    }
+  }
+
+  @VisibleForTesting
+  void doValidate(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    String refName = currRef.getName();
+    long startNanos = System.nanoTime();
+    Outcome outcome;
+    try (AutoCloseable lock = sharedDb.lockRef(project, refName)) {
+      outcome = validateUnderLock(project, currRef, newRefValue);
+    } catch (GlobalRefDbLockException e) {
+      outcome = Outcome.LOCK_FAILURE;
+    } catch (GlobalRefDbSystemError e) {
+      outcome = Outcome.ERROR;
+    } catch (Exception e) {
+      logger.atWarning().withCause(e).log(
+          "Unable to release the global lock of %s:%s", project, refName);
+      outcome = Outcome.ERROR;
+    }
+
+    metrics.recordShadowValidationLatency(
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    metrics.incrementShadowValidation(outcome);
+    logger.atFine().log(
+        "Shadow validation of %s:%s=%s: %s", project, refName, newRefValue.getName(), outcome);
+  }
+
+  private Outcome validateUnderLock(Project.NameKey project, Ref currRef, ObjectId newRefValue) {
+    if (!sharedDb.isUpToDate(project, currRef)
+        && (currRef.getObjectId().equals(ObjectId.zeroId())
+            || sharedDb.exists(project, currRef.getName()))) {
+      // The global refdb is not updated, as it would not have been with the REQUIRED policy
+      return Outcome.OUT_OF_SYNC;
+    }
+
+    return sharedDb.compareAndPut(project, currRef, newRefValue)
+        ? Outcome.SUCCESS
+        : Outcome.SPLIT_BRAIN;
+  }
+
+  /**
+   * Validations of a ref, only accessed within the compute functions of the validations map, which
+   * serialise the access for each ref.
+   */
+  private static class RefValidations {
+    private final Deque<PendingValidation> pending = new ArrayDeque<>();
+    private boolean running;
+    private boolean resync;
+  }
+
+  private static class PendingValidation {
+    /** Marks the position of a dropped validation among the pending ones. */
+    private static final PendingValidation DROPPED = new PendingValidation(null, null);
+
+    private final Ref currRef;
+    private final ObjectId newRefValue;
+
+    PendingValidation(Ref currRef, ObjectId newRefValue) {
+      this.currRef = currRef;
+      this.newRefValue = newRefValue;
+    }
+  }
+
+  private ScheduledExecutorService executor() {
+    ScheduledExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = workQueue.createQueue(cfg.getShadowValidationThreads(), SHADOW_VALIDATOR_QUEUE_NAME);
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Reverts, in parallel, the refs already published to the global refdb by a batch ref-update which
+ * failed to publish the rest of its refs and is being rolled back locally.
+ *
+ * <p>Each ref is reverted with a compare-and-put from the published value back to the previous one,
+ * so that a ref updated in the meantime by another node is never overwritten. Refs which cannot be
+ * reverted leave the local node in split-brain and are recorded as such in the metrics.
+ */
+@Singleton
+public class SharedRefCompensator implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String COMPENSATOR_QUEUE_NAME = "GlobalRefDbCompensator";
+
+  /** Outcome of the compensation of a ref published to the global refdb. */
+  public enum Outcome {
+    /** The ref has been reverted to its previous value. */
+    SUCCESS,
+    /** The ref could not be reverted and the global refdb keeps the published value. */
+    FAILURE
+  }
+
+  private final SharedRefDatabaseWrapper sharedDb;
+  private final ValidationMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final WorkQueue workQueue;
+  private volatile ExecutorService executor;
+
+  /**
+   * Constructs a {@code SharedRefCompensator}.
+   *
+   * @param sharedDb global refdb the published refs are reverted in
+   * @param metrics to record the outcome of the compensations
+   * @param cfg the global refdb configuration, defining the size of the compensation pool
+   * @param workQueue to create the queue executing the compensations
+   */
+  @Inject
+  public SharedRefCompensator(
+      SharedRefDatabaseWrapper sharedDb,
+      ValidationMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      WorkQueue workQueue) {
+    this.sharedDb = sharedDb;
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.workQueue = workQueue;
+  }
+
+  @Override
+  public void start() {}
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reverts the refs published to the global refdb and waits for the completion of all of them.
+   *
+   * @param project project name of the refs
+   * @param publishedRefs the refs published, with their previous and published values
+   * @return true when all the refs have been reverted, false otherwise
+   */
+  public boolean compensate(Project.NameKey project, List<RefPair> publishedRefs) {
+    if (publishedRefs.size() == 1) {
+      return revert(project, publishedRefs.get(0));
+    }
+
+    List<Future<Boolean>> reverts = new ArrayList<>(publishedRefs.size());
+    for (RefPair refPair : publishedRefs) {
+      reverts.add(executor().submit(() -> revert(project, refPair)));
+    }
+
+    boolean compensated = true;
+    for (int i = 0; i < reverts.size(); i++) {
+      try {
+        compensated &= reverts.get(i).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        recordFailure(project, publishedRefs.get(i), e);
+        compensated = false;
+      } catch (ExecutionException e) {
+        recordFailure(project, publishedRefs.get(i), e.getCause());
+        compensated = false;
+      }
+    }
+    return compensated;
+  }
+
+  private boolean revert(Project.NameKey project, RefPair refPair) {
+    Ref publishedRef =
+        new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refPair.getName(), refPair.putValue);
+    try {
+      if (sharedDb.compareAndPut(project, publishedRef, refPair.compareRef.getObjectId())) {
+        metrics.incrementCompensation(Outcome.SUCCESS);
+        logger.atFine().log(
+            "Reverted %s:%s to %s in the global refdb",
+            project, refPair.getName(), refPair.compareRef.getObjectId().getName());
+        return true;
+      }
+      recordFailure(project, refPair, null);
+    } catch (RuntimeException e) {
+      recordFailure(project, refPair, e);
+    }
+    return false;
+  }
+
+  private void recordFailure(Project.NameKey project, RefPair refPair, Throwable cause) {
+    metrics.incrementCompensation(Outcome.FAILURE);
+    metrics.incrementSplitBrain();
+    logger.atSevere().withCause(cause).log(
+        "Unable to revert %s:%s to %s in the global refdb, the local node is in split-brain",
+        project, refPair.getName(), refPair.compareRef.getObjectId().getName());
+  }
+
+  private ExecutorService executor() {
+    ExecutorService e = executor;
+    if (e == null) {
+      synchronized (this) {
+        e = executor;
+        if (e == null) {
+          e = workQueue.createQueue(cfg.getCompensationThreads(), COMPENSATOR_QUEUE_NAME);
+          executor = e;
+        }
+      }
+    }
+    return e;
+  }
+}
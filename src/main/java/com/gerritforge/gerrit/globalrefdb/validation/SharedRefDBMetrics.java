@@ -14,22 +14,55 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.MetricMaker;
 import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.metrics.Timer0.Context;
+import com.google.gerrit.metrics.Timer1;
+import com.google.gerrit.server.logging.PluginMetadata;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Singleton
 public class SharedRefDBMetrics {
 
   private final Timer0 lockRefExecutionTime;
+  private final Timer0 lockProjectExecutionTime;
   private final Timer0 getOperationExecutionTime;
   private final Timer0 existsExecutionTime;
   private Timer0 compareAndPutExecutionTime;
   private Timer0 removeExecutionTime;
   private Timer0 isUpToDateExecutionTime;
+  private final Timer0 projectCleanupLatency;
+  private final Counter0 projectCleanupRetries;
+  private final AtomicLong pendingProjectCleanups = new AtomicLong();
+  private final Timer0 compareAndRemoveExecutionTime;
+  private final Timer0 allocateBlockExecutionTime;
+  private final Counter0 allocatedValues;
+  private final Counter0 purgedTombstones;
+  private final Counter0 retainedTombstones;
+  private final AtomicLong pendingTombstones = new AtomicLong();
+  private final Timer0 asyncPublicationLag;
+  private final Counter0 coalescedAsyncPublications;
+  private final Counter0 failedAsyncPublications;
+  private final AtomicLong pendingAsyncPublications = new AtomicLong();
+  private final AtomicLong inFlightOperations = new AtomicLong();
+  private final AtomicLong concurrencyLimit = new AtomicLong();
+  private final AtomicLong concurrencyLimitQueueDepth = new AtomicLong();
+  private final Counter0 concurrencyLimitRejections;
+  private final Timer1<String> concurrencyLimitQueueWait;
+  private final AtomicLong circuitBreakerState = new AtomicLong();
+  private final Counter1<String> circuitBreakerTransitions;
+  private final Counter0 circuitBreakerRejections;
+  private final Counter0 hedgedReads;
+  private final Counter0 hedgedReadsWon;
+  private final Counter0 deadlineExceeded;
+  private final Counter0 localLockWaits;
 
   @Inject
   public SharedRefDBMetrics(MetricMaker metricMaker) {
@@ -52,6 +85,12 @@ public class SharedRefDBMetrics {
             new Description("Time spent on locking ref.")
                 .setCumulative()
                 .setUnit(Description.Units.MILLISECONDS));
+    lockProjectExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/lock_project_latency",
+            new Description("Time spent on locking all the refs of a project.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
     existsExecutionTime =
         metricMaker.newTimer(
             "global_refdb/exists_latency",
@@ -70,6 +109,185 @@ public class SharedRefDBMetrics {
             new Description("Time spent on checking in global ref-db if ref is up-to-date.")
                 .setCumulative()
                 .setUnit(Description.Units.MILLISECONDS));
+    projectCleanupLatency =
+        metricMaker.newTimer(
+            "global_refdb/project_cleanup_latency",
+            new Description(
+                    "Time elapsed between a project deletion and its complete removal from the"
+                        + " global-ref db, including retries.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    projectCleanupRetries =
+        metricMaker.newCounter(
+            "global_refdb/project_cleanup_retries",
+            new Description("Number of failed project removals scheduled for a retry.")
+                .setRate()
+                .setUnit("retries"));
+    metricMaker.newCallbackMetric(
+        "global_refdb/project_cleanup_pending",
+        Long.class,
+        new Description("Number of deleted projects waiting to be removed from the global-ref db.")
+            .setGauge()
+            .setUnit("projects"),
+        pendingProjectCleanups::get);
+    compareAndRemoveExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/compare_and_remove_latency",
+            new Description("Time spent on compareAndRemove.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    allocateBlockExecutionTime =
+        metricMaker.newTimer(
+            "global_refdb/allocate_block_latency",
+            new Description("Time spent on allocating a block of values of a counter.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    allocatedValues =
+        metricMaker.newCounter(
+            "global_refdb/allocated_values",
+            new Description("Number of values of counters allocated in the global-ref db.")
+                .setRate()
+                .setUnit("values"));
+    purgedTombstones =
+        metricMaker.newCounter(
+            "global_refdb/tombstones_purged",
+            new Description("Number of tombstones of deleted refs purged from the global-ref db.")
+                .setRate()
+                .setUnit("tombstones"));
+    retainedTombstones =
+        metricMaker.newCounter(
+            "global_refdb/tombstones_retained",
+            new Description(
+                    "Number of expired tombstones retained in the global-ref db because re-created"
+                        + " or failed to be removed.")
+                .setRate()
+                .setUnit("tombstones"));
+    metricMaker.newCallbackMetric(
+        "global_refdb/tombstones_pending",
+        Long.class,
+        new Description("Number of tombstones of deleted refs waiting for their grace period.")
+            .setGauge()
+            .setUnit("tombstones"),
+        pendingTombstones::get);
+    asyncPublicationLag =
+        metricMaker.newTimer(
+            "global_refdb/async_publication_lag",
+            new Description(
+                    "Time elapsed between a local ref update under the ASYNC policy and its"
+                        + " publication to the global-ref db.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+    coalescedAsyncPublications =
+        metricMaker.newCounter(
+            "global_refdb/async_publications_coalesced",
+            new Description(
+                    "Number of ASYNC ref updates superseded by a newer value before being published.")
+                .setRate()
+                .setUnit("updates"));
+    failedAsyncPublications =
+        metricMaker.newCounter(
+            "global_refdb/async_publications_failed",
+            new Description(
+                    "Number of ASYNC ref updates dropped because the global-ref db has diverged.")
+                .setRate()
+                .setUnit("updates"));
+    metricMaker.newCallbackMetric(
+        "global_refdb/async_publications_pending",
+        Long.class,
+        new Description("Number of refs with ASYNC updates waiting to be published.")
+            .setGauge()
+            .setUnit("refs"),
+        pendingAsyncPublications::get);
+    metricMaker.newCallbackMetric(
+        "global_refdb/in_flight_operations",
+        Long.class,
+        new Description(
+                "Number of global-ref db operations offloaded to the executor and not completed yet.")
+            .setGauge()
+            .setUnit("operations"),
+        inFlightOperations::get);
+    metricMaker.newCallbackMetric(
+        "global_refdb/concurrency_limit",
+        Long.class,
+        new Description("Number of concurrent operations currently allowed on the global-ref db.")
+            .setGauge()
+            .setUnit("operations"),
+        concurrencyLimit::get);
+    metricMaker.newCallbackMetric(
+        "global_refdb/concurrency_limit_queue_depth",
+        Long.class,
+        new Description("Number of global-ref db operations waiting for the concurrency limit.")
+            .setGauge()
+            .setUnit("operations"),
+        concurrencyLimitQueueDepth::get);
+    concurrencyLimitRejections =
+        metricMaker.newCounter(
+            "global_refdb/concurrency_limit_rejections",
+            new Description(
+                    "Number of global-ref db operations rejected because of the concurrency limit.")
+                .setRate()
+                .setUnit("operations"));
+    concurrencyLimitQueueWait =
+        metricMaker.newTimer(
+            "global_refdb/concurrency_limit_queue_wait",
+            new Description(
+                    "Time spent by global-ref db operations waiting for the concurrency limit.")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS),
+            stringField("lane", "Priority lane of the operation"));
+    metricMaker.newCallbackMetric(
+        "global_refdb/circuit_breaker_state",
+        Long.class,
+        new Description(
+                "State of the global-ref db circuit breaker: 0 when closed, 1 when half-open and 2"
+                    + " when open.")
+            .setGauge()
+            .setUnit("state"),
+        circuitBreakerState::get);
+    circuitBreakerTransitions =
+        metricMaker.newCounter(
+            "global_refdb/circuit_breaker_transitions",
+            new Description("Number of transitions of the global-ref db circuit breaker.")
+                .setRate()
+                .setUnit("transitions"),
+            stringField("state", "State the circuit breaker moved to"));
+    circuitBreakerRejections =
+        metricMaker.newCounter(
+            "global_refdb/circuit_breaker_rejections",
+            new Description(
+                    "Number of global-ref db operations rejected because the circuit breaker is"
+                        + " open.")
+                .setRate()
+                .setUnit("operations"));
+    hedgedReads =
+        metricMaker.newCounter(
+            "global_refdb/hedged_reads",
+            new Description(
+                    "Number of global-ref db read operations for which a second attempt was sent.")
+                .setRate()
+                .setUnit("operations"));
+    hedgedReadsWon =
+        metricMaker.newCounter(
+            "global_refdb/hedged_reads_won",
+            new Description(
+                    "Number of global-ref db read operations completed by their second attempt.")
+                .setRate()
+                .setUnit("operations"));
+    deadlineExceeded =
+        metricMaker.newCounter(
+            "global_refdb/deadline_exceeded",
+            new Description(
+                    "Number of global-ref db operations given up because their deadline expired.")
+                .setRate()
+                .setUnit("operations"));
+    localLockWaits =
+        metricMaker.newCounter(
+            "global_refdb/local_lock_waits",
+            new Description(
+                    "Number of ref locks waited for locally, because held by another thread of"
+                        + " the same node, before requesting them to the global-ref db.")
+                .setRate()
+                .setUnit("locks"));
   }
 
   public Context startCompareAndPutExecutionTime() {
@@ -84,6 +302,10 @@ public class SharedRefDBMetrics {
     return lockRefExecutionTime.start();
   }
 
+  public Context startLockProjectExecutionTime() {
+    return lockProjectExecutionTime.start();
+  }
+
   public Context startExistsExecutionTime() {
     return existsExecutionTime.start();
   }
@@ -95,4 +317,143 @@ public class SharedRefDBMetrics {
   public Context startIsUpToDateExecutionTime() {
     return isUpToDateExecutionTime.start();
   }
+
+  public Context startCompareAndRemoveExecutionTime() {
+    return compareAndRemoveExecutionTime.start();
+  }
+
+  public Context startAllocateBlockExecutionTime() {
+    return allocateBlockExecutionTime.start();
+  }
+
+  public void incrementAllocatedValues(long values) {
+    allocatedValues.incrementBy(values);
+  }
+
+  public void recordProjectCleanupLatency(long durationMs) {
+    projectCleanupLatency.record(durationMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void incrementProjectCleanupRetries() {
+    projectCleanupRetries.increment();
+  }
+
+  public void incrementPendingProjectCleanups() {
+    pendingProjectCleanups.incrementAndGet();
+  }
+
+  public void decrementPendingProjectCleanups() {
+    pendingProjectCleanups.decrementAndGet();
+  }
+
+  public void incrementPendingTombstones() {
+    pendingTombstones.incrementAndGet();
+  }
+
+  public void decrementPendingTombstones() {
+    pendingTombstones.decrementAndGet();
+  }
+
+  public void incrementPurgedTombstones() {
+    purgedTombstones.increment();
+  }
+
+  public void incrementRetainedTombstones() {
+    retainedTombstones.increment();
+  }
+
+  public void recordAsyncPublicationLag(long lagMs) {
+    asyncPublicationLag.record(lagMs, TimeUnit.MILLISECONDS);
+  }
+
+  public void incrementCoalescedAsyncPublications() {
+    coalescedAsyncPublications.increment();
+  }
+
+  public void incrementFailedAsyncPublications() {
+    failedAsyncPublications.increment();
+  }
+
+  public void incrementPendingAsyncPublications() {
+    pendingAsyncPublications.incrementAndGet();
+  }
+
+  public void decrementPendingAsyncPublications() {
+    pendingAsyncPublications.decrementAndGet();
+  }
+
+  public void incrementInFlightOperations() {
+    inFlightOperations.incrementAndGet();
+  }
+
+  public void decrementInFlightOperations() {
+    inFlightOperations.decrementAndGet();
+  }
+
+  public void setConcurrencyLimit(long limit) {
+    concurrencyLimit.set(limit);
+  }
+
+  public void incrementConcurrencyLimitQueueDepth() {
+    concurrencyLimitQueueDepth.incrementAndGet();
+  }
+
+  public void decrementConcurrencyLimitQueueDepth() {
+    concurrencyLimitQueueDepth.decrementAndGet();
+  }
+
+  public void incrementConcurrencyLimitRejections() {
+    concurrencyLimitRejections.increment();
+  }
+
+  public void recordConcurrencyLimitQueueWait(PriorityLane lane, long waitNanos) {
+    concurrencyLimitQueueWait.record(lane.name().toLowerCase(), waitNanos, TimeUnit.NANOSECONDS);
+  }
+
+  public void setCircuitBreakerState(CircuitBreaker.State state) {
+    switch (state) {
+      case CLOSED:
+        circuitBreakerState.set(0);
+        break;
+      case HALF_OPEN:
+        circuitBreakerState.set(1);
+        break;
+      case OPEN:
+        circuitBreakerState.set(2);
+        break;
+    }
+  }
+
+  public void incrementCircuitBreakerTransitions(CircuitBreaker.State state) {
+    circuitBreakerTransitions.increment(state.name().toLowerCase());
+  }
+
+  public void incrementCircuitBreakerRejections() {
+    circuitBreakerRejections.increment();
+  }
+
+  public void incrementHedgedReads() {
+    hedgedReads.increment();
+  }
+
+  public void incrementHedgedReadsWon() {
+    hedgedReadsWon.increment();
+  }
+
+  public void incrementDeadlineExceeded() {
+    deadlineExceeded.increment();
+  }
+
+  public void incrementLocalLockWaits() {
+    localLockWaits.increment();
+  }
+
+  private static Field<String> stringField(String metadataKey, String description) {
+    return Field.ofString(
+            metadataKey,
+            (metadataBuilder, fieldValue) ->
+                metadataBuilder.addPluginMetadata(PluginMetadata.create(metadataKey, fieldValue)))
+        .description(description)
+        .build();
+  }
 }
@@ -14,16 +14,24 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.Deadline;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.NoopSharedRefDatabase;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.gerrit.entities.BranchNameKey;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.Timer0.Context;
 import com.google.inject.Inject;
+import java.time.Duration;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 
@@ -31,8 +39,16 @@ import org.eclipse.jgit.lib.Ref;
  * Wraps an instance of {@link GlobalRefDatabase} provided as {@link DynamicItem} via a Guice
  * binding. Such instance is bound optionally and, in case no explicit binding is registered a
  * {@link NoopSharedRefDatabase} instance is wrapped instead.
+ *
+ * <p>The operations give up with a {@link GlobalRefDbLockException} once the {@link
+ * Deadline#current()} deadline of the calling thread, or the one explicitly passed, has expired.
  */
 public class SharedRefDatabaseWrapper implements GlobalRefDatabase {
+  /** Name under which the locks of whole projects are logged. */
+  public static final String ALL_REFS = "refs/*";
+
+  private static final String ALL_PROJECTS = "*";
+
   private static final GlobalRefDatabase NOOP_REFDB = new NoopSharedRefDatabase();
 
   @Inject(optional = true)
@@ -40,97 +56,442 @@ public class SharedRefDatabaseWrapper implements GlobalRefDatabase {
 
   private final SharedRefLogger sharedRefLogger;
   private final SharedRefDBMetrics metrics;
+  private final Tombstones tombstones;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final CircuitBreaker circuitBreaker;
+  private final ReadHedger readHedger;
 
   /**
    * Constructs a {@code SharedRefDatabaseWrapper} wrapping an optional {@link GlobalRefDatabase},
    * which might have been bound by consumers of this library.
    *
    * @param sharedRefLogger logger of shared ref-db operations.
+   * @param metrics latency metrics of shared ref-db operations.
+   * @param tombstones registry of the deleted refs to be purged from the shared ref-db.
+   * @param concurrencyLimiter limiter of the concurrent operations on the shared ref-db.
+   * @param circuitBreaker breaker failing the operations fast while the shared ref-db is failing.
+   * @param readHedger hedger of the read-only operations, run off the calling thread when needed.
    */
   @Inject
-  public SharedRefDatabaseWrapper(SharedRefLogger sharedRefLogger, SharedRefDBMetrics metrics) {
+  public SharedRefDatabaseWrapper(
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      Tombstones tombstones,
+      ConcurrencyLimiter concurrencyLimiter,
+      CircuitBreaker circuitBreaker,
+      ReadHedger readHedger) {
     this.sharedRefLogger = sharedRefLogger;
     this.metrics = metrics;
+    this.tombstones = tombstones;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.circuitBreaker = circuitBreaker;
+    this.readHedger = readHedger;
   }
 
   @VisibleForTesting
   public SharedRefDatabaseWrapper(
       DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem,
       SharedRefLogger sharedRefLogger,
-      SharedRefDBMetrics metrics) {
-    this(sharedRefLogger, metrics);
+      SharedRefDBMetrics metrics,
+      Tombstones tombstones,
+      ConcurrencyLimiter concurrencyLimiter,
+      CircuitBreaker circuitBreaker,
+      ReadHedger readHedger) {
+    this(sharedRefLogger, metrics, tombstones, concurrencyLimiter, circuitBreaker, readHedger);
     this.sharedRefDbDynamicItem = sharedRefDbDynamicItem;
   }
 
+  /**
+   * Constructs a {@code SharedRefDatabaseWrapper} with the default configuration, which disables
+   * the tombstones, the concurrency limiter, the circuit breaker and the read hedging.
+   *
+   * @param sharedRefDbDynamicItem the {@link GlobalRefDatabase} to wrap
+   * @param sharedRefLogger logger of shared ref-db operations.
+   * @param metrics latency metrics of shared ref-db operations.
+   */
+  @VisibleForTesting
+  public SharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem,
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics) {
+    this(
+        sharedRefDbDynamicItem,
+        sharedRefLogger,
+        metrics,
+        new SharedRefDbConfiguration(new Config(), "global-refdb"));
+  }
+
+  private SharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem,
+      SharedRefLogger sharedRefLogger,
+      SharedRefDBMetrics metrics,
+      SharedRefDbConfiguration defaultCfg) {
+    this(
+        sharedRefDbDynamicItem,
+        sharedRefLogger,
+        metrics,
+        new Tombstones(defaultCfg, metrics),
+        new ConcurrencyLimiter(metrics, defaultCfg),
+        new CircuitBreaker(metrics, defaultCfg),
+        new ReadHedger(new GlobalRefDbExecutor(metrics, defaultCfg), metrics, defaultCfg));
+  }
+
+  /**
+   * Whether the {@link CircuitBreaker} is currently rejecting all the operations on the shared
+   * ref-db, so that the callers able to defer them can avoid even trying.
+   *
+   * @return true when the circuit breaker is open, false otherwise
+   */
+  public boolean isCircuitOpen() {
+    return circuitBreaker.isOpen();
+  }
+
+  /** {@inheritDoc}. The operation is hedged by the {@link ReadHedger}. */
   @Override
   public boolean isUpToDate(Project.NameKey project, Ref ref) throws GlobalRefDbLockException {
-    try (Context context = metrics.startIsUpToDateExecutionTime()) {
-      return sharedRefDb().isUpToDate(project, ref);
-    }
+    return isUpToDate(project, ref, Deadline.current());
   }
 
-  /** {@inheritDoc}. The operation is logged upon success. */
+  /** {@inheritDoc}. The operation is hedged by the {@link ReadHedger}. */
+  @Override
+  public boolean isUpToDate(Project.NameKey project, Ref ref, Deadline deadline)
+      throws GlobalRefDbLockException {
+    checkDeadline(deadline, project.get(), ref.getName());
+    return readHedger.read(() -> doIsUpToDate(project, ref, deadline), deadline);
+  }
+
+  /**
+   * Same as {@link #isUpToDate(Project.NameKey, Ref)}, but run on the {@link GlobalRefDbExecutor},
+   * so that the checks of multiple refs can be in flight at the same time.
+   *
+   * @param project project name of the ref
+   * @param ref to be checked against the shared ref-db
+   * @return the future outcome of the check
+   */
+  public CompletableFuture<Boolean> isUpToDateAsync(Project.NameKey project, Ref ref) {
+    // Captured on the calling thread, as the check runs on another one
+    Deadline deadline = Deadline.current();
+    checkDeadline(deadline, project.get(), ref.getName());
+    return readHedger.readAsync(() -> doIsUpToDate(project, ref, deadline));
+  }
+
+  private boolean doIsUpToDate(Project.NameKey project, Ref ref, Deadline deadline) {
+    return execute(
+        project.get(),
+        ref.getName(),
+        deadline,
+        () -> {
+          try (Context context = metrics.startIsUpToDateExecutionTime()) {
+            // Unbounded operations keep using the methods that all the implementations provide
+            return deadline.isBounded()
+                ? sharedRefDb().isUpToDate(project, ref, deadline)
+                : sharedRefDb().isUpToDate(project, ref);
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc}. The operation is logged upon success and deleted refs are tracked as tombstones
+   * to be purged.
+   */
   @Override
   public boolean compareAndPut(Project.NameKey project, Ref currRef, ObjectId newRefValue)
       throws GlobalRefDbSystemError {
-    try (Context context = metrics.startCompareAndPutExecutionTime()) {
-      boolean succeeded = sharedRefDb().compareAndPut(project, currRef, newRefValue);
-      if (succeeded) {
-        sharedRefLogger.logRefUpdate(project.get(), currRef, newRefValue);
+    return compareAndPut(project, currRef, newRefValue, Deadline.current());
+  }
+
+  /**
+   * {@inheritDoc}. The operation is logged upon success and deleted refs are tracked as tombstones
+   * to be purged.
+   */
+  @Override
+  public boolean compareAndPut(
+      Project.NameKey project, Ref currRef, ObjectId newRefValue, Deadline deadline)
+      throws GlobalRefDbSystemError {
+    checkDeadline(deadline, project.get(), currRef.getName());
+    boolean succeeded =
+        execute(
+            project.get(),
+            currRef.getName(),
+            () -> {
+              try (Context context = metrics.startCompareAndPutExecutionTime()) {
+                return deadline.isBounded()
+                    ? sharedRefDb().compareAndPut(project, currRef, newRefValue, deadline)
+                    : sharedRefDb().compareAndPut(project, currRef, newRefValue);
+              }
+            });
+    if (succeeded) {
+      sharedRefLogger.logRefUpdate(project.get(), currRef, newRefValue);
+      if (ObjectId.zeroId().equals(newRefValue)) {
+        tombstones.add(project, currRef.getName());
       }
-      return succeeded;
     }
+    return succeeded;
   }
 
   /** {@inheritDoc} the operation is logged upon success. */
   @Override
   public <T> boolean compareAndPut(Project.NameKey project, String refName, T currValue, T newValue)
       throws GlobalRefDbSystemError {
-    try (Context context = metrics.startCompareAndPutExecutionTime()) {
-      boolean succeeded = sharedRefDb().compareAndPut(project, refName, currValue, newValue);
-      if (succeeded) {
-        sharedRefLogger.logRefUpdate(project.get(), refName, currValue, newValue);
-      }
-      return succeeded;
+    boolean succeeded =
+        execute(
+            project.get(),
+            refName,
+            () -> {
+              try (Context context = metrics.startCompareAndPutExecutionTime()) {
+                return sharedRefDb().compareAndPut(project, refName, currValue, newValue);
+              }
+            });
+    if (succeeded) {
+      sharedRefLogger.logRefUpdate(project.get(), refName, currValue, newValue);
     }
+    return succeeded;
   }
 
-  /** {@inheritDoc}. The operation is logged. */
+  /**
+   * {@inheritDoc}. The operation is logged.
+   *
+   * <p>Lock acquisitions are not subject to the {@link ConcurrencyLimiter}, as their latency
+   * includes the wait for the other nodes to release the lock and says nothing about the health of
+   * the shared ref-db. They are rejected while the {@link CircuitBreaker} is open, and their
+   * failures are counted by it, including the lock timeouts, unless caused by the lock being held
+   * by someone else.
+   */
   @Override
   public AutoCloseable lockRef(Project.NameKey project, String refName)
       throws GlobalRefDbLockException {
+    return lockRef(project, refName, Deadline.current());
+  }
+
+  /**
+   * {@inheritDoc}. The operation is logged.
+   *
+   * <p>The lock is waited for at most the given timeout, or until the {@link Deadline#current()}
+   * deadline expires if earlier.
+   */
+  @Override
+  public AutoCloseable tryLockRef(Project.NameKey project, String refName, Duration timeout)
+      throws GlobalRefDbLockException {
+    return lockRef(project, refName, Deadline.current().earliest(Deadline.after(timeout)));
+  }
+
+  /** {@inheritDoc}. The operation is logged. */
+  @Override
+  public AutoCloseable lockRef(Project.NameKey project, String refName, Deadline deadline)
+      throws GlobalRefDbLockException {
+    checkDeadline(deadline, project.get(), refName);
+    CircuitBreaker.Call call = circuitBreaker.enter(project.get(), refName);
     try (Context context = metrics.startLockRefExecutionTime()) {
-      AutoCloseable locker = sharedRefDb().lockRef(project, refName);
+      AutoCloseable locker =
+          deadline.isBounded()
+              ? sharedRefDb().tryLockRef(project, refName, deadline.remaining())
+              : sharedRefDb().lockRef(project, refName);
+      call.succeeded();
       sharedRefLogger.logLockAcquisition(project.get(), refName);
       return locker;
+    } catch (RuntimeException e) {
+      reportLockFailure(call, e);
+      throw e;
     }
   }
 
+  /** {@inheritDoc}. The operation is logged when the lock is acquired. */
   @Override
-  public boolean exists(Project.NameKey project, String refName) {
-    try (Context context = metrics.startExistsExecutionTime()) {
-      return sharedRefDb().exists(project, refName);
+  public Optional<AutoCloseable> lockProject(Project.NameKey project)
+      throws GlobalRefDbLockException {
+    CircuitBreaker.Call call = circuitBreaker.enter(project.get(), ALL_REFS);
+    try (Context context = metrics.startLockProjectExecutionTime()) {
+      Optional<AutoCloseable> locker = sharedRefDb().lockProject(project);
+      call.succeeded();
+      if (locker.isPresent()) {
+        sharedRefLogger.logLockAcquisition(project.get(), ALL_REFS);
+      }
+      return locker;
+    } catch (RuntimeException e) {
+      reportLockFailure(call, e);
+      throw e;
     }
   }
 
+  /** {@inheritDoc}. The operation is hedged by the {@link ReadHedger}. */
+  @Override
+  public boolean exists(Project.NameKey project, String refName) {
+    // Captured on the calling thread, as the attempts of hedged reads run on other ones
+    Deadline deadline = Deadline.current();
+    return readHedger.read(
+        () ->
+            execute(
+                project.get(),
+                refName,
+                deadline,
+                () -> {
+                  try (Context context = metrics.startExistsExecutionTime()) {
+                    return sharedRefDb().exists(project, refName);
+                  }
+                }),
+        deadline);
+  }
+
   /** {@inheritDoc}. The operation is logged. */
   @Override
   public void remove(Project.NameKey project) throws GlobalRefDbSystemError {
-    try (Context context = metrics.startRemoveExecutionTime()) {
-      sharedRefDb().remove(project);
+    execute(
+        project.get(),
+        ALL_REFS,
+        () -> {
+          try (Context context = metrics.startRemoveExecutionTime()) {
+            sharedRefDb().remove(project);
+            return null;
+          }
+        });
+    sharedRefLogger.logProjectDelete(project.get());
+  }
+
+  /** {@inheritDoc}. The operation is logged once the project has been completely removed. */
+  @Override
+  public boolean remove(Project.NameKey project, int maxRefs) throws GlobalRefDbSystemError {
+    boolean removed =
+        execute(
+            project.get(),
+            ALL_REFS,
+            () -> {
+              try (Context context = metrics.startRemoveExecutionTime()) {
+                return sharedRefDb().remove(project, maxRefs);
+              }
+            });
+    if (removed) {
       sharedRefLogger.logProjectDelete(project.get());
     }
+    return removed;
+  }
+
+  /** {@inheritDoc}. The operation is logged upon success. */
+  @Override
+  public boolean compareAndRemove(Project.NameKey project, Ref currRef)
+      throws GlobalRefDbSystemError {
+    boolean removed =
+        execute(
+            project.get(),
+            currRef.getName(),
+            () -> {
+              try (Context context = metrics.startCompareAndRemoveExecutionTime()) {
+                return sharedRefDb().compareAndRemove(project, currRef);
+              }
+            });
+    if (removed) {
+      sharedRefLogger.logRefRemoval(project.get(), currRef.getName());
+    }
+    return removed;
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public List<BranchNameKey> listTombstones(long deletedBeforeMillis, int maxTombstones)
+      throws GlobalRefDbSystemError {
+    return execute(
+        ALL_PROJECTS,
+        ALL_REFS,
+        () -> sharedRefDb().listTombstones(deletedBeforeMillis, maxTombstones));
+  }
+
+  /** {@inheritDoc}. The operation is logged. */
+  @Override
+  public long allocateBlock(Project.NameKey project, String refName, long blockSize)
+      throws GlobalRefDbSystemError {
+    long firstValue =
+        execute(
+            project.get(),
+            refName,
+            () -> {
+              try (Context context = metrics.startAllocateBlockExecutionTime()) {
+                return sharedRefDb().allocateBlock(project, refName, blockSize);
+              }
+            });
+    metrics.incrementAllocatedValues(blockSize);
+    sharedRefLogger.logRefUpdate(
+        project.get(), refName, firstValue - 1, firstValue + blockSize - 1);
+    return firstValue;
+  }
+
+  /** {@inheritDoc}. The operation is hedged by the {@link ReadHedger}. */
   @Override
   public <T> Optional<T> get(Project.NameKey nameKey, String s, Class<T> clazz)
       throws GlobalRefDbSystemError {
-    try (Context context = metrics.startGetExecutionTime()) {
-      return sharedRefDb().get(nameKey, s, clazz);
+    // Captured on the calling thread, as the attempts of hedged reads run on other ones
+    Deadline deadline = Deadline.current();
+    return readHedger.read(
+        () ->
+            execute(
+                nameKey.get(),
+                s,
+                deadline,
+                () -> {
+                  try (Context context = metrics.startGetExecutionTime()) {
+                    return sharedRefDb().get(nameKey, s, clazz);
+                  }
+                }),
+        deadline);
+  }
+
+  /**
+   * Executes an operation on the shared ref-db through the {@link CircuitBreaker} and the {@link
+   * ConcurrencyLimiter}, reporting its outcome to the breaker. Rejections by the limiter are not
+   * failures of the shared ref-db and are therefore not counted by the breaker.
+   */
+  private <T> T execute(String project, String refName, Supplier<T> operation) {
+    return execute(project, refName, Deadline.current(), operation);
+  }
+
+  private <T> T execute(String project, String refName, Deadline deadline, Supplier<T> operation) {
+    checkDeadline(deadline, project, refName);
+    CircuitBreaker.Call call = circuitBreaker.enter(project, refName);
+    ConcurrencyLimiter.Permit permit;
+    try {
+      permit = concurrencyLimiter.acquire(project, refName);
+    } catch (RuntimeException e) {
+      call.abandoned();
+      throw e;
+    }
+
+    try (permit) {
+      T result = operation.get();
+      call.succeeded();
+      return result;
+    } catch (RuntimeException e) {
+      call.failed();
+      throw e;
+    }
+  }
+
+  /**
+   * Reports a failed lock acquisition to the {@link CircuitBreaker}: the lock being held by someone
+   * else, or the calling thread being interrupted, says nothing about the health of the shared
+   * ref-db and is not counted, while the errors and timeouts of the shared ref-db are.
+   */
+  private static void reportLockFailure(CircuitBreaker.Call call, RuntimeException e) {
+    if (e instanceof GlobalRefDbLockException
+        && (e.getCause() == null || e.getCause() instanceof InterruptedException)) {
+      call.abandoned();
+    } else {
+      call.failed();
+    }
+  }
+
+  private void checkDeadline(Deadline deadline, String project, String refName) {
+    if (deadline.isExpired()) {
+      metrics.incrementDeadlineExceeded();
+      throw new GlobalRefDbLockException(
+          project,
+          refName,
+          new TimeoutException("Deadline expired before the global refdb operation"));
     }
   }
 
   private GlobalRefDatabase sharedRefDb() {
-    return Optional.ofNullable(sharedRefDbDynamicItem).map(di -> di.get()).orElse(NOOP_REFDB);
+    if (sharedRefDbDynamicItem == null) {
+      return NOOP_REFDB;
+    }
+    GlobalRefDatabase sharedRefDb = sharedRefDbDynamicItem.get();
+    return sharedRefDb != null ? sharedRefDb : NOOP_REFDB;
   }
 }
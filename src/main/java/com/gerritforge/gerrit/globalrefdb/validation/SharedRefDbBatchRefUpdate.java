@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.RefDatabase;
@@ -36,7 +37,7 @@ import org.eclipse.jgit.util.time.ProposedTimestamp;
 public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   private final BatchRefUpdate batchRefUpdate;
-  private final BatchRefUpdate batchRefUpdateRollback;
+  private final BatchSettings batchSettings = new BatchSettings();
   private final String project;
   private final BatchRefUpdateValidator.Factory batchRefValidatorFactory;
   private final RefDatabase refDb;
@@ -68,7 +69,6 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
     this.refDb = refDb;
     this.project = project;
     this.batchRefUpdate = refDb.newBatchUpdate();
-    this.batchRefUpdateRollback = refDb.newBatchUpdate();
     this.batchRefValidatorFactory = batchRefValidatorFactory;
     this.ignoredRefs = ignoredRefs;
   }
@@ -90,7 +90,7 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setAllowNonFastForwards(boolean allow) {
-    batchRefUpdateRollback.setAllowNonFastForwards(allow);
+    batchSettings.allowNonFastForwards = allow;
     return batchRefUpdate.setAllowNonFastForwards(allow);
   }
 
@@ -101,7 +101,7 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setRefLogIdent(PersonIdent pi) {
-    batchRefUpdateRollback.setRefLogIdent(pi);
+    batchSettings.refLogIdent = pi;
     return batchRefUpdate.setRefLogIdent(pi);
   }
 
@@ -117,18 +117,21 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public BatchRefUpdate setRefLogMessage(String msg, boolean appendStatus) {
-    batchRefUpdateRollback.setRefLogMessage(msg, appendStatus);
+    batchSettings.refLogMessageSet = true;
+    batchSettings.refLogMessage = msg;
+    batchSettings.refLogAppendStatus = appendStatus;
     return batchRefUpdate.setRefLogMessage(msg, appendStatus);
   }
 
   @Override
   public BatchRefUpdate disableRefLog() {
+    batchSettings.refLogDisabled = true;
     return batchRefUpdate.disableRefLog();
   }
 
   @Override
   public BatchRefUpdate setForceRefLog(boolean force) {
-    batchRefUpdateRollback.setForceRefLog(force);
+    batchSettings.forceRefLog = force;
     return batchRefUpdate.setForceRefLog(force);
   }
 
@@ -149,6 +152,7 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   @Override
   public void setPushCertificate(PushCertificate cert) {
+    batchSettings.pushCert = cert;
     batchRefUpdate.setPushCertificate(cert);
   }
 
@@ -189,7 +193,8 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
 
   /**
    * Execute this batch update by delegating to the underlying {@link BatchRefUpdate} after checking
-   * first the validity of the operation via a {@link BatchRefUpdateValidator}.
+   * first the validity of the operation via a {@link BatchRefUpdateValidator}. Large non-atomic
+   * batches are executed in chunks, each one delegated to a separate {@link BatchRefUpdate}.
    *
    * @param walk a RevWalk to parse tags in case the storage system wants to store them pre-peeled,
    *     a common performance optimization.
@@ -208,14 +213,20 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
         .create(project, refDb, ignoredRefs)
         .executeBatchUpdateWithValidation(
             batchRefUpdate,
+            monitor,
             () -> batchRefUpdate.execute(walk, monitor, options),
+            (chunk) ->
+                newChunkBatchUpdate()
+                    .addCommand(chunk)
+                    .execute(walk, NullProgressMonitor.INSTANCE, options),
             (commands) ->
-                batchRefUpdateRollback.addCommand(commands).execute(walk, monitor, options));
+                newRollbackBatchUpdate().addCommand(commands).execute(walk, monitor, options));
   }
 
   /**
    * Execute this batch update by delegating to the underlying {@link BatchRefUpdate} after checking
-   * first the validity of the operation via a {@link BatchRefUpdateValidator}.
+   * first the validity of the operation via a {@link BatchRefUpdateValidator}. Large non-atomic
+   * batches are executed in chunks, each one delegated to a separate {@link BatchRefUpdate}.
    *
    * @param walk a RevWalk to parse tags in case the storage system wants to store them pre-peeled,
    *     a common performance optimization.
@@ -232,12 +243,61 @@ public class SharedRefDbBatchRefUpdate extends BatchRefUpdate {
         .create(project, refDb, ignoredRefs)
         .executeBatchUpdateWithValidation(
             batchRefUpdate,
+            monitor,
             () -> batchRefUpdate.execute(walk, monitor),
-            (commands) -> batchRefUpdateRollback.addCommand(commands).execute(walk, monitor));
+            (chunk) ->
+                newChunkBatchUpdate().addCommand(chunk).execute(walk, NullProgressMonitor.INSTANCE),
+            (commands) -> newRollbackBatchUpdate().addCommand(commands).execute(walk, monitor));
   }
 
   @Override
   public String toString() {
     return batchRefUpdate.toString();
   }
+
+  private BatchRefUpdate newRollbackBatchUpdate() {
+    return batchSettings.applyTo(refDb.newBatchUpdate());
+  }
+
+  private BatchRefUpdate newChunkBatchUpdate() {
+    return batchSettings.applyToChunk(refDb.newBatchUpdate());
+  }
+
+  /**
+   * Settings of the batch update to be mirrored onto the rollback and onto the chunks of large
+   * batches, which are created only when needed.
+   */
+  private static class BatchSettings {
+    private boolean allowNonFastForwards;
+    private PersonIdent refLogIdent;
+    private boolean refLogMessageSet;
+    private String refLogMessage;
+    private boolean refLogAppendStatus;
+    private boolean forceRefLog;
+    private boolean refLogDisabled;
+    private PushCertificate pushCert;
+
+    BatchRefUpdate applyTo(BatchRefUpdate rollback) {
+      rollback.setAllowNonFastForwards(allowNonFastForwards);
+      rollback.setForceRefLog(forceRefLog);
+      if (refLogIdent != null) {
+        rollback.setRefLogIdent(refLogIdent);
+      }
+      if (refLogMessageSet) {
+        rollback.setRefLogMessage(refLogMessage, refLogAppendStatus);
+      }
+      return rollback;
+    }
+
+    BatchRefUpdate applyToChunk(BatchRefUpdate chunk) {
+      applyTo(chunk).setAtomic(false);
+      if (refLogDisabled) {
+        chunk.disableRefLog();
+      }
+      if (pushCert != null) {
+        chunk.setPushCertificate(pushCert);
+      }
+      return chunk;
+    }
+  }
 }
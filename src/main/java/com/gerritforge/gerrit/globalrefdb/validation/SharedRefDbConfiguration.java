@@ -23,11 +23,15 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.MultimapBuilder;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.eclipse.jgit.errors.ConfigInvalidException;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,9 +42,11 @@ import org.slf4j.LoggerFactory;
 public class SharedRefDbConfiguration {
   private static final Logger log = LoggerFactory.getLogger(SharedRefDbConfiguration.class);
 
-  private final Supplier<Projects> projects;
-  private final Supplier<SharedRefDatabase> sharedRefDb;
   private final String pluginName;
+  private final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+  private volatile Config config;
+  private volatile Supplier<Projects> projects;
+  private volatile Supplier<SharedRefDatabase> sharedRefDb;
 
   /**
    * Constructs a {@code SharedRefDbConfiguration} by providing the libModule name and a 'config'
@@ -50,6 +56,7 @@ public class SharedRefDbConfiguration {
    * @param pluginName the name of the libModule consuming this library
    */
   public SharedRefDbConfiguration(Config config, String pluginName) {
+    this.config = config;
     Supplier<Config> lazyCfg = lazyLoad(config);
     projects = memoize(() -> new Projects(lazyCfg));
     sharedRefDb = memoize(() -> new SharedRefDatabase(lazyCfg));
@@ -74,6 +81,71 @@ public class SharedRefDbConfiguration {
     return pluginName;
   }
 
+  /**
+   * Whether the configuration file has been modified since it was last loaded. Always false when
+   * the configuration is not backed by a file.
+   *
+   * @return true when the configuration needs to be reloaded, false otherwise
+   */
+  public boolean isOutdated() {
+    Config current = config;
+    return current instanceof FileBasedConfig && ((FileBasedConfig) current).isOutdated();
+  }
+
+  /**
+   * Reloads the configuration file into a new {@link Config} and atomically replaces the {@link
+   * Projects} and {@link SharedRefDatabase} settings, then notifies the reload listeners so that
+   * they can rebuild their own state. Readers are never blocked and keep observing the previous
+   * settings until the swap.
+   *
+   * <p>When the file cannot be loaded the current settings are retained.
+   *
+   * @return true if the configuration has been reloaded, false otherwise
+   */
+  public synchronized boolean reload() {
+    Config current = config;
+    if (!(current instanceof FileBasedConfig)) {
+      return false;
+    }
+
+    File configFile = ((FileBasedConfig) current).getFile();
+    FileBasedConfig reloaded = new FileBasedConfig(configFile, FS.DETECTED);
+    try {
+      reloaded.load();
+    } catch (IOException | ConfigInvalidException e) {
+      log.error(
+          "Unable to reload configuration from " + configFile + ", keeping the current one", e);
+      return false;
+    }
+
+    Supplier<Config> reloadedCfg = ofInstance(reloaded);
+    Projects reloadedProjects = new Projects(reloadedCfg);
+    SharedRefDatabase reloadedSharedRefDb = new SharedRefDatabase(reloadedCfg);
+    config = reloaded;
+    projects = ofInstance(reloadedProjects);
+    sharedRefDb = ofInstance(reloadedSharedRefDb);
+    log.info("Configuration reloaded from {}", configFile);
+
+    for (Runnable listener : reloadListeners) {
+      try {
+        listener.run();
+      } catch (RuntimeException e) {
+        log.error("Failed to apply the configuration reloaded from " + configFile, e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Registers a listener invoked after every successful {@link #reload()}, from the reloading
+   * thread.
+   *
+   * @param listener the action rebuilding the state derived from this configuration
+   */
+  public void addReloadListener(Runnable listener) {
+    reloadListeners.add(listener);
+  }
+
   private Supplier<Config> lazyLoad(Config config) {
     if (config instanceof FileBasedConfig) {
       return memoize(
@@ -102,9 +174,115 @@ public class SharedRefDbConfiguration {
     public static final String SECTION = "ref-database";
     public static final String ENABLE_KEY = "enabled";
     public static final String SUBSECTION_ENFORCEMENT_RULES = "enforcementRules";
+    public static final String PROJECT_CLEANUP_THREADS_KEY = "projectCleanupThreads";
+    public static final String PROJECT_CLEANUP_CHUNK_SIZE_KEY = "projectCleanupChunkSize";
+    public static final String PROJECT_CLEANUP_MAX_RETRIES_KEY = "projectCleanupMaxRetries";
+    public static final String PROJECT_CLEANUP_RETRY_DELAY_KEY = "projectCleanupRetryDelay";
+    public static final String PROJECT_CLEANUP_MAX_RETRY_DELAY_KEY = "projectCleanupMaxRetryDelay";
+    public static final String TOMBSTONE_GRACE_PERIOD_KEY = "tombstoneGracePeriod";
+    public static final String TOMBSTONE_COMPACTION_INTERVAL_KEY = "tombstoneCompactionInterval";
+    public static final String TOMBSTONE_MAX_PENDING_KEY = "tombstoneMaxPending";
+    public static final String CONFIG_RELOAD_INTERVAL_KEY = "configReloadInterval";
+    public static final String ASYNC_PUBLISHER_THREADS_KEY = "asyncPublisherThreads";
+    public static final String ASYNC_PUBLISH_RETRY_DELAY_KEY = "asyncPublishRetryDelay";
+    public static final String SHADOW_VALIDATION_THREADS_KEY = "shadowValidationThreads";
+    public static final String SHADOW_VALIDATION_QUEUE_SIZE_KEY = "shadowValidationQueueSize";
+    public static final String PROJECT_CONTEXT_CACHE_SIZE_KEY = "projectContextCacheSize";
+    public static final String BATCH_PROJECT_LOCK_THRESHOLD_KEY = "batchProjectLockThreshold";
+    public static final String BATCH_CHUNK_SIZE_KEY = "batchChunkSize";
+    public static final String COMPENSATION_THREADS_KEY = "compensationThreads";
+    public static final String VIRTUAL_THREADS_KEY = "virtualThreads";
+    public static final String EXECUTOR_THREADS_KEY = "executorThreads";
+    public static final String CONCURRENCY_LIMIT_KEY = "concurrencyLimit";
+    public static final String MIN_CONCURRENCY_LIMIT_KEY = "minConcurrencyLimit";
+    public static final String MAX_CONCURRENCY_LIMIT_KEY = "maxConcurrencyLimit";
+    public static final String CONCURRENCY_LIMIT_LATENCY_KEY = "concurrencyLimitLatency";
+    public static final String CONCURRENCY_LIMIT_MAX_WAIT_KEY = "concurrencyLimitMaxWait";
+    public static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY =
+        "circuitBreakerFailureThreshold";
+    public static final String CIRCUIT_BREAKER_OPEN_DURATION_KEY = "circuitBreakerOpenDuration";
+    public static final String CIRCUIT_BREAKER_HALF_OPEN_PROBES_KEY =
+        "circuitBreakerHalfOpenProbes";
+    public static final String HEDGING_PERCENTILE_KEY = "hedgingPercentile";
+    public static final String HEDGING_MIN_DELAY_KEY = "hedgingMinDelay";
+    public static final String HEDGING_BUDGET_KEY = "hedgingBudget";
+    public static final String BACKGROUND_THREAD_PREFIX_KEY = "backgroundThreadPrefix";
+    public static final String INTERACTIVE_WEIGHT_KEY = "interactiveWeight";
+    public static final String LOCAL_LOCK_COALESCING_KEY = "localLockCoalescing";
+    public static final String LOCK_TIMEOUT_KEY = "lockTimeout";
+
+    public static final int DEFAULT_PROJECT_CLEANUP_THREADS = 1;
+    public static final int DEFAULT_PROJECT_CLEANUP_CHUNK_SIZE = 10000;
+    public static final int DEFAULT_PROJECT_CLEANUP_MAX_RETRIES = 10;
+    public static final long DEFAULT_PROJECT_CLEANUP_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    public static final long DEFAULT_PROJECT_CLEANUP_MAX_RETRY_DELAY_MS =
+        TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_TOMBSTONE_COMPACTION_INTERVAL_MS =
+        TimeUnit.MINUTES.toMillis(10);
+    public static final int DEFAULT_TOMBSTONE_MAX_PENDING = 100000;
+    public static final int DEFAULT_ASYNC_PUBLISHER_THREADS = 1;
+    public static final long DEFAULT_ASYNC_PUBLISH_RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    public static final int DEFAULT_SHADOW_VALIDATION_THREADS = 1;
+    public static final int DEFAULT_SHADOW_VALIDATION_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_PROJECT_CONTEXT_CACHE_SIZE = 10000;
+    public static final int DEFAULT_COMPENSATION_THREADS = 4;
+    public static final int DEFAULT_EXECUTOR_THREADS = 32;
+    public static final int DEFAULT_MIN_CONCURRENCY_LIMIT = 1;
+    public static final int DEFAULT_MAX_CONCURRENCY_LIMIT = 1000;
+    public static final long DEFAULT_CONCURRENCY_LIMIT_LATENCY_MS = 100L;
+    public static final long DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS = TimeUnit.SECONDS.toMillis(1);
+    public static final long DEFAULT_LOCK_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    public static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS =
+        TimeUnit.SECONDS.toMillis(10);
+    public static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 1;
+    public static final long DEFAULT_HEDGING_MIN_DELAY_MS = 5L;
+    public static final int DEFAULT_HEDGING_BUDGET = 10;
+    public static final ImmutableList<String> DEFAULT_BACKGROUND_THREAD_PREFIXES =
+        ImmutableList.of(
+            "GlobalRefDbAsyncPublisher",
+            "GlobalRefDbShadowValidator",
+            "GlobalRefDbTombstoneCompactor",
+            "GlobalRefDbProjectCleanup",
+            "ReplicateTo-",
+            "Index-Batch");
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 4;
 
     private final boolean enabled;
     private final Multimap<EnforcePolicy, String> enforcementRules;
+    private final int projectCleanupThreads;
+    private final int projectCleanupChunkSize;
+    private final int projectCleanupMaxRetries;
+    private final long projectCleanupRetryDelayMs;
+    private final long projectCleanupMaxRetryDelayMs;
+    private final long tombstoneGracePeriodMs;
+    private final long tombstoneCompactionIntervalMs;
+    private final int tombstoneMaxPending;
+    private final long configReloadIntervalMs;
+    private final int asyncPublisherThreads;
+    private final long asyncPublishRetryDelayMs;
+    private final int shadowValidationThreads;
+    private final int shadowValidationQueueSize;
+    private final int projectContextCacheSize;
+    private final int batchProjectLockThreshold;
+    private final int batchChunkSize;
+    private final int compensationThreads;
+    private final boolean virtualThreads;
+    private final int executorThreads;
+    private final int concurrencyLimit;
+    private final int minConcurrencyLimit;
+    private final int maxConcurrencyLimit;
+    private final long concurrencyLimitLatencyMs;
+    private final long concurrencyLimitMaxWaitMs;
+    private final int circuitBreakerFailureThreshold;
+    private final long circuitBreakerOpenDurationMs;
+    private final int circuitBreakerHalfOpenProbes;
+    private final int hedgingPercentile;
+    private final long hedgingMinDelayMs;
+    private final int hedgingBudget;
+    private final List<String> backgroundThreadPrefixes;
+    private final int interactiveWeight;
+    private final boolean localLockCoalescing;
+    private final long lockTimeoutMs;
 
     private SharedRefDatabase(Supplier<Config> cfg) {
       enabled = getBoolean(cfg, SECTION, null, ENABLE_KEY, false);
@@ -113,6 +291,145 @@ public class SharedRefDbConfiguration {
         enforcementRules.putAll(
             policy, getList(cfg, SECTION, SUBSECTION_ENFORCEMENT_RULES, policy.name()));
       }
+      projectCleanupThreads =
+          getInt(cfg, SECTION, null, PROJECT_CLEANUP_THREADS_KEY, DEFAULT_PROJECT_CLEANUP_THREADS);
+      projectCleanupChunkSize =
+          getInt(
+              cfg,
+              SECTION,
+              null,
+              PROJECT_CLEANUP_CHUNK_SIZE_KEY,
+              DEFAULT_PROJECT_CLEANUP_CHUNK_SIZE);
+      projectCleanupMaxRetries =
+          getInt(
+              cfg,
+              SECTION,
+              null,
+              PROJECT_CLEANUP_MAX_RETRIES_KEY,
+              DEFAULT_PROJECT_CLEANUP_MAX_RETRIES);
+      projectCleanupRetryDelayMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              PROJECT_CLEANUP_RETRY_DELAY_KEY,
+              DEFAULT_PROJECT_CLEANUP_RETRY_DELAY_MS,
+              TimeUnit.MILLISECONDS);
+      projectCleanupMaxRetryDelayMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              PROJECT_CLEANUP_MAX_RETRY_DELAY_KEY,
+              DEFAULT_PROJECT_CLEANUP_MAX_RETRY_DELAY_MS,
+              TimeUnit.MILLISECONDS);
+      tombstoneGracePeriodMs =
+          getTimeUnit(cfg, SECTION, null, TOMBSTONE_GRACE_PERIOD_KEY, 0L, TimeUnit.MILLISECONDS);
+      tombstoneCompactionIntervalMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              TOMBSTONE_COMPACTION_INTERVAL_KEY,
+              DEFAULT_TOMBSTONE_COMPACTION_INTERVAL_MS,
+              TimeUnit.MILLISECONDS);
+      tombstoneMaxPending =
+          getInt(cfg, SECTION, null, TOMBSTONE_MAX_PENDING_KEY, DEFAULT_TOMBSTONE_MAX_PENDING);
+      configReloadIntervalMs =
+          getTimeUnit(cfg, SECTION, null, CONFIG_RELOAD_INTERVAL_KEY, 0L, TimeUnit.MILLISECONDS);
+      asyncPublisherThreads =
+          getInt(cfg, SECTION, null, ASYNC_PUBLISHER_THREADS_KEY, DEFAULT_ASYNC_PUBLISHER_THREADS);
+      asyncPublishRetryDelayMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              ASYNC_PUBLISH_RETRY_DELAY_KEY,
+              DEFAULT_ASYNC_PUBLISH_RETRY_DELAY_MS,
+              TimeUnit.MILLISECONDS);
+      shadowValidationThreads =
+          getInt(
+              cfg, SECTION, null, SHADOW_VALIDATION_THREADS_KEY, DEFAULT_SHADOW_VALIDATION_THREADS);
+      shadowValidationQueueSize =
+          getInt(
+              cfg,
+              SECTION,
+              null,
+              SHADOW_VALIDATION_QUEUE_SIZE_KEY,
+              DEFAULT_SHADOW_VALIDATION_QUEUE_SIZE);
+      projectContextCacheSize =
+          getInt(
+              cfg,
+              SECTION,
+              null,
+              PROJECT_CONTEXT_CACHE_SIZE_KEY,
+              DEFAULT_PROJECT_CONTEXT_CACHE_SIZE);
+      batchProjectLockThreshold = getInt(cfg, SECTION, null, BATCH_PROJECT_LOCK_THRESHOLD_KEY, 0);
+      batchChunkSize = getInt(cfg, SECTION, null, BATCH_CHUNK_SIZE_KEY, 0);
+      compensationThreads =
+          getInt(cfg, SECTION, null, COMPENSATION_THREADS_KEY, DEFAULT_COMPENSATION_THREADS);
+      virtualThreads = getBoolean(cfg, SECTION, null, VIRTUAL_THREADS_KEY, true);
+      executorThreads = getInt(cfg, SECTION, null, EXECUTOR_THREADS_KEY, DEFAULT_EXECUTOR_THREADS);
+      concurrencyLimit = getInt(cfg, SECTION, null, CONCURRENCY_LIMIT_KEY, 0);
+      minConcurrencyLimit =
+          getInt(cfg, SECTION, null, MIN_CONCURRENCY_LIMIT_KEY, DEFAULT_MIN_CONCURRENCY_LIMIT);
+      maxConcurrencyLimit =
+          getInt(cfg, SECTION, null, MAX_CONCURRENCY_LIMIT_KEY, DEFAULT_MAX_CONCURRENCY_LIMIT);
+      concurrencyLimitLatencyMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              CONCURRENCY_LIMIT_LATENCY_KEY,
+              DEFAULT_CONCURRENCY_LIMIT_LATENCY_MS,
+              TimeUnit.MILLISECONDS);
+      concurrencyLimitMaxWaitMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              CONCURRENCY_LIMIT_MAX_WAIT_KEY,
+              DEFAULT_CONCURRENCY_LIMIT_MAX_WAIT_MS,
+              TimeUnit.MILLISECONDS);
+      circuitBreakerFailureThreshold =
+          getInt(cfg, SECTION, null, CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY, 0);
+      circuitBreakerOpenDurationMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              CIRCUIT_BREAKER_OPEN_DURATION_KEY,
+              DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS,
+              TimeUnit.MILLISECONDS);
+      circuitBreakerHalfOpenProbes =
+          getInt(
+              cfg,
+              SECTION,
+              null,
+              CIRCUIT_BREAKER_HALF_OPEN_PROBES_KEY,
+              DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES);
+      hedgingPercentile = getInt(cfg, SECTION, null, HEDGING_PERCENTILE_KEY, 0);
+      hedgingMinDelayMs =
+          getTimeUnit(
+              cfg,
+              SECTION,
+              null,
+              HEDGING_MIN_DELAY_KEY,
+              DEFAULT_HEDGING_MIN_DELAY_MS,
+              TimeUnit.MILLISECONDS);
+      hedgingBudget = getInt(cfg, SECTION, null, HEDGING_BUDGET_KEY, DEFAULT_HEDGING_BUDGET);
+      List<String> configuredBackgroundThreadPrefixes =
+          getList(cfg, SECTION, null, BACKGROUND_THREAD_PREFIX_KEY);
+      backgroundThreadPrefixes =
+          configuredBackgroundThreadPrefixes.isEmpty()
+              ? DEFAULT_BACKGROUND_THREAD_PREFIXES
+              : configuredBackgroundThreadPrefixes;
+      interactiveWeight =
+          getInt(cfg, SECTION, null, INTERACTIVE_WEIGHT_KEY, DEFAULT_INTERACTIVE_WEIGHT);
+      localLockCoalescing = getBoolean(cfg, SECTION, null, LOCAL_LOCK_COALESCING_KEY, true);
+      lockTimeoutMs =
+          getTimeUnit(
+              cfg, SECTION, null, LOCK_TIMEOUT_KEY, DEFAULT_LOCK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -126,8 +443,10 @@ public class SharedRefDbConfiguration {
 
     /**
      * Getter for the map of {@link EnforcePolicy} to a specific "project:refs". Each entry can be
-     * either be {@link SharedRefEnforcement.EnforcePolicy#IGNORED} or {@link
-     * SharedRefEnforcement.EnforcePolicy#REQUIRED} and it represents the level of consistency
+     * either {@link SharedRefEnforcement.EnforcePolicy#IGNORED}, {@link
+     * SharedRefEnforcement.EnforcePolicy#REQUIRED}, {@link
+     * SharedRefEnforcement.EnforcePolicy#ASYNC} or {@link
+     * SharedRefEnforcement.EnforcePolicy#SHADOW} and it represents the level of consistency
      * enforcements for that specific "project:refs". If the project or ref is omitted, apply the
      * policy to all projects or all refs.
      *
@@ -146,6 +465,351 @@ public class SharedRefDbConfiguration {
       return enforcementRules;
     }
 
+    /**
+     * Number of threads removing deleted projects from the global refdb. Defaults to 1.
+     *
+     * @return the number of project cleanup threads
+     */
+    public int getProjectCleanupThreads() {
+      return projectCleanupThreads;
+    }
+
+    /**
+     * Maximum number of refs removed from the global refdb in a single call when cleaning up a
+     * deleted project. Defaults to 10000.
+     *
+     * @return the project cleanup chunk size
+     */
+    public int getProjectCleanupChunkSize() {
+      return projectCleanupChunkSize;
+    }
+
+    /**
+     * Number of times the removal of a deleted project is retried before giving up until the next
+     * restart. Defaults to 10.
+     *
+     * @return the maximum number of project cleanup retries
+     */
+    public int getProjectCleanupMaxRetries() {
+      return projectCleanupMaxRetries;
+    }
+
+    /**
+     * Delay before the first retry of a failed project cleanup, doubled at every subsequent
+     * attempt. Defaults to 1 second.
+     *
+     * @return the initial retry delay in milliseconds
+     */
+    public long getProjectCleanupRetryDelayMs() {
+      return projectCleanupRetryDelayMs;
+    }
+
+    /**
+     * Upper bound of the delay between two project cleanup attempts. Defaults to 5 minutes.
+     *
+     * @return the maximum retry delay in milliseconds
+     */
+    public long getProjectCleanupMaxRetryDelayMs() {
+      return projectCleanupMaxRetryDelayMs;
+    }
+
+    /**
+     * Whether the tombstones left in the global refdb by deleted refs are purged. Enabled when a
+     * positive grace period is configured.
+     *
+     * @return true when tombstone compaction is enabled, false otherwise
+     */
+    public boolean isTombstoneCompactionEnabled() {
+      return tombstoneGracePeriodMs > 0;
+    }
+
+    /**
+     * Time a deleted ref is kept as a tombstone in the global refdb before being purged, allowing
+     * all the nodes to catch up with the deletion. Defaults to 0, meaning that tombstones are never
+     * purged.
+     *
+     * @return the tombstone grace period in milliseconds
+     */
+    public long getTombstoneGracePeriodMs() {
+      return tombstoneGracePeriodMs;
+    }
+
+    /**
+     * Interval between two runs of the tombstone compaction. Defaults to 10 minutes.
+     *
+     * @return the tombstone compaction interval in milliseconds
+     */
+    public long getTombstoneCompactionIntervalMs() {
+      return tombstoneCompactionIntervalMs;
+    }
+
+    /**
+     * Maximum number of tombstones waiting for their grace period to expire. Tombstones exceeding
+     * the limit are not tracked and never purged. Defaults to 100000.
+     *
+     * @return the maximum number of pending tombstones
+     */
+    public int getTombstoneMaxPending() {
+      return tombstoneMaxPending;
+    }
+
+    /**
+     * Interval between two checks for modifications of the configuration file. Defaults to 0,
+     * meaning that the configuration is never reloaded.
+     *
+     * @return the configuration reload interval in milliseconds
+     */
+    public long getConfigReloadIntervalMs() {
+      return configReloadIntervalMs;
+    }
+
+    /**
+     * Number of threads publishing to the global refdb the ref updates under the {@link
+     * EnforcePolicy#ASYNC} policy. Defaults to 1.
+     *
+     * @return the number of async publisher threads
+     */
+    public int getAsyncPublisherThreads() {
+      return asyncPublisherThreads;
+    }
+
+    /**
+     * Delay before retrying the publication of an {@link EnforcePolicy#ASYNC} ref update failed
+     * because of a system or lock error. Defaults to 1 second.
+     *
+     * @return the async publication retry delay in milliseconds
+     */
+    public long getAsyncPublishRetryDelayMs() {
+      return asyncPublishRetryDelayMs;
+    }
+
+    /**
+     * Number of threads validating in background the ref updates under the {@link
+     * EnforcePolicy#SHADOW} policy. Defaults to 1.
+     *
+     * @return the number of shadow validation threads
+     */
+    public int getShadowValidationThreads() {
+      return shadowValidationThreads;
+    }
+
+    /**
+     * Maximum number of {@link EnforcePolicy#SHADOW} validations waiting for a thread. Further
+     * validations are dropped. Defaults to 1000.
+     *
+     * @return the shadow validation queue size
+     */
+    public int getShadowValidationQueueSize() {
+      return shadowValidationQueueSize;
+    }
+
+    /**
+     * Maximum number of projects whose repository wrapper scaffolding is cached across the opening
+     * of their repositories. Defaults to 10000.
+     *
+     * @return the project context cache size
+     */
+    public int getProjectContextCacheSize() {
+      return projectContextCacheSize;
+    }
+
+    /**
+     * Minimum number of commands of a batch ref-update for locking the whole project in the global
+     * refdb, instead of its refs one by one. Defaults to 0, which disables project locks.
+     *
+     * @return the batch project lock threshold
+     */
+    public int getBatchProjectLockThreshold() {
+      return batchProjectLockThreshold;
+    }
+
+    /**
+     * Maximum number of commands of a non-atomic batch ref-update validated, locked, executed and
+     * published at once. Larger batches are streamed in chunks of this size. Defaults to 0, which
+     * disables chunking.
+     *
+     * @return the batch chunk size
+     */
+    public int getBatchChunkSize() {
+      return batchChunkSize;
+    }
+
+    /**
+     * Number of threads reverting in parallel the refs already published to the global refdb by a
+     * batch ref-update which failed to publish all of them. Defaults to 4.
+     *
+     * @return the number of compensation threads
+     */
+    public int getCompensationThreads() {
+      return compensationThreads;
+    }
+
+    /**
+     * Whether the blocking operations offloaded to the global refdb executor run on virtual
+     * threads, when supported by the JVM. Defaults to true.
+     *
+     * @return true when virtual threads are used if available, false otherwise
+     */
+    public boolean isVirtualThreads() {
+      return virtualThreads;
+    }
+
+    /**
+     * Number of platform threads of the global refdb executor, when virtual threads are disabled or
+     * not supported by the JVM. Defaults to 32.
+     *
+     * @return the number of executor threads
+     */
+    public int getExecutorThreads() {
+      return executorThreads;
+    }
+
+    /**
+     * Initial number of concurrent operations allowed on the global refdb, adapted afterwards to
+     * its observed latency. Defaults to 0, which disables the limit.
+     *
+     * @return the initial concurrency limit
+     */
+    public int getConcurrencyLimit() {
+      return concurrencyLimit;
+    }
+
+    /**
+     * Lowest value the concurrency limit can be decreased to. Defaults to 1.
+     *
+     * @return the minimum concurrency limit
+     */
+    public int getMinConcurrencyLimit() {
+      return minConcurrencyLimit;
+    }
+
+    /**
+     * Highest value the concurrency limit can be increased to. Defaults to 1000.
+     *
+     * @return the maximum concurrency limit
+     */
+    public int getMaxConcurrencyLimit() {
+      return maxConcurrencyLimit;
+    }
+
+    /**
+     * Latency of the global refdb operations above which the concurrency limit is decreased.
+     * Defaults to 100 milliseconds.
+     *
+     * @return the latency threshold in milliseconds
+     */
+    public long getConcurrencyLimitLatencyMs() {
+      return concurrencyLimitLatencyMs;
+    }
+
+    /**
+     * Maximum time an operation waits for the concurrency limit before being rejected. Defaults to
+     * 1 second.
+     *
+     * @return the maximum wait in milliseconds
+     */
+    public long getConcurrencyLimitMaxWaitMs() {
+      return concurrencyLimitMaxWaitMs;
+    }
+
+    /**
+     * Number of consecutive failures of the global refdb after which the circuit breaker opens and
+     * the operations fail fast. Defaults to 0, which disables the circuit breaker.
+     *
+     * @return the circuit breaker failure threshold
+     */
+    public int getCircuitBreakerFailureThreshold() {
+      return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Time the circuit breaker stays open before letting probes through. Defaults to 10 seconds.
+     *
+     * @return the open duration in milliseconds
+     */
+    public long getCircuitBreakerOpenDurationMs() {
+      return circuitBreakerOpenDurationMs;
+    }
+
+    /**
+     * Number of concurrent probes let through the half-open circuit breaker. Defaults to 1.
+     *
+     * @return the number of half-open probes
+     */
+    public int getCircuitBreakerHalfOpenProbes() {
+      return circuitBreakerHalfOpenProbes;
+    }
+
+    /**
+     * Percentile of the recent latencies of the read operations after which a second attempt is
+     * sent to the global refdb. Defaults to 0, which disables the hedging.
+     *
+     * @return the hedging percentile
+     */
+    public int getHedgingPercentile() {
+      return hedgingPercentile;
+    }
+
+    /**
+     * Minimum delay before hedging a read operation, whatever its latency percentile. Defaults to 5
+     * milliseconds.
+     *
+     * @return the minimum hedging delay in milliseconds
+     */
+    public long getHedgingMinDelayMs() {
+      return hedgingMinDelayMs;
+    }
+
+    /**
+     * Maximum percentage of the read operations that can be hedged. Defaults to 10.
+     *
+     * @return the hedging budget, as a percentage of the reads
+     */
+    public int getHedgingBudget() {
+      return hedgingBudget;
+    }
+
+    /**
+     * Name prefixes of the threads whose operations on the global refdb are in the {@link
+     * PriorityLane#BACKGROUND} lane, unless set explicitly. Defaults to the threads of the
+     * background components of this library, of the replication and of the batch reindexing.
+     *
+     * @return the background thread name prefixes
+     */
+    public List<String> getBackgroundThreadPrefixes() {
+      return backgroundThreadPrefixes;
+    }
+
+    /**
+     * Number of queued interactive operations served for each queued background one. Defaults to 4.
+     *
+     * @return the weight of the interactive lane
+     */
+    public int getInteractiveWeight() {
+      return interactiveWeight;
+    }
+
+    /**
+     * Whether the threads of this node locking the same ref queue locally, so that only one of them
+     * at a time requests the lock to the global refdb. Defaults to true.
+     *
+     * @return true when the ref locks are coalesced locally, false otherwise
+     */
+    public boolean isLocalLockCoalescing() {
+      return localLockCoalescing;
+    }
+
+    /**
+     * Maximum time a ref update waits for the lock of a ref, locally and in the global refdb, when
+     * the {@link com.gerritforge.gerrit.globalrefdb.Deadline#current()} deadline of the thread is
+     * not earlier. A value of 0 leaves the wait unbounded. Defaults to 30 seconds.
+     *
+     * @return the lock timeout in milliseconds
+     */
+    public long getLockTimeoutMs() {
+      return lockTimeoutMs;
+    }
+
     private List<String> getList(
         Supplier<Config> cfg, String section, String subsection, String name) {
       return ImmutableList.copyOf(cfg.get().getStringList(section, subsection, name));
@@ -192,4 +856,31 @@ public class SharedRefDbConfiguration {
       return defaultValue;
     }
   }
+
+  static int getInt(
+      Supplier<Config> cfg, String section, String subsection, String name, int defaultValue) {
+    try {
+      return cfg.get().getInt(section, subsection, name, defaultValue);
+    } catch (IllegalArgumentException e) {
+      log.error("invalid value for {}; using default value {}", name, defaultValue);
+      log.debug("Failed to retrieve integer value: {}", e.getMessage(), e);
+      return defaultValue;
+    }
+  }
+
+  static long getTimeUnit(
+      Supplier<Config> cfg,
+      String section,
+      String subsection,
+      String name,
+      long defaultValue,
+      TimeUnit unit) {
+    try {
+      return cfg.get().getTimeUnit(section, subsection, name, defaultValue, unit);
+    } catch (IllegalArgumentException e) {
+      log.error("invalid value for {}; using default value {}", name, defaultValue);
+      log.debug("Failed to retrieve time value: {}", e.getMessage(), e);
+      return defaultValue;
+    }
+  }
 }
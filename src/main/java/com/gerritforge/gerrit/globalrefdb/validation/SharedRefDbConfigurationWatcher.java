@@ -0,0 +1,83 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checks the configuration file of the libModule consuming this library and reloads it
+ * when modified, so that project patterns and enforcement rules can be changed without a restart.
+ *
+ * <p>The reload and the rebuild of the derived filters happen on a dedicated work queue, the
+ * validation path keeps using the previous settings until they are atomically replaced.
+ */
+@Singleton
+public class SharedRefDbConfigurationWatcher implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String WATCHER_QUEUE_NAME = "GlobalRefDbConfigWatcher";
+
+  private final SharedRefDbConfiguration cfg;
+  private final WorkQueue workQueue;
+  private ScheduledExecutorService executor;
+
+  /**
+   * Constructs a {@code SharedRefDbConfigurationWatcher}.
+   *
+   * @param cfg the global refdb configuration to watch
+   * @param workQueue to create the queue checking the configuration file
+   */
+  @Inject
+  public SharedRefDbConfigurationWatcher(SharedRefDbConfiguration cfg, WorkQueue workQueue) {
+    this.cfg = cfg;
+    this.workQueue = workQueue;
+  }
+
+  @Override
+  public void start() {
+    long intervalMs = cfg.getSharedRefDb().getConfigReloadIntervalMs();
+    if (intervalMs <= 0) {
+      return;
+    }
+
+    executor = workQueue.createQueue(1, WATCHER_QUEUE_NAME);
+    executor.scheduleWithFixedDelay(
+        this::reloadIfOutdated, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @VisibleForTesting
+  void reloadIfOutdated() {
+    try {
+      if (cfg.isOutdated()) {
+        cfg.reload();
+      }
+    } catch (RuntimeException e) {
+      logger.atSevere().withCause(e).log("Unable to reload the global refdb configuration");
+    }
+  }
+}
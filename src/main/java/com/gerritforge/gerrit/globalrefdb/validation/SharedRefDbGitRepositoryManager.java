@@ -14,7 +14,11 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
 import com.google.common.base.MoreObjects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.Project.NameKey;
@@ -33,6 +37,10 @@ import org.eclipse.jgit.lib.Repository;
  * Implements a {@link GitRepositoryManager} interface with the intent of managing repository access
  * and repository creation through instances of {@link SharedRefDbRepository}, which can therefore
  * validate operations on the repository itself against the global refdb
+ *
+ * <p>The per-project scaffolding of the wrappers is cached, so that opening a repository only
+ * attaches it to the wrappers. Repositories of projects not validated against the global refdb are
+ * returned unwrapped.
  */
 @Singleton
 public class SharedRefDbGitRepositoryManager implements GitRepositoryManager {
@@ -56,7 +64,11 @@ public class SharedRefDbGitRepositoryManager implements GitRepositoryManager {
   private GitRepositoryManager gitRepositoryManager;
 
   private final LocalDiskRepositoryManager localDiskRepositoryManager;
-  private final SharedRefDbRepository.Factory sharedRefDbRepoFactory;
+  private final SharedRefDbRefUpdate.Factory refUpdateFactory;
+  private final SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory;
+  private final ProjectsFilter projectsFilter;
+  private final SharedRefEnforcement refEnforcement;
+  private final LoadingCache<Project.NameKey, SharedRefDbProjectContext> projectContexts;
 
   @Inject(optional = true)
   @Named(IGNORED_REFS)
@@ -67,16 +79,33 @@ public class SharedRefDbGitRepositoryManager implements GitRepositoryManager {
    * by wrapping them in a {@code SharedRefDbRepository} object, so that operations on them can be
    * validated against a global refdb
    *
-   * @param sharedRefDbRepoFactory a factory providing a {@link SharedRefDbRepository} instance
+   * @param refUpdateFactory a factory providing a {@link SharedRefDbRefUpdate} instance
+   * @param batchRefUpdateFactory a factory providing a {@link SharedRefDbBatchRefUpdate} instance
+   * @param projectsFilter filter to match whether a project should be validated against the global
+   *     refdb
+   * @param refEnforcement the enforcement policies of the projects and refs
+   * @param cfg the global refdb configuration, defining the size of the per-project cache
    * @param localDiskRepositoryManager an instance to manage repositories stored on the local file
    *     system
    */
   @Inject
   public SharedRefDbGitRepositoryManager(
-      SharedRefDbRepository.Factory sharedRefDbRepoFactory,
+      SharedRefDbRefUpdate.Factory refUpdateFactory,
+      SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory,
+      ProjectsFilter projectsFilter,
+      SharedRefEnforcement refEnforcement,
+      SharedRefDbConfiguration cfg,
       LocalDiskRepositoryManager localDiskRepositoryManager) {
-    this.sharedRefDbRepoFactory = sharedRefDbRepoFactory;
+    this.refUpdateFactory = refUpdateFactory;
+    this.batchRefUpdateFactory = batchRefUpdateFactory;
+    this.projectsFilter = projectsFilter;
+    this.refEnforcement = refEnforcement;
     this.localDiskRepositoryManager = localDiskRepositoryManager;
+    this.projectContexts =
+        CacheBuilder.newBuilder()
+            .maximumSize(cfg.getSharedRefDb().getProjectContextCacheSize())
+            .build(CacheLoader.from(this::newProjectContext));
+    cfg.addReloadListener(projectContexts::invalidateAll);
   }
 
   /**
@@ -125,7 +154,21 @@ public class SharedRefDbGitRepositoryManager implements GitRepositoryManager {
   }
 
   private Repository wrap(Project.NameKey projectName, Repository projectRepo) {
-    return sharedRefDbRepoFactory.create(projectName.get(), projectRepo, ignoredRefs);
+    SharedRefDbProjectContext projectContext = projectContexts.getUnchecked(projectName);
+    if (!projectContext.isProjectValidated()) {
+      return projectRepo;
+    }
+    return new SharedRefDbRepository(projectContext, projectRepo);
+  }
+
+  private SharedRefDbProjectContext newProjectContext(Project.NameKey projectName) {
+    return new SharedRefDbProjectContext(
+        refUpdateFactory,
+        batchRefUpdateFactory,
+        projectsFilter,
+        refEnforcement,
+        projectName,
+        ignoredRefs);
   }
 
   private GitRepositoryManager repositoryManager() {
@@ -0,0 +1,99 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
+
+/**
+ * Per-project scaffolding of the {@link SharedRefDbRepository} and {@link SharedRefDbRefDatabase}
+ * wrappers, which is independent from the underlying repository and can therefore be shared by all
+ * the opened instances of the same project.
+ *
+ * <p>Whether the project is validated against the global refdb is resolved once, upon construction.
+ */
+class SharedRefDbProjectContext {
+  private final SharedRefDbRefUpdate.Factory refUpdateFactory;
+  private final SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory;
+  private final SharedRefEnforcement refEnforcement;
+  private final String projectName;
+  private final ImmutableSet<String> ignoredRefs;
+  private final boolean projectValidated;
+
+  SharedRefDbProjectContext(
+      SharedRefDbRefUpdate.Factory refUpdateFactory,
+      SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory,
+      ProjectsFilter projectsFilter,
+      SharedRefEnforcement refEnforcement,
+      Project.NameKey projectNameKey,
+      ImmutableSet<String> ignoredRefs) {
+    this.refUpdateFactory = refUpdateFactory;
+    this.batchRefUpdateFactory = batchRefUpdateFactory;
+    this.refEnforcement = refEnforcement;
+    this.projectName = projectNameKey.get();
+    this.ignoredRefs = ignoredRefs;
+    this.projectValidated =
+        projectsFilter.matches(projectNameKey)
+            && refEnforcement.getPolicy(projectName) != EnforcePolicy.IGNORED;
+  }
+
+  /**
+   * Whether the updates of the project are validated against the global refdb.
+   *
+   * @return true when the project is global and its policy is not {@link EnforcePolicy#IGNORED}
+   */
+  boolean isProjectValidated() {
+    return projectValidated;
+  }
+
+  /**
+   * Wraps a ref update in a {@link SharedRefDbRefUpdate}, unless it does not need to be validated.
+   *
+   * @param refUpdate the ref update of the underlying {@link RefDatabase}
+   * @param refDatabase the underlying {@link RefDatabase}
+   * @return the wrapped ref update, or {@code refUpdate} itself when not validated
+   */
+  RefUpdate wrapRefUpdate(RefUpdate refUpdate, RefDatabase refDatabase) {
+    if (!isRefValidated(refUpdate.getName())) {
+      return refUpdate;
+    }
+    return refUpdateFactory.create(projectName, refUpdate, refDatabase, ignoredRefs);
+  }
+
+  /**
+   * Creates a batch ref update, wrapped in a {@link SharedRefDbBatchRefUpdate} unless the project
+   * is not validated.
+   *
+   * @param refDatabase the underlying {@link RefDatabase}
+   * @return the batch ref update
+   */
+  BatchRefUpdate newBatchUpdate(RefDatabase refDatabase) {
+    if (!projectValidated) {
+      return refDatabase.newBatchUpdate();
+    }
+    return batchRefUpdateFactory.create(projectName, refDatabase, ignoredRefs);
+  }
+
+  private boolean isRefValidated(String refName) {
+    return projectValidated
+        && !ignoredRefs.contains(refName)
+        && refEnforcement.getPolicy(projectName, refName) != EnforcePolicy.IGNORED;
+  }
+}
@@ -14,7 +14,10 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
 import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import java.io.IOException;
@@ -31,13 +34,13 @@ import org.eclipse.jgit.lib.RefUpdate;
  * Wraps an instance of {@link RefDatabase} with the intent of wrapping {@link RefUpdate} operations
  * to instances of {@link SharedRefDbRefUpdate} in order to allow validation of those operation
  * against a shared ref-database before actually executing them.
+ *
+ * <p>Updates that would not be validated anyway, because the project is not global, its policy is
+ * {@link EnforcePolicy#IGNORED} or the ref is ignored, are returned unwrapped.
  */
 public class SharedRefDbRefDatabase extends RefDatabase {
-  private final SharedRefDbRefUpdate.Factory refUpdateFactory;
-  private final SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory;
-  private final String projectName;
+  private final SharedRefDbProjectContext projectContext;
   private final RefDatabase refDatabase;
-  private final ImmutableSet<String> ignoredRefs;
 
   /** {@code SharedRefDbRefDatabase} Factory for Guice assisted injection. */
   public interface Factory {
@@ -51,6 +54,9 @@ public class SharedRefDbRefDatabase extends RefDatabase {
    *
    * @param refUpdateFactory a factory to provide a {@link SharedRefDbRefUpdate}
    * @param batchRefUpdateFactory a factory to provide a {@link SharedRefDbBatchRefUpdate}
+   * @param projectsFilter filter to match whether the project should be validated against the
+   *     shared ref-database
+   * @param refEnforcement the enforcement policies of the projects and refs
    * @param projectName the name of the project to perform Git operations on
    * @param refDatabase the wrapped {@link RefDatabase}
    * @param ignoredRefs a set of reference for which ref-db validation should not be executed.
@@ -59,14 +65,25 @@ public class SharedRefDbRefDatabase extends RefDatabase {
   public SharedRefDbRefDatabase(
       SharedRefDbRefUpdate.Factory refUpdateFactory,
       SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactory,
+      ProjectsFilter projectsFilter,
+      SharedRefEnforcement refEnforcement,
       @Assisted String projectName,
       @Assisted RefDatabase refDatabase,
       @Assisted ImmutableSet<String> ignoredRefs) {
-    this.refUpdateFactory = refUpdateFactory;
-    this.batchRefUpdateFactory = batchRefUpdateFactory;
-    this.projectName = projectName;
+    this(
+        new SharedRefDbProjectContext(
+            refUpdateFactory,
+            batchRefUpdateFactory,
+            projectsFilter,
+            refEnforcement,
+            Project.nameKey(projectName),
+            ignoredRefs),
+        refDatabase);
+  }
+
+  SharedRefDbRefDatabase(SharedRefDbProjectContext projectContext, RefDatabase refDatabase) {
+    this.projectContext = projectContext;
     this.refDatabase = refDatabase;
-    this.ignoredRefs = ignoredRefs;
   }
 
   @Override
@@ -101,7 +118,7 @@ public class SharedRefDbRefDatabase extends RefDatabase {
 
   /**
    * Wrap a {@link RefUpdate} obtained by calling the underlying {@link RefDatabase} in a {@link
-   * SharedRefDbRefUpdate}
+   * SharedRefDbRefUpdate}, unless the update does not need to be validated.
    *
    * @see RefDatabase#newUpdate(String, boolean)
    * @throws java.io.IOException the reference cannot be accessed.
@@ -119,13 +136,14 @@ public class SharedRefDbRefDatabase extends RefDatabase {
   /**
    * Obtains a {@link SharedRefDbBatchRefUpdate} via the {@code BatchRefUpdate.Factory} invoked on
    * the underlying {@link RefDatabase}, so that batch updates can be validated against the shared
-   * ref-db.
+   * ref-db. When the project is not validated, the batch update of the underlying {@link
+   * RefDatabase} is returned instead.
    *
    * @see RefDatabase#newUpdate(String, boolean)
    */
   @Override
   public BatchRefUpdate newBatchUpdate() {
-    return batchRefUpdateFactory.create(projectName, refDatabase, ignoredRefs);
+    return projectContext.newBatchUpdate(refDatabase);
   }
 
   @Override
@@ -190,6 +208,6 @@ public class SharedRefDbRefDatabase extends RefDatabase {
   }
 
   RefUpdate wrapRefUpdate(RefUpdate refUpdate) {
-    return refUpdateFactory.create(projectName, refUpdate, refDatabase, ignoredRefs);
+    return projectContext.wrapRefUpdate(refUpdate, refDatabase);
   }
 }
@@ -126,7 +126,8 @@ public class SharedRefDbRefUpdate extends RefUpdate {
     return refUpdateValidator.executeRefUpdate(
         refUpdateBase,
         refUpdateBase::update,
-        objectId -> rollback(objectId, refUpdateBase::update));
+        objectId -> rollback(objectId, refUpdateBase::update),
+        true);
   }
 
   /**
@@ -144,7 +145,8 @@ public class SharedRefDbRefUpdate extends RefUpdate {
     return refUpdateValidator.executeRefUpdate(
         refUpdateBase,
         () -> refUpdateBase.update(rev),
-        objectId -> rollback(objectId, () -> refUpdateBase.update(rev)));
+        objectId -> rollback(objectId, () -> refUpdateBase.update(rev)),
+        true);
   }
 
   /**
@@ -294,7 +296,8 @@ public class SharedRefDbRefUpdate extends RefUpdate {
     return refUpdateValidator.executeRefUpdate(
         refUpdateBase,
         refUpdateBase::forceUpdate,
-        objectId -> rollback(objectId, refUpdateBase::forceUpdate));
+        objectId -> rollback(objectId, refUpdateBase::forceUpdate),
+        true);
   }
 
   @Override
@@ -57,6 +57,12 @@ public class SharedRefDbRepository extends DelegateRepository {
         refDbFactory.create(projectName, repository.getRefDatabase(), ignoredRefs);
   }
 
+  SharedRefDbRepository(SharedRefDbProjectContext projectContext, Repository repository) {
+    super(repository);
+    this.sharedRefDatabase =
+        new SharedRefDbRefDatabase(projectContext, repository.getRefDatabase());
+  }
+
   /**
    * Getter for the shared ref database
    *
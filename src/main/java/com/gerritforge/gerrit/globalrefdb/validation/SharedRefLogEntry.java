@@ -23,6 +23,7 @@ class SharedRefLogEntry {
     UPDATE_REF,
     DELETE_REF,
     DELETE_PROJECT,
+    REMOVE_REF,
     LOCK_ACQUIRE,
     LOCK_RELEASE
   }
@@ -76,6 +77,17 @@ class SharedRefLogEntry {
     }
   }
 
+  public static class RemoveRef extends SharedRefLogEntry {
+
+    public String refName;
+
+    RemoveRef(String projectName, String refName) {
+      this.type = Type.REMOVE_REF;
+      this.projectName = projectName;
+      this.refName = refName;
+    }
+  }
+
   public static class LockAcquire extends SharedRefLogEntry {
 
     public String refName;
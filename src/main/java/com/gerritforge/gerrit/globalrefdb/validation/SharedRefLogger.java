@@ -39,6 +39,17 @@ public interface SharedRefLogger {
    */
   <T> void logRefUpdate(String project, String refName, T currRef, T newRefValue);
 
+  /**
+   * Log the removal of 'refName' of 'project' from the global refdb, for example when purging the
+   * tombstone of a deleted ref.
+   *
+   * <p>The default implementation does not log anything.
+   *
+   * @param project the project containing the ref
+   * @param refName the name of the ref being removed
+   */
+  default void logRefRemoval(String project, String refName) {}
+
   /**
    * Log the deletion of 'project' from the global refdb
    *
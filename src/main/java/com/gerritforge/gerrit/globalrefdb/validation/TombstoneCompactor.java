@@ -0,0 +1,153 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Periodically purges from the global refdb the tombstones left by deleted refs, once their grace
+ * period has expired.
+ *
+ * <p>The tombstones of the refs deleted by this node are purged first, then the ones listed by the
+ * global refdb with {@link SharedRefDatabaseWrapper#listTombstones(long, int)}, which include the
+ * tombstones of the refs deleted by the other nodes or before the last restart, when supported by
+ * the implementation.
+ *
+ * <p>Each tombstone is removed under the global lock of its ref and only if it still has a {@link
+ * ObjectId#zeroId()} value, so that refs re-created in the meantime are never lost.
+ */
+@Singleton
+public class TombstoneCompactor implements LifecycleListener {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+  private static final String COMPACTION_QUEUE_NAME = "GlobalRefDbTombstoneCompactor";
+  @VisibleForTesting static final int LIST_BATCH_SIZE = 1000;
+
+  private final SharedRefDatabaseWrapper sharedDb;
+  private final Tombstones tombstones;
+  private final SharedRefDBMetrics metrics;
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final WorkQueue workQueue;
+  private ScheduledExecutorService executor;
+
+  /**
+   * Constructs a {@code TombstoneCompactor}.
+   *
+   * @param sharedDb global refdb the tombstones are purged from
+   * @param tombstones registry of the tombstones pending compaction
+   * @param metrics to track purged and retained tombstones
+   * @param cfg the global refdb configuration, defining the compaction interval
+   * @param workQueue to create the queue executing the compaction
+   */
+  @Inject
+  public TombstoneCompactor(
+      SharedRefDatabaseWrapper sharedDb,
+      Tombstones tombstones,
+      SharedRefDBMetrics metrics,
+      SharedRefDbConfiguration cfg,
+      WorkQueue workQueue) {
+    this.sharedDb = sharedDb;
+    this.tombstones = tombstones;
+    this.metrics = metrics;
+    this.cfg = cfg.getSharedRefDb();
+    this.workQueue = workQueue;
+  }
+
+  @Override
+  public void start() {
+    if (!cfg.isTombstoneCompactionEnabled()) {
+      return;
+    }
+
+    long intervalMs = cfg.getTombstoneCompactionIntervalMs();
+    executor = workQueue.createQueue(1, COMPACTION_QUEUE_NAME);
+    executor.scheduleWithFixedDelay(
+        () -> compact(System.currentTimeMillis()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @VisibleForTesting
+  void compact(long nowMillis) {
+    for (Tombstones.Tombstone tombstone : tombstones.pollExpired(nowMillis)) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      purge(tombstone.project, tombstone.refName);
+    }
+
+    long deletedBeforeMillis = nowMillis - cfg.getTombstoneGracePeriodMs();
+    List<BranchNameKey> listed;
+    do {
+      try {
+        listed = sharedDb.listTombstones(deletedBeforeMillis, LIST_BATCH_SIZE);
+      } catch (RuntimeException e) {
+        logger.atWarning().withCause(e).log("Unable to list the tombstones of the global refdb");
+        return;
+      }
+
+      int purged = 0;
+      for (BranchNameKey tombstone : listed) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        if (purge(tombstone.project(), tombstone.branch())) {
+          purged++;
+        }
+      }
+      // The tombstones retained would be listed again
+      if (purged == 0) {
+        return;
+      }
+    } while (listed.size() >= LIST_BATCH_SIZE);
+  }
+
+  private boolean purge(Project.NameKey project, String refName) {
+    Ref tombstoneRef = new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, ObjectId.zeroId());
+    try (AutoCloseable lock = sharedDb.lockRef(project, refName)) {
+      if (sharedDb.compareAndRemove(project, tombstoneRef)) {
+        metrics.incrementPurgedTombstones();
+        return true;
+      }
+      metrics.incrementRetainedTombstones();
+      logger.atFine().log(
+          "Tombstone %s:%s retained in the global refdb, it has been re-created or cannot be"
+              + " removed",
+          project, refName);
+    } catch (Exception e) {
+      metrics.incrementRetainedTombstones();
+      logger.atWarning().withCause(e).log(
+          "Unable to purge tombstone %s:%s from the global refdb", project, refName);
+    }
+    return false;
+  }
+}
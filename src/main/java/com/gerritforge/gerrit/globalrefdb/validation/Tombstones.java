@@ -0,0 +1,118 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import com.google.common.flogger.FluentLogger;
+import com.google.gerrit.entities.Project;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the tombstones left in the global refdb by the refs deleted on this node, so that
+ * they can be purged by the {@link TombstoneCompactor} once their grace period has expired.
+ *
+ * <p>Tombstones are kept in memory in order of deletion and are bounded by the configured maximum
+ * number of pending tombstones. Tombstones exceeding the limit, or still pending at shutdown, are
+ * left to the ones listed by the global refdb, and stay there when it does not support listing
+ * them.
+ */
+@Singleton
+public class Tombstones {
+  private static final FluentLogger logger = FluentLogger.forEnclosingClass();
+
+  private final SharedRefDbConfiguration.SharedRefDatabase cfg;
+  private final SharedRefDBMetrics metrics;
+  private final Queue<Tombstone> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+
+  /**
+   * Constructs a {@code Tombstones} registry.
+   *
+   * @param cfg the global refdb configuration, defining grace period and maximum number of pending
+   *     tombstones
+   * @param metrics to track the number of pending tombstones
+   */
+  @Inject
+  public Tombstones(SharedRefDbConfiguration cfg, SharedRefDBMetrics metrics) {
+    this.cfg = cfg.getSharedRefDb();
+    this.metrics = metrics;
+  }
+
+  /**
+   * Records the deletion of a ref from the global refdb. Does nothing when tombstone compaction is
+   * disabled.
+   *
+   * @param project project name of the ref
+   * @param refName name of the deleted ref
+   */
+  public void add(Project.NameKey project, String refName) {
+    if (!cfg.isTombstoneCompactionEnabled()) {
+      return;
+    }
+
+    if (pendingCount.incrementAndGet() > cfg.getTombstoneMaxPending()) {
+      pendingCount.decrementAndGet();
+      logger.atFine().log(
+          "Too many pending tombstones, %s:%s will not be purged from the global refdb",
+          project, refName);
+      return;
+    }
+
+    pending.add(new Tombstone(project, refName, System.currentTimeMillis()));
+    metrics.incrementPendingTombstones();
+  }
+
+  /**
+   * Removes and returns the tombstones whose grace period has expired.
+   *
+   * @param nowMillis current time, in milliseconds since the epoch
+   * @return the expired tombstones, in order of deletion
+   */
+  List<Tombstone> pollExpired(long nowMillis) {
+    List<Tombstone> expired = new ArrayList<>();
+    long deletedBeforeMillis = nowMillis - cfg.getTombstoneGracePeriodMs();
+    Tombstone head;
+    while ((head = pending.peek()) != null && head.deletedAtMillis <= deletedBeforeMillis) {
+      if (pending.remove(head)) {
+        pendingCount.decrementAndGet();
+        metrics.decrementPendingTombstones();
+        expired.add(head);
+      }
+    }
+    return expired;
+  }
+
+  static class Tombstone {
+    final Project.NameKey project;
+    final String refName;
+    final long deletedAtMillis;
+
+    Tombstone(Project.NameKey project, String refName, long deletedAtMillis) {
+      this.project = project;
+      this.refName = refName;
+      this.deletedAtMillis = deletedAtMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s:%s", project, refName);
+    }
+  }
+}
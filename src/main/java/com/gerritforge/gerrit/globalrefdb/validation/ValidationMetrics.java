@@ -18,9 +18,11 @@ import com.google.gerrit.metrics.Counter1;
 import com.google.gerrit.metrics.Description;
 import com.google.gerrit.metrics.Field;
 import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.server.logging.PluginMetadata;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates and registers metrics related to ref-db validations, such as split brains events. Such
@@ -32,9 +34,20 @@ import com.google.inject.Singleton;
 public class ValidationMetrics {
   private static final String GIT_UPDATE_SPLIT_BRAIN_PREVENTED = "git_update_split_brain_prevented";
   private static final String GIT_UPDATE_SPLIT_BRAIN = "git_update_split_brain";
+  private static final String SHADOW_VALIDATION_OUTCOME = "outcome";
+  private static final String BATCH_LOCK_MODE = "mode";
+  private static final String BATCH_COMMAND_OUTCOME = "outcome";
+  private static final String BATCH_COMPENSATION_OUTCOME = "outcome";
+  private static final String IDENTICAL_VALUE_UPDATE_OUTCOME = "outcome";
 
   private final Counter1<String> splitBrainPreventionCounter;
   private final Counter1<String> splitBrainCounter;
+  private final Counter1<String> shadowValidationCounter;
+  private final Timer0 shadowValidationLatency;
+  private final Counter1<String> batchLockModeCounter;
+  private final Counter1<String> batchCommandOutcomeCounter;
+  private final Counter1<String> batchCompensationCounter;
+  private final Counter1<String> identicalValueUpdateCounter;
 
   /**
    * Constructs a new {@code ValidationMetrics}, by passing metricMaker and the global refdb
@@ -60,6 +73,55 @@ public class ValidationMetrics {
             stringField(
                 GIT_UPDATE_SPLIT_BRAIN,
                 "Ref-update operation left node in a split-brain scenario"));
+
+    this.shadowValidationCounter =
+        metricMaker.newCounter(
+            String.format("%s/validation/shadow_validation", cfg.pluginName()),
+            rateDescription(
+                "validations", "Rate of shadow validations of ref-updates, by would-be outcome"),
+            stringField(
+                SHADOW_VALIDATION_OUTCOME,
+                "Outcome the ref-update would have had if the policy was REQUIRED"));
+
+    this.shadowValidationLatency =
+        metricMaker.newTimer(
+            String.format("%s/validation/shadow_validation_latency", cfg.pluginName()),
+            new Description(
+                    "Latency that the validation against the global refdb would have added to"
+                        + " ref-updates under the SHADOW policy")
+                .setCumulative()
+                .setUnit(Description.Units.MILLISECONDS));
+
+    this.batchLockModeCounter =
+        metricMaker.newCounter(
+            String.format("%s/validation/batch_lock_mode", cfg.pluginName()),
+            rateDescription("batches", "Rate of validated batch ref-updates, by locking mode"),
+            stringField(BATCH_LOCK_MODE, "Whether the refs or the whole project have been locked"));
+
+    this.batchCommandOutcomeCounter =
+        metricMaker.newCounter(
+            String.format("%s/validation/batch_command_outcome", cfg.pluginName()),
+            rateDescription(
+                "commands",
+                "Rate of validated commands of non-atomic batch ref-updates, by outcome"),
+            stringField(BATCH_COMMAND_OUTCOME, "Outcome of the validation of the command"));
+
+    this.batchCompensationCounter =
+        metricMaker.newCounter(
+            String.format("%s/validation/batch_compensation", cfg.pluginName()),
+            rateDescription(
+                "refs",
+                "Rate of refs reverted in the global refdb after a partial publication of a batch"),
+            stringField(BATCH_COMPENSATION_OUTCOME, "Whether the ref has been reverted"));
+
+    this.identicalValueUpdateCounter =
+        metricMaker.newCounter(
+            String.format("%s/validation/identical_value_update", cfg.pluginName()),
+            rateDescription(
+                "updates", "Rate of ref-updates setting a ref to the value it already has"),
+            stringField(
+                IDENTICAL_VALUE_UPDATE_OUTCOME,
+                "Whether the update has been short-circuited or fully validated"));
   }
 
   /**
@@ -78,6 +140,66 @@ public class ValidationMetrics {
     splitBrainCounter.increment(GIT_UPDATE_SPLIT_BRAIN);
   }
 
+  /**
+   * Increment the "shadow_validation" metric counter to record the outcome a ref-update under the
+   * SHADOW policy would have had if the validation was enforced.
+   *
+   * @param outcome the would-be outcome of the validation
+   */
+  public void incrementShadowValidation(ShadowRefValidator.Outcome outcome) {
+    shadowValidationCounter.increment(outcome.name().toLowerCase());
+  }
+
+  /**
+   * Record the latency that the validation of a ref-update under the SHADOW policy would have
+   * added, if enforced.
+   *
+   * @param latencyMs validation latency in milliseconds
+   */
+  public void recordShadowValidationLatency(long latencyMs) {
+    shadowValidationLatency.record(latencyMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Increment the "batch_lock_mode" metric counter to record whether a validated batch ref-update
+   * has locked its refs one by one or the whole project.
+   *
+   * @param mode the locking mode of the batch ref-update
+   */
+  public void incrementBatchLockMode(BatchRefUpdateValidator.LockMode mode) {
+    batchLockModeCounter.increment(mode.name().toLowerCase());
+  }
+
+  /**
+   * Increment the "batch_command_outcome" metric counter to record the outcome of the validation of
+   * a single command of a non-atomic batch ref-update.
+   *
+   * @param outcome the outcome of the command
+   */
+  public void incrementBatchCommandOutcome(BatchRefUpdateValidator.CommandOutcome outcome) {
+    batchCommandOutcomeCounter.increment(outcome.name().toLowerCase());
+  }
+
+  /**
+   * Increment the "batch_compensation" metric counter to record the outcome of reverting a ref
+   * already published to the global refdb by a batch ref-update which is being rolled back.
+   *
+   * @param outcome the outcome of the compensation
+   */
+  public void incrementCompensation(SharedRefCompensator.Outcome outcome) {
+    batchCompensationCounter.increment(outcome.name().toLowerCase());
+  }
+
+  /**
+   * Increment the "identical_value_update" metric counter to record a ref-update setting a ref to
+   * the value it already has, and whether its validation has been short-circuited.
+   *
+   * @param outcome the outcome of the update
+   */
+  public void incrementIdenticalValueUpdate(RefUpdateValidator.IdenticalValueOutcome outcome) {
+    identicalValueUpdateCounter.increment(outcome.name().toLowerCase());
+  }
+
   public Field<String> stringField(String metadataKey, String description) {
     return Field.ofString(
             metadataKey,
@@ -15,6 +15,7 @@
 package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
 
 import static com.google.common.base.Suppliers.memoize;
+import static com.google.common.base.Suppliers.ofInstance;
 
 import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration;
 import com.google.common.base.MoreObjects;
@@ -22,6 +23,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.Inject;
+import com.google.inject.Singleton;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -30,20 +32,24 @@ import java.util.Map;
  * Implementation of the {@link SharedRefEnforcement} interface which derives project and
  * project/ref enforcement policy from the configuration of the libModule consuming this library
  */
+@Singleton
 public class CustomSharedRefEnforcementByProject implements SharedRefEnforcement {
   private static final String ALL = ".*";
 
-  private final Supplier<Map<String, Map<String, EnforcePolicy>>> predefEnforcements;
+  private volatile Supplier<Map<String, Map<String, EnforcePolicy>>> predefEnforcements;
 
   /**
    * Constructs a {@code CustomSharedRefEnforcementByProject} with the values specified in the
-   * configuration of the libModule consuming this library
+   * configuration of the libModule consuming this library. The enforcement rules are rebuilt
+   * whenever the configuration is reloaded.
    *
    * @param config the libModule configuration
    */
   @Inject
   public CustomSharedRefEnforcementByProject(SharedRefDbConfiguration config) {
     this.predefEnforcements = memoize(() -> parseDryRunEnforcementsToMap(config));
+    config.addReloadListener(
+        () -> predefEnforcements = ofInstance(parseDryRunEnforcementsToMap(config)));
   }
 
   private static Map<String, Map<String, EnforcePolicy>> parseDryRunEnforcementsToMap(
@@ -101,11 +107,9 @@ public class CustomSharedRefEnforcementByProject implements SharedRefEnforcement
   }
 
   private EnforcePolicy getRefEnforcePolicy(String projectName, String refName) {
+    Map<String, Map<String, EnforcePolicy>> enforcements = predefEnforcements.get();
     Map<String, EnforcePolicy> orDefault =
-        predefEnforcements
-            .get()
-            .getOrDefault(
-                projectName, predefEnforcements.get().getOrDefault(ALL, ImmutableMap.of()));
+        enforcements.getOrDefault(projectName, enforcements.getOrDefault(ALL, ImmutableMap.of()));
 
     return MoreObjects.firstNonNull(
         orDefault.getOrDefault(refName, orDefault.get(ALL)), EnforcePolicy.REQUIRED);
@@ -121,11 +125,9 @@ public class CustomSharedRefEnforcementByProject implements SharedRefEnforcement
    */
   @Override
   public EnforcePolicy getPolicy(String projectName) {
+    Map<String, Map<String, EnforcePolicy>> enforcements = predefEnforcements.get();
     Map<String, EnforcePolicy> policiesForProject =
-        predefEnforcements
-            .get()
-            .getOrDefault(
-                projectName, predefEnforcements.get().getOrDefault(ALL, ImmutableMap.of()));
+        enforcements.getOrDefault(projectName, enforcements.getOrDefault(ALL, ImmutableMap.of()));
     return policiesForProject.getOrDefault(ALL, EnforcePolicy.REQUIRED);
   }
 }
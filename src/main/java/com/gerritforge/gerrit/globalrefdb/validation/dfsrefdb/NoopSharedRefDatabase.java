@@ -90,6 +90,19 @@ public class NoopSharedRefDatabase implements GlobalRefDatabase {
     return () -> {};
   }
 
+  /**
+   * Locking the project does nothing, but return an dummy {@link java.io.Closeable}.
+   *
+   * @param project project name
+   * @return a dummy {@link java.io.Closeable}.
+   * @throws GlobalRefDbLockException Never thrown by this implementation
+   */
+  @Override
+  public Optional<AutoCloseable> lockProject(Project.NameKey project)
+      throws GlobalRefDbLockException {
+    return Optional.of(() -> {});
+  }
+
   /**
    * project/refs are always assumed to be new as to never be considered out-of-sync
    *
@@ -112,6 +125,20 @@ public class NoopSharedRefDatabase implements GlobalRefDatabase {
   @Override
   public void remove(Project.NameKey project) throws GlobalRefDbSystemError {}
 
+  /**
+   * Nothing is stored, hence nothing is ever removed
+   *
+   * @param project project name of the ref
+   * @param currRef expected current value of the reference
+   * @return false
+   * @throws GlobalRefDbSystemError Never thrown by this implementation
+   */
+  @Override
+  public boolean compareAndRemove(Project.NameKey project, Ref currRef)
+      throws GlobalRefDbSystemError {
+    return false;
+  }
+
   /**
    * Always return an empty object as to never be considered existing in the global refdb.
    *
@@ -18,7 +18,18 @@ package com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb;
 public interface SharedRefEnforcement {
   public enum EnforcePolicy {
     IGNORED,
-    REQUIRED;
+    REQUIRED,
+    /**
+     * The ref is updated locally without validation against the global refdb, which is then updated
+     * in background. Suitable for refs not needing synchronous global consistency.
+     */
+    ASYNC,
+    /**
+     * The ref is updated locally without validation against the global refdb, which is then
+     * performed in background only to record its would-be outcome. Suitable for measuring the
+     * impact of the {@link #REQUIRED} policy before enabling it.
+     */
+    SHADOW;
   }
 
   /**
@@ -0,0 +1,60 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.time.Duration;
+import org.junit.Test;
+
+public class DeadlineTest {
+
+  @Test
+  public void shouldNeverExpireWhenNotBounded() {
+    assertThat(Deadline.none().isBounded()).isFalse();
+    assertThat(Deadline.none().isExpired()).isFalse();
+  }
+
+  @Test
+  public void shouldExpireOnceTheTimeoutHasElapsed() {
+    assertThat(Deadline.after(Duration.ZERO).isExpired()).isTrue();
+    assertThat(Deadline.after(Duration.ZERO).remaining()).isEqualTo(Duration.ZERO);
+    assertThat(Deadline.after(Duration.ofMinutes(1)).isExpired()).isFalse();
+  }
+
+  @Test
+  public void shouldReturnTheEarliestDeadline() {
+    Deadline earlier = Deadline.after(Duration.ofSeconds(1));
+    Deadline later = Deadline.after(Duration.ofMinutes(1));
+
+    assertThat(earlier.earliest(later)).isSameInstanceAs(earlier);
+    assertThat(later.earliest(earlier)).isSameInstanceAs(earlier);
+    assertThat(Deadline.none().earliest(later)).isSameInstanceAs(later);
+  }
+
+  @Test
+  public void shouldKeepTheEarliestDeadlineOfTheNestedScopes() {
+    Deadline earlier = Deadline.after(Duration.ofSeconds(1));
+    Deadline later = Deadline.after(Duration.ofMinutes(1));
+
+    try (Deadline.Scope outer = earlier.enter()) {
+      try (Deadline.Scope inner = later.enter()) {
+        assertThat(Deadline.current()).isSameInstanceAs(earlier);
+      }
+      assertThat(Deadline.current()).isSameInstanceAs(earlier);
+    }
+    assertThat(Deadline.current()).isSameInstanceAs(Deadline.none());
+  }
+}
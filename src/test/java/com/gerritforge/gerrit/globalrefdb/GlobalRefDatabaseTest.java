@@ -18,7 +18,9 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import com.google.gerrit.acceptance.AbstractDaemonTest;
+import com.google.gerrit.entities.Project;
 import com.google.gerrit.entities.RefNames;
+import com.google.gerrit.testing.GerritJUnit;
 import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -210,6 +212,32 @@ public class GlobalRefDatabaseTest extends AbstractDaemonTest {
     assertThat(objectUnderTest.compareAndPut(project, refName, object2, object3)).isFalse();
   }
 
+  @Test
+  public void shouldAllocateConsecutiveBlocksOfACounter() {
+    String counterName = "refs/sequences/changes";
+
+    assertThat(objectUnderTest.allocateBlock(project, counterName, 10)).isEqualTo(1L);
+    assertThat(objectUnderTest.allocateBlock(project, counterName, 10)).isEqualTo(11L);
+    assertThat(objectUnderTest.incrementAndGet(project, counterName)).isEqualTo(21L);
+    assertThat(objectUnderTest.get(project, counterName, Long.class).get()).isEqualTo(21L);
+  }
+
+  @Test
+  public void shouldFailToAllocateABlockWhenTheCounterCannotBeUpdated() {
+    GlobalRefDatabase readOnlyRefDb =
+        new FakeGlobalRefDatabase() {
+          @Override
+          public <T> boolean compareAndPut(
+              Project.NameKey project, String refName, T currValue, T newValue) {
+            return false;
+          }
+        };
+
+    GerritJUnit.assertThrows(
+        GlobalRefDbSystemError.class,
+        () -> readOnlyRefDb.allocateBlock(project, "refs/sequences/changes", 10));
+  }
+
   private Ref ref(String refName, ObjectId objectId) {
     return new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, refName, objectId);
   }
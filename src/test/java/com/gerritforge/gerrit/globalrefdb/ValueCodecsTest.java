@@ -0,0 +1,123 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.gerrit.extensions.registration.RegistrationHandle;
+import com.google.gerrit.testing.GerritJUnit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Test;
+
+public class ValueCodecsTest {
+  private static final ObjectId AN_OBJECT_ID =
+      ObjectId.fromString("0123456789abcdef0123456789abcdef01234567");
+
+  @Test
+  public void shouldEncodeLongsAsEightBytes() {
+    byte[] bytes = ValueCodecs.LONG.encode(Long.MAX_VALUE);
+
+    assertThat(bytes).hasLength(Long.BYTES);
+    assertThat(ValueCodecs.LONG.decode(bytes)).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void shouldEncodeStringsAsUtf8() {
+    String value = "refs/heads/mäster";
+
+    assertThat(ValueCodecs.STRING.decode(ValueCodecs.STRING.encode(value))).isEqualTo(value);
+  }
+
+  @Test
+  public void shouldEncodeObjectIdsAsRawBytes() {
+    byte[] bytes = ValueCodecs.OBJECT_ID.encode(AN_OBJECT_ID);
+
+    assertThat(bytes).hasLength(20);
+    assertThat(ValueCodecs.OBJECT_ID.decode(bytes)).isEqualTo(AN_OBJECT_ID);
+  }
+
+  @Test
+  public void shouldRejectEncodingsOfTheWrongLength() {
+    GerritJUnit.assertThrows(
+        IllegalArgumentException.class, () -> ValueCodecs.LONG.decode(new byte[3]));
+  }
+
+  @Test
+  public void shouldFindTheCodecOfSubtypes() {
+    assertThat(ValueCodecs.forType(RevCommit.class).get()).isSameInstanceAs(ValueCodecs.OBJECT_ID);
+    assertThat(ValueCodecs.forType(Long.class).get()).isSameInstanceAs(ValueCodecs.LONG);
+    assertThat(ValueCodecs.forType(Object.class).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldFindTheRegisteredCodecsUntilUnregistered() {
+    ValueCodec<StringBuilder> codec =
+        new ValueCodec<>() {
+          @Override
+          public Class<StringBuilder> type() {
+            return StringBuilder.class;
+          }
+
+          @Override
+          public byte[] encode(StringBuilder value) {
+            return ValueCodecs.STRING.encode(value.toString());
+          }
+
+          @Override
+          public StringBuilder decode(byte[] bytes) {
+            return new StringBuilder(ValueCodecs.STRING.decode(bytes));
+          }
+        };
+    assertThat(ValueCodecs.forType(StringBuilder.class).isPresent()).isFalse();
+
+    RegistrationHandle registration = ValueCodecs.register(codec);
+    assertThat(ValueCodecs.forType(StringBuilder.class).get()).isSameInstanceAs(codec);
+
+    registration.remove();
+    assertThat(ValueCodecs.forType(StringBuilder.class).isPresent()).isFalse();
+  }
+
+  @Test
+  public void shouldFormatValuesWithTheirCodec() {
+    assertThat(ValueCodecs.format(AN_OBJECT_ID)).isEqualTo(AN_OBJECT_ID.name());
+    assertThat(ValueCodecs.format(42L)).isEqualTo("42");
+    assertThat(ValueCodecs.format(null)).isEqualTo("<null>");
+  }
+
+  @Test
+  public void shouldCompressOnlyTheValuesAboveTheThreshold() {
+    ValueCodec<String> codec = ValueCodecs.compressing(ValueCodecs.STRING, 64);
+    String smallValue = "small";
+    String largeValue = Strings.repeat("large", 1000);
+
+    byte[] smallBytes = codec.encode(smallValue);
+    byte[] largeBytes = codec.encode(largeValue);
+
+    assertThat(smallBytes).hasLength(smallValue.length() + 1);
+    assertThat(largeBytes.length).isLessThan(largeValue.length() / 10);
+    assertThat(codec.decode(smallBytes)).isEqualTo(smallValue);
+    assertThat(codec.decode(largeBytes)).isEqualTo(largeValue);
+  }
+
+  @Test
+  public void shouldRejectCorruptedCompressedValues() {
+    ValueCodec<String> codec = ValueCodecs.compressing(ValueCodecs.STRING, 0);
+
+    GerritJUnit.assertThrows(
+        IllegalArgumentException.class, () -> codec.decode(new byte[] {1, 42, 42}));
+  }
+}
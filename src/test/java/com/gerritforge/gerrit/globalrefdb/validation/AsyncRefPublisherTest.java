@@ -0,0 +1,201 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncRefPublisherTest implements RefFixture {
+  private static final int VERIFY_TIMEOUT_MS = 5000;
+
+  @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock SharedRefDBMetrics metrics;
+  @Mock WorkQueue workQueue;
+  @Mock AutoCloseable lock;
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private ScheduledExecutorService executor;
+  private AsyncRefPublisher objectUnderTest;
+  private Ref oldRef;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    oldRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1);
+
+    objectUnderTest = newAsyncRefPublisher();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldPublishRefUpdateUnderLock() throws Exception {
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .thenReturn(true);
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).decrementPendingAsyncPublications();
+    verify(lock).close();
+    verify(metrics).recordAsyncPublicationLag(anyLong());
+  }
+
+  @Test
+  public void shouldCoalesceUpdatesQueuedBeforePublication() throws Exception {
+    CountDownLatch executorBusy = new CountDownLatch(1);
+    executor.execute(
+        () -> {
+          try {
+            executorBusy.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_3))
+        .thenReturn(true);
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    objectUnderTest.publish(
+        A_TEST_PROJECT_NAME_KEY, newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2), AN_OBJECT_ID_3);
+    executorBusy.countDown();
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).decrementPendingAsyncPublications();
+    verify(metrics).incrementCoalescedAsyncPublications();
+    verify(sharedRefDatabase, times(1)).compareAndPut(any(), any(Ref.class), any());
+  }
+
+  @Test
+  public void shouldRetryPublicationFailedBySystemError() throws Exception {
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .thenThrow(new GlobalRefDbSystemError("test", new Exception()))
+        .thenReturn(true);
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).decrementPendingAsyncPublications();
+    verify(sharedRefDatabase, times(2))
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+  }
+
+  @Test
+  public void shouldPublishOnTopOfTheGlobalValueWhenRejectedByGlobalRefDb() throws Exception {
+    Ref globalRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_3);
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .thenReturn(false);
+    when(sharedRefDatabase.get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, ObjectId.class))
+        .thenReturn(Optional.of(AN_OBJECT_ID_3));
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY), refEquals(globalRef), eq(AN_OBJECT_ID_2)))
+        .thenReturn(true);
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).decrementPendingAsyncPublications();
+    verify(metrics).recordAsyncPublicationLag(anyLong());
+    verify(metrics, never()).incrementFailedAsyncPublications();
+  }
+
+  @Test
+  public void shouldDropPublicationRejectedByGlobalRefDbAfterTheMaxAttempts() throws Exception {
+    when(sharedRefDatabase.compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), any()))
+        .thenReturn(false);
+    when(sharedRefDatabase.get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, ObjectId.class))
+        .thenReturn(Optional.of(AN_OBJECT_ID_3));
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).decrementPendingAsyncPublications();
+    verify(metrics).incrementFailedAsyncPublications();
+    verify(metrics, never()).recordAsyncPublicationLag(anyLong());
+    verify(sharedRefDatabase, times(3))
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), any());
+  }
+
+  @Test
+  public void shouldPublishAtStartupTheUpdatesPendingAtShutdown() throws Exception {
+    executor.shutdown();
+
+    objectUnderTest.publish(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    objectUnderTest.stop();
+    verify(sharedRefDatabase, never()).compareAndPut(any(), any(Ref.class), any());
+
+    executor = Executors.newSingleThreadScheduledExecutor();
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY), refEquals(oldRef), eq(AN_OBJECT_ID_2)))
+        .thenReturn(true);
+    newAsyncRefPublisher().start();
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).recordAsyncPublicationLag(anyLong());
+  }
+
+  private AsyncRefPublisher newAsyncRefPublisher() throws IOException {
+    Config config = new Config();
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.ASYNC_PUBLISH_RETRY_DELAY_KEY, "1 ms");
+    return new AsyncRefPublisher(
+        sharedRefDatabase,
+        metrics,
+        new SharedRefDbConfiguration(config, "testplugin"),
+        new SitePaths(tempFolder.getRoot().toPath()),
+        workQueue);
+  }
+
+  private static Ref refEquals(Ref expected) {
+    return argThat(
+        r ->
+            r != null
+                && r.getName().equals(expected.getName())
+                && r.getObjectId().equals(expected.getObjectId()));
+  }
+}
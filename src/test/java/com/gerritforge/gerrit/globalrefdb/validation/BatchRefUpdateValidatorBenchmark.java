@@ -0,0 +1,261 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static org.mockito.Mockito.mock;
+
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.git.WorkQueue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Measures the local ref lookups and the time spent validating a batch ref-update against a
+ * repository with a large packed-refs file. It is not run as part of the unit tests, but can be
+ * launched from the test classpath:
+ *
+ * <pre>
+ *   java -cp target/test-classes:target/classes:$(cat classpath.txt) \
+ *     com.gerritforge.gerrit.globalrefdb.validation.BatchRefUpdateValidatorBenchmark \
+ *     [packedRefs] [batchSize]
+ * </pre>
+ */
+public class BatchRefUpdateValidatorBenchmark {
+  private static final int DEFAULT_PACKED_REFS = 100_000;
+  private static final int DEFAULT_BATCH_SIZE = 1000;
+  private static final int WARMUP_ITERATIONS = 50;
+  private static final int MEASURED_ITERATIONS = 200;
+  private static final String PROJECT_NAME = "benchmark";
+
+  public static void main(String[] args) throws Exception {
+    int packedRefs = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PACKED_REFS;
+    int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_BATCH_SIZE;
+    Logger.getRootLogger().setLevel(Level.INFO);
+
+    File repoDir = Files.createTempDirectory("packed-refs-benchmark").toFile();
+    try (Repository repo = new FileRepository(repoDir)) {
+      repo.create(true);
+      ObjectId oldId = newCommit(repo, "old");
+      ObjectId newId = newCommit(repo, "new");
+      packRefs(repo, packedRefs, oldId);
+
+      CountingRefDatabase refDb = new CountingRefDatabase(repo.getRefDatabase());
+      BatchRefUpdateValidator validator = newValidator(refDb);
+      BatchRefUpdate batchRefUpdate = repo.getRefDatabase().newBatchUpdate();
+      int step = packedRefs / batchSize;
+      for (int i = 0; i < batchSize; i++) {
+        batchRefUpdate.addCommand(
+            new ReceiveCommand(oldId, newId, refName(i * step), ReceiveCommand.Type.UPDATE));
+      }
+
+      for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+        validate(validator, batchRefUpdate);
+      }
+      refDb.reset();
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+        validate(validator, batchRefUpdate);
+      }
+      long elapsedNanos = System.nanoTime() - startNanos;
+
+      long validatedCommands = (long) MEASURED_ITERATIONS * batchSize;
+      System.out.printf(
+          "packed refs: %d, batch size: %d%n"
+              + "single-ref lookups per command: %.2f%n"
+              + "multi-ref lookups per batch: %.2f%n"
+              + "validation time per command: %.2f us%n",
+          packedRefs,
+          batchSize,
+          (double) refDb.singleLookups / validatedCommands,
+          (double) refDb.multiLookups / MEASURED_ITERATIONS,
+          (double) elapsedNanos / validatedCommands / 1000);
+    } finally {
+      FileUtils.delete(repoDir, FileUtils.RECURSIVE);
+    }
+  }
+
+  private static void validate(BatchRefUpdateValidator validator, BatchRefUpdate batchRefUpdate)
+      throws IOException {
+    // The local update is not executed, so that only the validation is measured
+    validator.executeBatchUpdateWithValidation(batchRefUpdate, () -> {}, commands -> {});
+  }
+
+  private static BatchRefUpdateValidator newValidator(RefDatabase refDb) {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(new Config(), "benchmark");
+    SharedRefDBMetrics sharedRefDBMetrics = new SharedRefDBMetrics(new DisabledMetricMaker());
+    SharedRefDatabaseWrapper sharedRefDb =
+        new SharedRefDatabaseWrapper(
+            new DisabledSharedRefLogger(),
+            sharedRefDBMetrics,
+            new Tombstones(cfg, sharedRefDBMetrics),
+            new ConcurrencyLimiter(sharedRefDBMetrics, cfg),
+            new CircuitBreaker(sharedRefDBMetrics, cfg),
+            new ReadHedger(
+                new GlobalRefDbExecutor(sharedRefDBMetrics, cfg), sharedRefDBMetrics, cfg));
+    ValidationMetrics validationMetrics = new ValidationMetrics(new DisabledMetricMaker(), cfg);
+    return new BatchRefUpdateValidator(
+        sharedRefDb,
+        validationMetrics,
+        new DefaultSharedRefEnforcement(),
+        new DummyLockWrapper(),
+        new ProjectsFilter(cfg),
+        null,
+        null,
+        new LocalRefLocks(sharedRefDBMetrics, cfg),
+        new SharedRefCompensator(sharedRefDb, validationMetrics, cfg, mock(WorkQueue.class)),
+        cfg,
+        PROJECT_NAME,
+        refDb,
+        ImmutableSet.of());
+  }
+
+  private static ObjectId newCommit(Repository repo, String message) throws IOException {
+    try (ObjectInserter inserter = repo.newObjectInserter()) {
+      PersonIdent ident = new PersonIdent("Benchmark", "benchmark@example.com");
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(Constants.OBJ_TREE, new byte[0]));
+      commit.setAuthor(ident);
+      commit.setCommitter(ident);
+      commit.setMessage(message);
+      ObjectId commitId = inserter.insert(commit);
+      inserter.flush();
+      return commitId;
+    }
+  }
+
+  private static void packRefs(Repository repo, int packedRefs, ObjectId id) throws IOException {
+    // Atomic batches of the RefDirectory are written straight into the packed-refs file
+    BatchRefUpdate createRefs = repo.getRefDatabase().newBatchUpdate();
+    createRefs.setAtomic(true);
+    for (int i = 0; i < packedRefs; i++) {
+      createRefs.addCommand(new ReceiveCommand(ObjectId.zeroId(), id, refName(i)));
+    }
+    try (RevWalk rw = new RevWalk(repo)) {
+      createRefs.execute(rw, null);
+    }
+  }
+
+  private static String refName(int i) {
+    return String.format("refs/heads/branch-%06d", i);
+  }
+
+  /** Counts the lookups of local refs, delegating all the operations to the wrapped refdb. */
+  private static class CountingRefDatabase extends RefDatabase {
+    private final RefDatabase delegate;
+    private long singleLookups;
+    private long multiLookups;
+
+    CountingRefDatabase(RefDatabase delegate) {
+      this.delegate = delegate;
+    }
+
+    void reset() {
+      singleLookups = 0;
+      multiLookups = 0;
+    }
+
+    @Override
+    public Ref exactRef(String name) throws IOException {
+      singleLookups++;
+      return delegate.exactRef(name);
+    }
+
+    @Override
+    public Map<String, Ref> exactRef(String... refs) throws IOException {
+      multiLookups++;
+      return delegate.exactRef(refs);
+    }
+
+    @Override
+    public Ref firstExactRef(String... refs) throws IOException {
+      singleLookups++;
+      return delegate.firstExactRef(refs);
+    }
+
+    @Override
+    public void create() throws IOException {
+      delegate.create();
+    }
+
+    @Override
+    public void close() {
+      delegate.close();
+    }
+
+    @Override
+    public boolean isNameConflicting(String name) throws IOException {
+      return delegate.isNameConflicting(name);
+    }
+
+    @Override
+    public RefUpdate newUpdate(String name, boolean detach) throws IOException {
+      return delegate.newUpdate(name, detach);
+    }
+
+    @Override
+    public RefRename newRename(String fromName, String toName) throws IOException {
+      return delegate.newRename(fromName, toName);
+    }
+
+    @Override
+    public BatchRefUpdate newBatchUpdate() {
+      return delegate.newBatchUpdate();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, Ref> getRefs(String prefix) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Ref> getRefsByPrefix(String prefix) throws IOException {
+      return delegate.getRefsByPrefix(prefix);
+    }
+
+    @Override
+    public List<Ref> getAdditionalRefs() throws IOException {
+      return delegate.getAdditionalRefs();
+    }
+
+    @Override
+    public Ref peel(Ref ref) throws IOException {
+      return delegate.peel(ref);
+    }
+  }
+}
@@ -18,14 +18,18 @@ import static com.google.common.truth.Truth.assertThat;
 import static java.util.Collections.singletonList;
 import static org.eclipse.jgit.transport.ReceiveCommand.Type.UPDATE;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.Mockito.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.gerritforge.gerrit.globalrefdb.Deadline;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterVoidFunction;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
@@ -35,8 +39,13 @@ import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
 import com.google.gerrit.metrics.DisabledMetricMaker;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import org.eclipse.jgit.internal.storage.file.RefDirectory;
 import org.eclipse.jgit.junit.LocalDiskRepositoryTestCase;
 import org.eclipse.jgit.junit.TestRepository;
@@ -44,6 +53,7 @@ import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -55,11 +65,16 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase implements RefFixture {
+  private static final String REF_ONE = "refs/heads/one";
+  private static final String REF_TWO = "refs/heads/two";
+  private static final String REF_THREE = "refs/heads/three";
+
   @Rule public TestName nameRule = new TestName();
 
   private Repository diskRepo;
@@ -67,18 +82,32 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
   private RefDirectory refdir;
   private RevCommit A;
   private RevCommit B;
+  private Config globalRefDbConfig;
 
   @Mock SharedRefDatabaseWrapper sharedRefDatabase;
 
   @Mock SharedRefEnforcement tmpRefEnforcement;
   @Mock ProjectsFilter projectsFilter;
+  @Mock AsyncRefPublisher asyncRefPublisher;
+  @Mock ShadowRefValidator shadowRefValidator;
+  @Mock SharedRefCompensator sharedRefCompensator;
   @Mock OneParameterVoidFunction<List<ReceiveCommand>> rollbackFunction;
+  @Mock ProgressMonitor progressMonitor;
 
   @Before
   public void setup() throws Exception {
     super.setUp();
+    globalRefDbConfig = new Config();
     doReturn(false).when(sharedRefDatabase).isUpToDate(any(), any());
-    when(projectsFilter.matches(anyString())).thenReturn(true);
+    lenient()
+        .doAnswer(
+            invocation ->
+                CompletableFuture.completedFuture(
+                    sharedRefDatabase.isUpToDate(
+                        invocation.getArgument(0), invocation.getArgument(1))))
+        .when(sharedRefDatabase)
+        .isUpToDateAsync(any(), any());
+    when(projectsFilter.matches(any(Project.NameKey.class))).thenReturn(true);
     gitRepoSetup();
   }
 
@@ -180,7 +209,7 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
 
   @Test
   public void shouldNotUpdateSharedRefDbWhenProjectIsLocal() throws Exception {
-    when(projectsFilter.matches(anyString())).thenReturn(false);
+    when(projectsFilter.matches(any(Project.NameKey.class))).thenReturn(false);
 
     String AN_OUT_OF_SYNC_REF = "refs/changes/01/1/1";
     BatchRefUpdate batchRefUpdate =
@@ -195,19 +224,353 @@ public class BatchRefUpdateValidatorTest extends LocalDiskRepositoryTestCase imp
         .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
   }
 
+  @Test
+  public void shouldLockTheWholeProjectForLargeBatches() throws Exception {
+    setBatchProjectLockThreshold(2);
+    BatchRefUpdate batchRefUpdate = newLargeBatchUpdate();
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    AutoCloseable projectLock = mock(AutoCloseable.class);
+    doReturn(Optional.of(projectLock)).when(sharedRefDatabase).lockProject(A_TEST_PROJECT_NAME_KEY);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
+
+    verify(sharedRefDatabase, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(projectLock).close();
+  }
+
+  @Test
+  public void shouldHoldTheProjectLockAcrossTheBatchesOfARefLockSession() throws Exception {
+    setBatchProjectLockThreshold(2);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    AutoCloseable projectLock = mock(AutoCloseable.class);
+    doReturn(Optional.of(projectLock)).when(sharedRefDatabase).lockProject(A_TEST_PROJECT_NAME_KEY);
+
+    try (RefLockSession session = RefLockSession.open()) {
+      for (int i = 0; i < 2; i++) {
+        BatchRefUpdate batchRefUpdate = newLargeBatchUpdate();
+        batchRefUpdateValidator.executeBatchUpdateWithValidation(
+            batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
+      }
+      verify(projectLock, never()).close();
+    }
+
+    verify(sharedRefDatabase, times(1)).lockProject(A_TEST_PROJECT_NAME_KEY);
+    verify(sharedRefDatabase, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(projectLock).close();
+  }
+
+  @Test
+  public void shouldLockRefsIndividuallyWhenProjectLocksAreNotSupported() throws Exception {
+    setBatchProjectLockThreshold(2);
+    BatchRefUpdate batchRefUpdate = newLargeBatchUpdate();
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    doReturn(Optional.empty()).when(sharedRefDatabase).lockProject(A_TEST_PROJECT_NAME_KEY);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
+
+    verify(sharedRefDatabase, times(2))
+        .lockRef(eq(A_TEST_PROJECT_NAME_KEY), any(), any(Deadline.class));
+  }
+
+  @Test
+  public void shouldLockRefsIndividuallyForBatchesBelowTheThreshold() throws Exception {
+    setBatchProjectLockThreshold(3);
+    BatchRefUpdate batchRefUpdate = newLargeBatchUpdate();
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
+
+    verify(sharedRefDatabase, never()).lockProject(any());
+    verify(sharedRefDatabase, times(2))
+        .lockRef(eq(A_TEST_PROJECT_NAME_KEY), any(), any(Deadline.class));
+  }
+
+  @Test
+  public void shouldStreamLargeNonAtomicBatchesInChunks() throws Exception {
+    setBatchChunkSize(2);
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(false);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    List<Integer> chunkSizes = new ArrayList<>();
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate,
+        progressMonitor,
+        () -> execute(batchRefUpdate),
+        chunk -> {
+          chunkSizes.add(chunk.size());
+          BatchRefUpdate chunkUpdate = refdir.newBatchUpdate();
+          chunkUpdate.setAtomic(false);
+          chunkUpdate.addCommand(chunk);
+          execute(chunkUpdate);
+        },
+        this::defaultRollback);
+
+    assertThat(chunkSizes).containsExactly(2, 1).inOrder();
+    verify(progressMonitor).update(2);
+    verify(progressMonitor).update(1);
+    verify(progressMonitor).endTask();
+    verify(sharedRefDatabase, times(3))
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), eq(B.getId()));
+    batchRefUpdate
+        .getCommands()
+        .forEach(command -> assertThat(command.getResult()).isEqualTo(Result.OK));
+  }
+
+  @Test
+  public void shouldHoldTheProjectLockAcrossTheChunksOfLargeBatches() throws Exception {
+    setBatchChunkSize(1);
+    setBatchProjectLockThreshold(3);
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(false);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    AutoCloseable projectLock = mock(AutoCloseable.class);
+    doReturn(Optional.of(projectLock)).when(sharedRefDatabase).lockProject(A_TEST_PROJECT_NAME_KEY);
+    List<Integer> chunkSizes = new ArrayList<>();
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate,
+        progressMonitor,
+        () -> execute(batchRefUpdate),
+        chunk -> {
+          chunkSizes.add(chunk.size());
+          BatchRefUpdate chunkUpdate = refdir.newBatchUpdate();
+          chunkUpdate.setAtomic(false);
+          chunkUpdate.addCommand(chunk);
+          execute(chunkUpdate);
+        },
+        this::defaultRollback);
+
+    assertThat(chunkSizes).containsExactly(1, 1, 1);
+    verify(sharedRefDatabase, times(1)).lockProject(A_TEST_PROJECT_NAME_KEY);
+    verify(sharedRefDatabase, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(projectLock).close();
+    batchRefUpdate
+        .getCommands()
+        .forEach(command -> assertThat(command.getResult()).isEqualTo(Result.OK));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotChunkAtomicBatches() throws Exception {
+    setBatchChunkSize(2);
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(true);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    OneParameterVoidFunction<List<ReceiveCommand>> chunkUpdateFunction =
+        mock(OneParameterVoidFunction.class);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate,
+        progressMonitor,
+        () -> execute(batchRefUpdate),
+        chunkUpdateFunction,
+        this::defaultRollback);
+
+    verify(chunkUpdateFunction, never()).invoke(any());
+    verify(sharedRefDatabase, times(3))
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), eq(B.getId()));
+  }
+
+  @Test
+  public void shouldFailOnlyTheOutOfSyncCommandsOfNonAtomicBatches() throws Exception {
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(false);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    doReturn(false)
+        .when(sharedRefDatabase)
+        .isUpToDate(eq(A_TEST_PROJECT_NAME_KEY), argThat(ref -> ref.getName().equals(REF_TWO)));
+    doReturn(true).when(sharedRefDatabase).exists(A_TEST_PROJECT_NAME_KEY, REF_TWO);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    assertThat(resultsByRefName(batchRefUpdate))
+        .containsExactly(REF_ONE, Result.OK, REF_TWO, Result.LOCK_FAILURE, REF_THREE, Result.OK);
+    assertThat(diskRepo.exactRef(REF_TWO).getObjectId()).isEqualTo(A.getId());
+    verify(sharedRefDatabase, times(2))
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), eq(B.getId()));
+    verify(rollbackFunction, never()).invoke(any());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRollbackOnlyTheUnpublishedCommandsOfNonAtomicBatches() throws Exception {
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(false);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    doThrow(GlobalRefDbSystemError.class)
+        .when(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(ref -> ref.getName().equals(REF_TWO)),
+            any(ObjectId.class));
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    ArgumentCaptor<List<ReceiveCommand>> rollbackCommands = ArgumentCaptor.forClass(List.class);
+    verify(rollbackFunction).invoke(rollbackCommands.capture());
+    assertThat(rollbackCommands.getValue()).hasSize(1);
+    assertThat(rollbackCommands.getValue().get(0).getRefName()).isEqualTo(REF_TWO);
+    assertThat(resultsByRefName(batchRefUpdate))
+        .containsExactly(REF_ONE, Result.OK, REF_TWO, Result.LOCK_FAILURE, REF_THREE, Result.OK);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRevertThePublishedRefsWhenAtomicBatchFailsToPublish() throws Exception {
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(true);
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+    doThrow(GlobalRefDbSystemError.class)
+        .when(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(ref -> ref.getName().equals(REF_TWO)),
+            any(ObjectId.class));
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    ArgumentCaptor<List<RefPair>> publishedRefs = ArgumentCaptor.forClass(List.class);
+    verify(sharedRefCompensator).compensate(eq(A_TEST_PROJECT_NAME_KEY), publishedRefs.capture());
+    assertThat(publishedRefs.getValue()).hasSize(1);
+    assertThat(publishedRefs.getValue().get(0).getName()).isEqualTo(REF_ONE);
+    assertThat(publishedRefs.getValue().get(0).putValue).isEqualTo(B.getId());
+    verify(rollbackFunction).invoke(any());
+  }
+
+  @Test
+  public void shouldNotWriteAsyncNorShadowRefsWhenAtomicBatchFailsToPublish() throws Exception {
+    BatchRefUpdate batchRefUpdate = newBatchUpdateOfThreeRefs();
+    batchRefUpdate.setAtomic(true);
+    BatchRefUpdateValidator batchRefUpdateValidator =
+        getRefValidatorForEnforcement(A_TEST_PROJECT_NAME, tmpRefEnforcement);
+    doReturn(SharedRefEnforcement.EnforcePolicy.REQUIRED)
+        .when(tmpRefEnforcement)
+        .getPolicy(A_TEST_PROJECT_NAME);
+    doReturn(SharedRefEnforcement.EnforcePolicy.REQUIRED)
+        .when(tmpRefEnforcement)
+        .getPolicy(eq(A_TEST_PROJECT_NAME), any());
+    doReturn(SharedRefEnforcement.EnforcePolicy.ASYNC)
+        .when(tmpRefEnforcement)
+        .getPolicy(A_TEST_PROJECT_NAME, REF_ONE);
+    doReturn(SharedRefEnforcement.EnforcePolicy.SHADOW)
+        .when(tmpRefEnforcement)
+        .getPolicy(A_TEST_PROJECT_NAME, REF_TWO);
+    doReturn(false)
+        .when(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(ref -> ref.getName().equals(REF_THREE)),
+            any(ObjectId.class));
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), rollbackFunction);
+
+    verify(rollbackFunction).invoke(any());
+    verify(asyncRefPublisher, never()).publish(any(), any(), any());
+    verify(shadowRefValidator, never()).validate(any(), any(), any());
+    verify(sharedRefCompensator, never()).compensate(any(), any());
+  }
+
+  @Test
+  public void shouldNotLockNorPublishIdenticalValueCommands() throws Exception {
+    repo.update(REF_ONE, A);
+    repo.update(REF_TWO, A);
+    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
+    doReturn(true).when(sharedRefDatabase).compareAndPut(any(), any(), any());
+    BatchRefUpdate batchRefUpdate = refdir.newBatchUpdate();
+    batchRefUpdate.setAtomic(true);
+    batchRefUpdate.addCommand(
+        new ReceiveCommand(A, A, REF_ONE, UPDATE), new ReceiveCommand(A, B, REF_TWO, UPDATE));
+    BatchRefUpdateValidator batchRefUpdateValidator = newDefaultValidator(A_TEST_PROJECT_NAME);
+
+    batchRefUpdateValidator.executeBatchUpdateWithValidation(
+        batchRefUpdate, () -> execute(batchRefUpdate), this::defaultRollback);
+
+    assertThat(resultsByRefName(batchRefUpdate))
+        .containsExactly(REF_ONE, Result.OK, REF_TWO, Result.OK);
+    verify(sharedRefDatabase, never())
+        .lockRef(eq(A_TEST_PROJECT_NAME_KEY), eq(REF_ONE), any(Deadline.class));
+    verify(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(ref -> ref.getName().equals(REF_TWO)),
+            eq(B.getId()));
+    verify(sharedRefDatabase, times(1))
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+  }
+
+  private static Map<String, Result> resultsByRefName(BatchRefUpdate batchRefUpdate) {
+    return batchRefUpdate.getCommands().stream()
+        .collect(Collectors.toMap(ReceiveCommand::getRefName, ReceiveCommand::getResult));
+  }
+
+  private void setBatchChunkSize(int chunkSize) {
+    globalRefDbConfig.setInt(
+        SharedRefDbConfiguration.SharedRefDatabase.SECTION,
+        null,
+        SharedRefDbConfiguration.SharedRefDatabase.BATCH_CHUNK_SIZE_KEY,
+        chunkSize);
+  }
+
+  private BatchRefUpdate newBatchUpdateOfThreeRefs() throws Exception {
+    List<String> refNames = Arrays.asList(REF_ONE, REF_TWO, REF_THREE);
+    List<ReceiveCommand> cmds = new ArrayList<>();
+    for (String refName : refNames) {
+      repo.update(refName, A);
+      cmds.add(new ReceiveCommand(A, B, refName, UPDATE));
+    }
+    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
+    doReturn(true).when(sharedRefDatabase).compareAndPut(any(), any(), any());
+    BatchRefUpdate u = refdir.newBatchUpdate();
+    u.addCommand(cmds);
+    return u;
+  }
+
+  private void setBatchProjectLockThreshold(int threshold) {
+    globalRefDbConfig.setInt(
+        SharedRefDbConfiguration.SharedRefDatabase.SECTION,
+        null,
+        SharedRefDbConfiguration.SharedRefDatabase.BATCH_PROJECT_LOCK_THRESHOLD_KEY,
+        threshold);
+  }
+
+  private BatchRefUpdate newLargeBatchUpdate() throws Exception {
+    RevCommit C = repo.commit(repo.getRevWalk().parseCommit(A));
+    repo.update(A_TEST_REF_NAME, A);
+    repo.update(aBranchRef(), A);
+    doReturn(true).when(sharedRefDatabase).isUpToDate(any(), any());
+    doReturn(true).when(sharedRefDatabase).compareAndPut(any(), any(), any());
+    return newBatchUpdate(
+        Arrays.asList(
+            new ReceiveCommand(A, B, A_TEST_REF_NAME, UPDATE),
+            new ReceiveCommand(A, C, aBranchRef(), UPDATE)));
+  }
+
   private BatchRefUpdateValidator newDefaultValidator(String projectName) {
     return getRefValidatorForEnforcement(projectName, new DefaultSharedRefEnforcement());
   }
 
   private BatchRefUpdateValidator getRefValidatorForEnforcement(
       String projectName, SharedRefEnforcement sharedRefEnforcement) {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(globalRefDbConfig, "testplugin");
     return new BatchRefUpdateValidator(
         sharedRefDatabase,
-        new ValidationMetrics(
-            new DisabledMetricMaker(), new SharedRefDbConfiguration(new Config(), "testplugin")),
+        new ValidationMetrics(new DisabledMetricMaker(), cfg),
         sharedRefEnforcement,
         new DummyLockWrapper(),
         projectsFilter,
+        asyncRefPublisher,
+        shadowRefValidator,
+        new LocalRefLocks(new SharedRefDBMetrics(new DisabledMetricMaker()), cfg),
+        sharedRefCompensator,
+        cfg,
         projectName,
         diskRepo.getRefDatabase(),
         ImmutableSet.of());
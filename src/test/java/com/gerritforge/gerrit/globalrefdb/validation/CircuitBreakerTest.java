@@ -0,0 +1,144 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.testing.GerritJUnit;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakerTest implements RefFixture {
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long OPEN_DURATION_MS = 1000;
+
+  @Mock SharedRefDBMetrics metrics;
+
+  private final AtomicLong nanoTime = new AtomicLong();
+  private Config config;
+
+  @Before
+  public void setUp() {
+    config = new Config();
+    config.setString(
+        SharedRefDatabase.SECTION,
+        null,
+        SharedRefDatabase.CIRCUIT_BREAKER_OPEN_DURATION_KEY,
+        OPEN_DURATION_MS + "ms");
+  }
+
+  @Test
+  public void shouldNeverOpenWhenDisabled() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(0);
+
+    for (int i = 0; i < 100; i++) {
+      circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME).failed();
+    }
+
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    verify(metrics, never()).incrementCircuitBreakerTransitions(CircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void shouldOpenAndRejectOperationsAfterConsecutiveFailures() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(FAILURE_THRESHOLD);
+
+    failCalls(circuitBreaker, FAILURE_THRESHOLD);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    GerritJUnit.assertThrows(
+        GlobalRefDbLockException.class,
+        () -> circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME));
+    verify(metrics).incrementCircuitBreakerRejections();
+  }
+
+  @Test
+  public void shouldNotOpenWhenFailuresAreNotConsecutive() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(FAILURE_THRESHOLD);
+
+    failCalls(circuitBreaker, FAILURE_THRESHOLD - 1);
+    circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME).succeeded();
+    failCalls(circuitBreaker, FAILURE_THRESHOLD - 1);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void shouldLetOnlyTheConfiguredProbesThroughOnceTheOpenDurationHasElapsed() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(FAILURE_THRESHOLD);
+    failCalls(circuitBreaker, FAILURE_THRESHOLD);
+
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION_MS));
+    assertThat(circuitBreaker.isOpen()).isFalse();
+    circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    GerritJUnit.assertThrows(
+        GlobalRefDbLockException.class,
+        () -> circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME));
+  }
+
+  @Test
+  public void shouldCloseWhenTheProbeSucceeds() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(FAILURE_THRESHOLD);
+    failCalls(circuitBreaker, FAILURE_THRESHOLD);
+
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION_MS));
+    circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME).succeeded();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    verify(metrics).incrementCircuitBreakerTransitions(CircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void shouldReopenWhenTheProbeFails() {
+    CircuitBreaker circuitBreaker = newCircuitBreaker(FAILURE_THRESHOLD);
+    failCalls(circuitBreaker, FAILURE_THRESHOLD);
+
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_DURATION_MS));
+    circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME).failed();
+
+    assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    assertThat(circuitBreaker.isOpen()).isTrue();
+  }
+
+  private void failCalls(CircuitBreaker circuitBreaker, int failures) {
+    for (int i = 0; i < failures; i++) {
+      circuitBreaker.enter(A_TEST_PROJECT_NAME, A_TEST_REF_NAME).failed();
+    }
+  }
+
+  private CircuitBreaker newCircuitBreaker(int failureThreshold) {
+    config.setInt(
+        SharedRefDatabase.SECTION,
+        null,
+        SharedRefDatabase.CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY,
+        failureThreshold);
+    return new CircuitBreaker(
+        metrics, new SharedRefDbConfiguration(config, "testplugin"), nanoTime::get);
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.testing.GerritJUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ConcurrencyLimiterTest implements RefFixture {
+  private static final long LATENCY_THRESHOLD_MS = 100;
+
+  @Mock SharedRefDBMetrics metrics;
+
+  private final AtomicLong nanoTime = new AtomicLong();
+  private Config config;
+
+  @Before
+  public void setUp() {
+    config = new Config();
+    config.setString(
+        SharedRefDatabase.SECTION,
+        null,
+        SharedRefDatabase.CONCURRENCY_LIMIT_LATENCY_KEY,
+        LATENCY_THRESHOLD_MS + "ms");
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.CONCURRENCY_LIMIT_MAX_WAIT_KEY, "0ms");
+  }
+
+  @Test
+  public void shouldNotLimitOperationsWhenDisabled() {
+    ConcurrencyLimiter limiter = newLimiter(0);
+
+    for (int i = 0; i < 100; i++) {
+      limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+    }
+
+    verify(metrics, never()).incrementConcurrencyLimitRejections();
+  }
+
+  @Test
+  public void shouldRejectOperationsAboveTheLimit() {
+    ConcurrencyLimiter limiter = newLimiter(1);
+    limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+
+    GerritJUnit.assertThrows(
+        GlobalRefDbLockException.class,
+        () -> limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME));
+    verify(metrics).incrementConcurrencyLimitRejections();
+  }
+
+  @Test
+  public void shouldGrantWaitingOperationsWhenPermitIsReleased() throws Exception {
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.CONCURRENCY_LIMIT_MAX_WAIT_KEY, "10s");
+    ConcurrencyLimiter limiter = newLimiter(1);
+    ConcurrencyLimiter.Permit permit = limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+
+    CompletableFuture<ConcurrencyLimiter.Permit> waitingPermit =
+        CompletableFuture.supplyAsync(() -> limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME));
+    permit.close();
+
+    assertThat(waitingPermit.get(10, TimeUnit.SECONDS)).isNotNull();
+  }
+
+  @Test
+  public void shouldGrantInteractiveOperationsAheadOfBackgroundOnesByWeight() throws Exception {
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.CONCURRENCY_LIMIT_MAX_WAIT_KEY, "10s");
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.MAX_CONCURRENCY_LIMIT_KEY, 1);
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.INTERACTIVE_WEIGHT_KEY, 2);
+    ConcurrencyLimiter limiter = newLimiter(1);
+    ConcurrencyLimiter.Permit permit = limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+
+    List<PriorityLane> waitingLanes =
+        List.of(
+            PriorityLane.BACKGROUND,
+            PriorityLane.BACKGROUND,
+            PriorityLane.INTERACTIVE,
+            PriorityLane.INTERACTIVE,
+            PriorityLane.INTERACTIVE);
+    List<PriorityLane> grantedLanes = Collections.synchronizedList(new ArrayList<>());
+    List<CompletableFuture<Void>> waitingOperations = new ArrayList<>();
+    ExecutorService waitingThreads = Executors.newFixedThreadPool(waitingLanes.size());
+    try {
+      for (PriorityLane lane : waitingLanes) {
+        waitingOperations.add(
+            CompletableFuture.runAsync(
+                () -> {
+                  try (PriorityLane.Scope scope = lane.enter();
+                      ConcurrencyLimiter.Permit waitingPermit =
+                          limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME)) {
+                    grantedLanes.add(lane);
+                  }
+                },
+                waitingThreads));
+        verify(metrics, timeout(1000).times(waitingOperations.size()))
+            .incrementConcurrencyLimitQueueDepth();
+      }
+      permit.close();
+
+      CompletableFuture.allOf(waitingOperations.toArray(new CompletableFuture<?>[0]))
+          .get(10, TimeUnit.SECONDS);
+    } finally {
+      waitingThreads.shutdownNow();
+    }
+
+    assertThat(grantedLanes)
+        .containsExactly(
+            PriorityLane.INTERACTIVE,
+            PriorityLane.INTERACTIVE,
+            PriorityLane.BACKGROUND,
+            PriorityLane.INTERACTIVE,
+            PriorityLane.BACKGROUND)
+        .inOrder();
+  }
+
+  @Test
+  public void shouldQueueTheOperationsOfBackgroundThreadsInTheBackgroundLane() throws Exception {
+    config.setString(
+        SharedRefDatabase.SECTION,
+        null,
+        SharedRefDatabase.BACKGROUND_THREAD_PREFIX_KEY,
+        "BackgroundWork-");
+    ConcurrencyLimiter limiter = newLimiter(1);
+    limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+
+    Thread backgroundThread =
+        new Thread(
+            () ->
+                GerritJUnit.assertThrows(
+                    GlobalRefDbLockException.class,
+                    () -> limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME)),
+            "BackgroundWork-1");
+    backgroundThread.start();
+    backgroundThread.join(TimeUnit.SECONDS.toMillis(10));
+
+    verify(metrics).recordConcurrencyLimitQueueWait(eq(PriorityLane.BACKGROUND), anyLong());
+  }
+
+  @Test
+  public void shouldIncreaseTheLimitWhenSaturatedAndFast() {
+    ConcurrencyLimiter limiter = newLimiter(1);
+
+    ConcurrencyLimiter.Permit permit = limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(LATENCY_THRESHOLD_MS / 2));
+    permit.close();
+
+    assertThat(limiter.getLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldDecreaseTheLimitOncePerLatencyThresholdWhenSlow() {
+    ConcurrencyLimiter limiter = newLimiter(100);
+
+    ConcurrencyLimiter.Permit firstPermit = limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+    ConcurrencyLimiter.Permit secondPermit = limiter.acquire(A_TEST_PROJECT_NAME, A_TEST_REF_NAME);
+    nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(LATENCY_THRESHOLD_MS * 2));
+    firstPermit.close();
+    secondPermit.close();
+
+    assertThat(limiter.getLimit()).isEqualTo((int) (100 * ConcurrencyLimiter.BACKOFF_RATIO));
+  }
+
+  private ConcurrencyLimiter newLimiter(int concurrencyLimit) {
+    config.setInt(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.CONCURRENCY_LIMIT_KEY, concurrencyLimit);
+    return new ConcurrencyLimiter(
+        metrics, new SharedRefDbConfiguration(config, "testplugin"), nanoTime::get);
+  }
+}
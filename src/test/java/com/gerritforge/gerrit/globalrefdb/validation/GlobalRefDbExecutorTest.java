@@ -0,0 +1,95 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.gerrit.testing.GerritJUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GlobalRefDbExecutorTest {
+  @Mock SharedRefDBMetrics metrics;
+  @Mock WorkQueue workQueue;
+
+  private ScheduledExecutorService executor;
+  private GlobalRefDbExecutor objectUnderTest;
+
+  @Before
+  public void setUp() {
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("GlobalRefDbExecutor-%d").build());
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    Config config = new Config();
+    config.setBoolean(
+        SharedRefDbConfiguration.SharedRefDatabase.SECTION,
+        null,
+        SharedRefDbConfiguration.SharedRefDatabase.VIRTUAL_THREADS_KEY,
+        false);
+    objectUnderTest =
+        new GlobalRefDbExecutor(
+            metrics, new SharedRefDbConfiguration(config, "testplugin"), workQueue);
+  }
+
+  @After
+  public void tearDown() {
+    objectUnderTest.stop();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldRunOperationsOnTheWorkQueueWhenVirtualThreadsAreDisabled() {
+    CompletableFuture<String> threadName =
+        objectUnderTest.supplyAsync(() -> Thread.currentThread().getName());
+
+    assertThat(GlobalRefDbExecutor.await(threadName)).startsWith("GlobalRefDbExecutor-");
+    verify(workQueue)
+        .createQueue(
+            SharedRefDbConfiguration.SharedRefDatabase.DEFAULT_EXECUTOR_THREADS,
+            GlobalRefDbExecutor.EXECUTOR_QUEUE_NAME);
+    verify(metrics).incrementInFlightOperations();
+    verify(metrics).decrementInFlightOperations();
+  }
+
+  @Test
+  public void shouldRethrowTheUncheckedExceptionsOfTheOperations() {
+    CompletableFuture<Boolean> failedOperation =
+        objectUnderTest.supplyAsync(
+            () -> {
+              throw new GlobalRefDbSystemError("test", new Exception());
+            });
+
+    GerritJUnit.assertThrows(
+        GlobalRefDbSystemError.class, () -> GlobalRefDbExecutor.await(failedOperation));
+    verify(metrics).decrementInFlightOperations();
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.globalrefdb.Deadline;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.testing.GerritJUnit;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LocalRefLocksTest implements RefFixture {
+  @Mock SharedRefDBMetrics metrics;
+
+  private final AtomicInteger globalLocksHeld = new AtomicInteger();
+  private Config config;
+
+  @Before
+  public void setUp() {
+    config = new Config();
+  }
+
+  @Test
+  public void shouldRequestTheGlobalLockOnceTheLocalOneIsReleased() throws Exception {
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+    AutoCloseable lock = lockRef(localRefLocks, Deadline.none());
+
+    CompletableFuture<Integer> waitingLock =
+        CompletableFuture.supplyAsync(() -> lockAndRelease(localRefLocks));
+    verify(metrics, timeout(1000)).incrementLocalLockWaits();
+    assertThat(globalLocksHeld.get()).isEqualTo(1);
+
+    lock.close();
+    assertThat(waitingLock.get(10, TimeUnit.SECONDS)).isEqualTo(1);
+
+    assertThat(globalLocksHeld.get()).isEqualTo(0);
+    assertThat(localRefLocks.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldNotWaitForTheLocksOfOtherRefs() throws Exception {
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+
+    try (AutoCloseable lock = lockRef(localRefLocks, Deadline.none());
+        AutoCloseable otherLock =
+            localRefLocks.lock(
+                A_TEST_PROJECT_NAME, "refs/heads/other", Deadline.none(), globalLock())) {
+      assertThat(globalLocksHeld.get()).isEqualTo(2);
+    }
+    verify(metrics, never()).incrementLocalLockWaits();
+  }
+
+  @Test
+  public void shouldGiveUpWaitingForTheLocalLockWhenTheDeadlineExpires() throws Exception {
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+
+    try (AutoCloseable lock = lockRef(localRefLocks, Deadline.none())) {
+      CompletableFuture<AutoCloseable> waitingLock =
+          CompletableFuture.supplyAsync(
+              () -> lockRef(localRefLocks, Deadline.after(Duration.ofMillis(10))));
+
+      GerritJUnit.assertThrows(
+          GlobalRefDbLockException.class, () -> GlobalRefDbExecutor.await(waitingLock));
+      verify(metrics).incrementDeadlineExceeded();
+      assertThat(globalLocksHeld.get()).isEqualTo(1);
+    }
+    assertThat(localRefLocks.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldGiveUpWaitingForTheLocalLockAfterTheLockTimeout() throws Exception {
+    config.setString(SharedRefDatabase.SECTION, null, SharedRefDatabase.LOCK_TIMEOUT_KEY, "10 ms");
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+
+    try (AutoCloseable lock = lockRef(localRefLocks, Deadline.none())) {
+      CompletableFuture<AutoCloseable> waitingLock =
+          CompletableFuture.supplyAsync(() -> lockRef(localRefLocks, Deadline.none()));
+
+      GerritJUnit.assertThrows(
+          GlobalRefDbLockException.class, () -> GlobalRefDbExecutor.await(waitingLock));
+      verify(metrics).incrementDeadlineExceeded();
+    }
+    assertThat(localRefLocks.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldReleaseTheLocalLockWhenTheGlobalOneCannotBeAcquired() throws Exception {
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+
+    GerritJUnit.assertThrows(
+        GlobalRefDbLockException.class,
+        () ->
+            localRefLocks.lock(
+                A_TEST_PROJECT_NAME,
+                A_TEST_REF_NAME,
+                Deadline.none(),
+                () -> {
+                  throw new GlobalRefDbLockException(A_TEST_PROJECT_NAME, A_TEST_REF_NAME, null);
+                }));
+
+    assertThat(localRefLocks.size()).isEqualTo(0);
+    assertThat(
+            CompletableFuture.supplyAsync(() -> lockAndRelease(localRefLocks))
+                .get(10, TimeUnit.SECONDS))
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRequestTheGlobalLockStraightAwayWhenDisabled() throws Exception {
+    config.setBoolean(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.LOCAL_LOCK_COALESCING_KEY, false);
+    LocalRefLocks localRefLocks = newLocalRefLocks();
+
+    try (AutoCloseable lock = lockRef(localRefLocks, Deadline.none())) {
+      assertThat(
+              CompletableFuture.supplyAsync(() -> lockAndRelease(localRefLocks))
+                  .get(10, TimeUnit.SECONDS))
+          .isEqualTo(2);
+    }
+    verify(metrics, never()).incrementLocalLockWaits();
+  }
+
+  private LocalRefLocks newLocalRefLocks() {
+    return new LocalRefLocks(metrics, new SharedRefDbConfiguration(config, "testplugin"));
+  }
+
+  private AutoCloseable lockRef(LocalRefLocks localRefLocks, Deadline deadline) {
+    return localRefLocks.lock(A_TEST_PROJECT_NAME, A_TEST_REF_NAME, deadline, globalLock());
+  }
+
+  /** Returns the global locks held while holding the lock of the ref. */
+  private int lockAndRelease(LocalRefLocks localRefLocks) {
+    try (AutoCloseable lock = lockRef(localRefLocks, Deadline.none())) {
+      return globalLocksHeld.get();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private Supplier<AutoCloseable> globalLock() {
+    return () -> {
+      globalLocksHeld.incrementAndGet();
+      return globalLocksHeld::decrementAndGet;
+    };
+  }
+}
@@ -117,6 +117,22 @@ public class Log4jSharedRefLoggerTest extends AbstractDaemonTest {
     assertThat(gotLogEntry.committer).isNull();
   }
 
+  @Test
+  public void shouldLogGenericObjectIdValuesByName() throws Exception {
+    String refName = "refs/foo/bar";
+    ObjectId currValue = ObjectId.fromString("0000000000000000000000000000000000000001");
+    ObjectId newValue = ObjectId.fromString("0000000000000000000000000000000000000002");
+
+    log4jSharedRefLogger.logRefUpdate(project.get(), refName, currValue, newValue);
+
+    SharedRefLogEntry.UpdateRef gotLogEntry =
+        gson.fromJson(logWriter.toString(), SharedRefLogEntry.UpdateRef.class);
+
+    assertThat(gotLogEntry.type).isEqualTo(SharedRefLogEntry.Type.UPDATE_REF);
+    assertThat(gotLogEntry.oldId).isEqualTo(currValue.getName());
+    assertThat(gotLogEntry.newId).isEqualTo(newValue.getName());
+  }
+
   @Test
   public void shouldLogLockAcquisition() {
     String refName = "refs/foo/bar";
@@ -143,6 +159,19 @@ public class Log4jSharedRefLoggerTest extends AbstractDaemonTest {
     assertThat(gotLogEntry.refName).isEqualTo(refName);
   }
 
+  @Test
+  public void shouldLogRefRemoval() {
+    String refName = "refs/foo/bar";
+    log4jSharedRefLogger.logRefRemoval(project.get(), refName);
+
+    SharedRefLogEntry.RemoveRef gotLogEntry =
+        gson.fromJson(logWriter.toString(), SharedRefLogEntry.RemoveRef.class);
+
+    assertThat(gotLogEntry.type).isEqualTo(SharedRefLogEntry.Type.REMOVE_REF);
+    assertThat(gotLogEntry.projectName).isEqualTo(project.get());
+    assertThat(gotLogEntry.refName).isEqualTo(refName);
+  }
+
   private Log4jSharedRefLogger newLog4jSharedRefLogger() throws IOException {
     final Log4jSharedRefLogger log4jSharedRefLogger =
         new Log4jSharedRefLogger(new SystemLog(new SitePaths(newPath()), baseConfig), repoManager);
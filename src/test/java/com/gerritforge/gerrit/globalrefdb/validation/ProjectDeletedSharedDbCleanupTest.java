@@ -14,11 +14,27 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
 import com.google.gerrit.extensions.api.changes.NotifyHandling;
 import com.google.gerrit.extensions.events.ProjectDeletedListener;
+import com.google.gerrit.server.config.SitePaths;
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
@@ -27,32 +43,164 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ProjectDeletedSharedDbCleanupTest implements RefFixture {
+  private static final int CHUNK_SIZE = 100;
+  private static final int VERIFY_TIMEOUT_MS = 5000;
+
   @Rule public TestName nameRule = new TestName();
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
 
   @Mock ValidationMetrics mockValidationMetrics;
+  @Mock SharedRefDBMetrics mockSharedRefDBMetrics;
   @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock WorkQueue workQueue;
+
+  private ScheduledExecutorService executor;
+  private SitePaths sitePaths;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    sitePaths = new SitePaths(tempFolder.getRoot().toPath());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
 
   @Test
   public void aDeleteProjectEventShouldCleanupProjectFromZk() throws Exception {
-    String projectName = A_TEST_PROJECT_NAME;
-    ProjectDeletedSharedDbCleanup projectDeletedSharedDbCleanup =
-        new ProjectDeletedSharedDbCleanup(sharedRefDatabase, mockValidationMetrics);
-
-    ProjectDeletedListener.Event event =
-        new ProjectDeletedListener.Event() {
-          @Override
-          public String getProjectName() {
-            return projectName;
-          }
-
-          @Override
-          public NotifyHandling getNotify() {
-            return NotifyHandling.NONE;
-          }
-        };
-
-    projectDeletedSharedDbCleanup.onProjectDeleted(event);
-
-    Mockito.verify(sharedRefDatabase, Mockito.times(1)).remove(A_TEST_PROJECT_NAME_KEY);
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE)).thenReturn(true);
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(sharedRefDatabase, timeout(VERIFY_TIMEOUT_MS).times(1))
+        .remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+    Mockito.verify(mockSharedRefDBMetrics, timeout(VERIFY_TIMEOUT_MS))
+        .decrementPendingProjectCleanups();
+  }
+
+  @Test
+  public void aDeleteProjectEventShouldCleanupProjectFromZkInChunks() throws Exception {
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE))
+        .thenReturn(false)
+        .thenReturn(false)
+        .thenReturn(true);
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(mockSharedRefDBMetrics, timeout(VERIFY_TIMEOUT_MS))
+        .decrementPendingProjectCleanups();
+    Mockito.verify(sharedRefDatabase, Mockito.times(3)).remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+  }
+
+  @Test
+  public void aFailedCleanupShouldBeRetried() throws Exception {
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE))
+        .thenThrow(new GlobalRefDbSystemError("test", new Exception()))
+        .thenReturn(true);
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(mockSharedRefDBMetrics, timeout(VERIFY_TIMEOUT_MS))
+        .decrementPendingProjectCleanups();
+    Mockito.verify(sharedRefDatabase, Mockito.times(2)).remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+    Mockito.verify(mockSharedRefDBMetrics).incrementProjectCleanupRetries();
+    Mockito.verify(mockValidationMetrics, Mockito.never()).incrementSplitBrain();
+  }
+
+  @Test
+  public void aCleanupFailingWithAnUnexpectedExceptionShouldBeRetried() throws Exception {
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE))
+        .thenThrow(new IllegalStateException("test"))
+        .thenReturn(true);
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(mockSharedRefDBMetrics, timeout(VERIFY_TIMEOUT_MS))
+        .decrementPendingProjectCleanups();
+    Mockito.verify(sharedRefDatabase, Mockito.times(2)).remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+    Mockito.verify(mockSharedRefDBMetrics).incrementProjectCleanupRetries();
+  }
+
+  @Test
+  public void aCleanupProgressingBetweenFailuresShouldNotExhaustTheRetries() throws Exception {
+    GlobalRefDbSystemError error = new GlobalRefDbSystemError("test", new Exception());
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE))
+        .thenThrow(error)
+        .thenThrow(error)
+        .thenReturn(false)
+        .thenThrow(error)
+        .thenThrow(error)
+        .thenReturn(true);
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(mockSharedRefDBMetrics, timeout(VERIFY_TIMEOUT_MS))
+        .decrementPendingProjectCleanups();
+    Mockito.verify(sharedRefDatabase, Mockito.times(6)).remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+    Mockito.verify(mockValidationMetrics, Mockito.never()).incrementSplitBrain();
+  }
+
+  @Test
+  public void aCleanupFailingAfterAllRetriesShouldIncrementSplitBrain() throws Exception {
+    when(sharedRefDatabase.remove(eq(A_TEST_PROJECT_NAME_KEY), anyInt()))
+        .thenThrow(new GlobalRefDbSystemError("test", new Exception()));
+
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+
+    Mockito.verify(mockValidationMetrics, timeout(VERIFY_TIMEOUT_MS)).incrementSplitBrain();
+    Mockito.verify(sharedRefDatabase, Mockito.times(3)).remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+  }
+
+  @Test
+  public void aPendingCleanupShouldBeResumedAtStart() throws Exception {
+    when(sharedRefDatabase.remove(eq(A_TEST_PROJECT_NAME_KEY), anyInt()))
+        .thenThrow(new GlobalRefDbSystemError("test", new Exception()));
+    newProjectDeletedSharedDbCleanup().onProjectDeleted(projectDeletedEvent());
+    Mockito.verify(mockValidationMetrics, timeout(VERIFY_TIMEOUT_MS)).incrementSplitBrain();
+
+    Mockito.reset(sharedRefDatabase);
+    when(sharedRefDatabase.remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE)).thenReturn(true);
+    newProjectDeletedSharedDbCleanup().start();
+
+    Mockito.verify(sharedRefDatabase, timeout(VERIFY_TIMEOUT_MS))
+        .remove(A_TEST_PROJECT_NAME_KEY, CHUNK_SIZE);
+  }
+
+  private ProjectDeletedSharedDbCleanup newProjectDeletedSharedDbCleanup() {
+    Config config = new Config();
+    config.setInt(
+        SharedRefDatabase.SECTION,
+        null,
+        SharedRefDatabase.PROJECT_CLEANUP_CHUNK_SIZE_KEY,
+        CHUNK_SIZE);
+    config.setInt(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.PROJECT_CLEANUP_MAX_RETRIES_KEY, 2);
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.PROJECT_CLEANUP_RETRY_DELAY_KEY, "1 ms");
+
+    return new ProjectDeletedSharedDbCleanup(
+        sharedRefDatabase,
+        mockValidationMetrics,
+        mockSharedRefDBMetrics,
+        new SharedRefDbConfiguration(config, "testplugin"),
+        sitePaths,
+        workQueue);
+  }
+
+  private ProjectDeletedListener.Event projectDeletedEvent() {
+    return new ProjectDeletedListener.Event() {
+      @Override
+      public String getProjectName() {
+        return A_TEST_PROJECT_NAME;
+      }
+
+      @Override
+      public NotifyHandling getNotify() {
+        return NotifyHandling.NONE;
+      }
+    };
   }
 }
@@ -0,0 +1,167 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.globalrefdb.Deadline;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.google.gerrit.testing.GerritJUnit;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.eclipse.jgit.lib.Config;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReadHedgerTest {
+  private static final long SLOW_READ_MS = 200;
+
+  @Mock SharedRefDBMetrics metrics;
+  @Mock GlobalRefDbExecutor mockExecutor;
+
+  private Config config;
+  private GlobalRefDbExecutor executor;
+  private final CountDownLatch slowReadLatch = new CountDownLatch(1);
+
+  @Before
+  public void setUp() {
+    config = new Config();
+    config.setBoolean(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.VIRTUAL_THREADS_KEY, false);
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.HEDGING_PERCENTILE_KEY, 50);
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.HEDGING_MIN_DELAY_KEY, "1ms");
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.HEDGING_BUDGET_KEY, 100);
+    executor = new GlobalRefDbExecutor(metrics, new SharedRefDbConfiguration(config, "testplugin"));
+  }
+
+  @After
+  public void tearDown() {
+    slowReadLatch.countDown();
+    executor.stop();
+  }
+
+  @Test
+  public void shouldReadOnTheCallingThreadWhenDisabled() {
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.HEDGING_PERCENTILE_KEY, 0);
+    ReadHedger readHedger =
+        new ReadHedger(mockExecutor, metrics, new SharedRefDbConfiguration(config, "testplugin"));
+
+    String callingThread = Thread.currentThread().getName();
+    assertThat(readHedger.read(() -> Thread.currentThread().getName())).isEqualTo(callingThread);
+    verify(mockExecutor, never()).supplyAsync(any());
+  }
+
+  @Test
+  public void shouldUseTheHedgeWhenTheFirstAttemptIsSlow() {
+    ReadHedger readHedger = newWarmReadHedger();
+
+    assertThat(readHedger.read(slowFirstAttempt())).isEqualTo("hedge");
+    verify(metrics).incrementHedgedReads();
+    verify(metrics, timeout(1000)).incrementHedgedReadsWon();
+  }
+
+  @Test
+  public void shouldNotHedgeBeforeTheLatencyPercentileIsKnown() {
+    ReadHedger readHedger = newReadHedger();
+
+    assertThat(readHedger.getHedgeDelayNanos()).isLessThan(0L);
+    assertThat(readHedger.read(slowFirstAttemptReleasedAfter(SLOW_READ_MS))).isEqualTo("first");
+    verify(metrics, never()).incrementHedgedReads();
+  }
+
+  @Test
+  public void shouldNotHedgeWhenTheBudgetIsExhausted() {
+    config.setInt(SharedRefDatabase.SECTION, null, SharedRefDatabase.HEDGING_BUDGET_KEY, 0);
+    ReadHedger readHedger = newWarmReadHedger();
+
+    assertThat(readHedger.read(slowFirstAttemptReleasedAfter(SLOW_READ_MS))).isEqualTo("first");
+    verify(metrics, never()).incrementHedgedReads();
+  }
+
+  @Test
+  public void shouldRunTheAttemptsWithinTheDeadlineOfTheCallingThread() {
+    ReadHedger readHedger = newReadHedger();
+
+    try (Deadline.Scope scope = Deadline.after(Duration.ofMinutes(1)).enter()) {
+      assertThat(readHedger.read(() -> Deadline.current().isBounded())).isTrue();
+    }
+  }
+
+  @Test
+  public void shouldGiveUpWaitingForTheReadWhenTheDeadlineExpires() {
+    ReadHedger readHedger = newReadHedger();
+
+    try (Deadline.Scope scope = Deadline.after(Duration.ofMillis(10)).enter()) {
+      GerritJUnit.assertThrows(
+          GlobalRefDbSystemError.class, () -> readHedger.read(slowFirstAttempt()));
+    }
+    verify(metrics).incrementDeadlineExceeded();
+  }
+
+  private ReadHedger newReadHedger() {
+    return new ReadHedger(executor, metrics, new SharedRefDbConfiguration(config, "testplugin"));
+  }
+
+  private ReadHedger newWarmReadHedger() {
+    ReadHedger readHedger = newReadHedger();
+    for (int i = 0; i < ReadHedger.DELAY_UPDATE_INTERVAL; i++) {
+      readHedger.recordLatency(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    assertThat(readHedger.getHedgeDelayNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(1));
+    return readHedger;
+  }
+
+  private Supplier<String> slowFirstAttempt() {
+    AtomicInteger attempts = new AtomicInteger();
+    return () -> {
+      if (attempts.getAndIncrement() > 0) {
+        return "hedge";
+      }
+      try {
+        slowReadLatch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return "first";
+    };
+  }
+
+  private Supplier<String> slowFirstAttemptReleasedAfter(long delayMs) {
+    Supplier<String> slowFirstAttempt = slowFirstAttempt();
+    return () -> {
+      try {
+        slowReadLatch.await(delayMs, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      slowReadLatch.countDown();
+      return slowFirstAttempt.get();
+    };
+  }
+}
@@ -0,0 +1,226 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assume.assumeTrue;
+
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.NoParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefRename;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that validating a successful ref-update stays within a bounded per-update allocation
+ * budget, so that regressions on the hot path are caught early.
+ */
+public class RefUpdateValidatorAllocationTest implements RefFixture {
+  private static final int WARMUP_UPDATES = 20_000;
+  private static final int MEASURED_UPDATES = 10_000;
+  private static final long MAX_ALLOCATED_BYTES_PER_UPDATE = 1024;
+
+  private final NoParameterFunction<Result> refUpdateFunction = () -> Result.FAST_FORWARD;
+  private final OneParameterFunction<ObjectId, Result> rollbackFunction = id -> Result.FORCED;
+
+  private final Logger validationLogger =
+      Logger.getLogger(RefUpdateValidator.class.getPackageName());
+  private Level validationLogLevel;
+
+  private com.sun.management.ThreadMXBean threadMXBean;
+  private RefUpdateValidator validator;
+  private RefUpdate refUpdate;
+
+  @Before
+  public void setUp() {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    // Measure with the log level Gerrit runs with, rather than the log4j default of DEBUG
+    validationLogLevel = validationLogger.getLevel();
+    validationLogger.setLevel(Level.INFO);
+
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(new Config(), "testplugin");
+    SharedRefDBMetrics sharedRefDBMetrics = new SharedRefDBMetrics(new DisabledMetricMaker());
+    Ref currentRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1);
+
+    validator =
+        new RefUpdateValidator(
+            new SharedRefDatabaseWrapper(
+                new DisabledSharedRefLogger(),
+                sharedRefDBMetrics,
+                new Tombstones(cfg, sharedRefDBMetrics),
+                new ConcurrencyLimiter(sharedRefDBMetrics, cfg),
+                new CircuitBreaker(sharedRefDBMetrics, cfg),
+                new ReadHedger(
+                    new GlobalRefDbExecutor(sharedRefDBMetrics, cfg), sharedRefDBMetrics, cfg)),
+            new ValidationMetrics(new DisabledMetricMaker(), cfg),
+            new DefaultSharedRefEnforcement(),
+            new DummyLockWrapper(),
+            new ProjectsFilter(cfg),
+            null,
+            null,
+            new LocalRefLocks(sharedRefDBMetrics, cfg),
+            cfg,
+            A_TEST_PROJECT_NAME,
+            new SingleRefDatabase(currentRef),
+            ImmutableSet.of());
+    refUpdate = new TestRefUpdate(currentRef);
+    refUpdate.setNewObjectId(AN_OBJECT_ID_2);
+  }
+
+  @After
+  public void tearDown() {
+    validationLogger.setLevel(validationLogLevel);
+  }
+
+  @Test
+  public void successfulRefUpdateShouldStayWithinAllocationBudget() throws Exception {
+    for (int i = 0; i < WARMUP_UPDATES; i++) {
+      validator.executeRefUpdate(refUpdate, refUpdateFunction, rollbackFunction);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_UPDATES; i++) {
+      assertThat(validator.executeRefUpdate(refUpdate, refUpdateFunction, rollbackFunction))
+          .isEqualTo(Result.FAST_FORWARD);
+    }
+    long allocatedPerUpdate =
+        (threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / MEASURED_UPDATES;
+
+    assertWithMessage("bytes allocated per ref-update")
+        .that(allocatedPerUpdate)
+        .isAtMost(MAX_ALLOCATED_BYTES_PER_UPDATE);
+  }
+
+  private static class SingleRefDatabase extends RefDatabase {
+    private final Ref ref;
+
+    SingleRefDatabase(Ref ref) {
+      this.ref = ref;
+    }
+
+    @Override
+    public Ref exactRef(String name) {
+      return ref.getName().equals(name) ? ref : null;
+    }
+
+    @Override
+    public void create() {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public boolean isNameConflicting(String name) {
+      return false;
+    }
+
+    @Override
+    public RefUpdate newUpdate(String name, boolean detach) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public RefRename newRename(String fromName, String toName) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, Ref> getRefs(String prefix) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Ref> getRefsByPrefix(String prefix) {
+      return ref.getName().startsWith(prefix)
+          ? Collections.singletonList(ref)
+          : Collections.emptyList();
+    }
+
+    @Override
+    public List<Ref> getAdditionalRefs() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public Ref peel(Ref ref) {
+      return ref;
+    }
+  }
+
+  private static class TestRefUpdate extends RefUpdate {
+
+    TestRefUpdate(Ref ref) {
+      super(ref);
+    }
+
+    @Override
+    protected RefDatabase getRefDatabase() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected Repository getRepository() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected boolean tryLock(boolean deref) {
+      return true;
+    }
+
+    @Override
+    protected void unlock() {}
+
+    @Override
+    protected Result doUpdate(Result desiredResult) {
+      return desiredResult;
+    }
+
+    @Override
+    protected Result doDelete(Result desiredResult) {
+      return desiredResult;
+    }
+
+    @Override
+    protected Result doLink(String target) {
+      return Result.NEW;
+    }
+  }
+}
@@ -17,6 +17,8 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.lenient;
 import static org.mockito.Mockito.never;
@@ -24,12 +26,22 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.gerritforge.gerrit.globalrefdb.Deadline;
 import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.IdenticalValueOutcome;
 import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterFunction;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.CustomSharedRefEnforcementByProject;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.testing.GerritJUnit;
+import java.io.IOException;
+import java.time.Duration;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
@@ -52,6 +64,12 @@ public class RefUpdateValidatorTest implements RefFixture {
 
   @Mock SharedRefDBMetrics sharedRefDBMetrics;
 
+  @Mock Tombstones tombstones;
+
+  @Mock GlobalRefDbExecutor globalRefDbExecutor;
+
+  @Mock ConcurrencyLimiter concurrencyLimiter;
+
   @Mock RefDatabase localRefDb;
 
   @Mock ValidationMetrics validationMetrics;
@@ -59,6 +77,8 @@ public class RefUpdateValidatorTest implements RefFixture {
   @Mock RefUpdate refUpdate;
 
   @Mock ProjectsFilter projectsFilter;
+  @Mock AsyncRefPublisher asyncRefPublisher;
+  @Mock ShadowRefValidator shadowRefValidator;
 
   @Mock OneParameterFunction<ObjectId, Result> rollbackFunction;
 
@@ -78,13 +98,12 @@ public class RefUpdateValidatorTest implements RefFixture {
     newUpdateRef = newRef(refName, AN_OBJECT_ID_2);
     localRef = newRef(refName, AN_OBJECT_ID_3);
 
-    doReturn(localRef).when(localRefDb).findRef(refName);
-    doReturn(localRef).when(localRefDb).exactRef(refName);
+    lenient().doReturn(localRef).when(localRefDb).exactRef(refName);
     doReturn(newUpdateRef.getObjectId()).when(refUpdate).getNewObjectId();
     doReturn(refName).when(refUpdate).getName();
     lenient().doReturn(oldUpdateRef.getObjectId()).when(refUpdate).getOldObjectId();
 
-    doReturn(true).when(projectsFilter).matches(anyString());
+    doReturn(true).when(projectsFilter).matches(any(Project.NameKey.class));
     doReturn(Result.FAST_FORWARD).when(rollbackFunction).invoke(any());
 
     refUpdateValidator = newRefUpdateValidator(sharedRefDb);
@@ -92,8 +111,15 @@ public class RefUpdateValidatorTest implements RefFixture {
 
   @Test
   public void validationShouldSucceedWhenSharedRefDbIsNoop() throws Exception {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(new Config(), "testplugin");
     SharedRefDatabaseWrapper noopSharedRefDbWrapper =
-        new SharedRefDatabaseWrapper(sharedRefLogger, sharedRefDBMetrics);
+        new SharedRefDatabaseWrapper(
+            sharedRefLogger,
+            sharedRefDBMetrics,
+            tombstones,
+            concurrencyLimiter,
+            new CircuitBreaker(sharedRefDBMetrics, cfg),
+            new ReadHedger(globalRefDbExecutor, sharedRefDBMetrics, cfg));
 
     Result result =
         newRefUpdateValidator(noopSharedRefDbWrapper)
@@ -122,6 +148,113 @@ public class RefUpdateValidatorTest implements RefFixture {
     assertThat(result).isEqualTo(Result.NEW);
   }
 
+  @Test
+  public void globalLockShouldBeWaitedForAtMostTheLockTimeout() throws Exception {
+    doReturn(true).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+
+    refUpdateValidator.executeRefUpdate(
+        refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+
+    Duration lockTimeout = Duration.ofMillis(SharedRefDatabase.DEFAULT_LOCK_TIMEOUT_MS);
+    verify(sharedRefDb)
+        .lockRef(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            eq(refName),
+            argThat(
+                deadline ->
+                    deadline.isBounded() && deadline.remaining().compareTo(lockTimeout) <= 0));
+  }
+
+  @Test
+  public void refLockSessionShouldHoldTheGlobalLockAcrossUpdatesOfTheSameRef() throws Exception {
+    doReturn(true).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+
+    try (RefLockSession session = RefLockSession.open()) {
+      for (int i = 0; i < 2; i++) {
+        Result result =
+            refUpdateValidator.executeRefUpdate(
+                refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+        assertThat(result).isEqualTo(Result.FAST_FORWARD);
+      }
+      verify(lock, never()).close();
+    }
+
+    verify(sharedRefDb, times(1)).lockRef(any(), anyString(), any(Deadline.class));
+    verify(lock).close();
+    assertThat(RefLockSession.isOpen()).isFalse();
+  }
+
+  @Test
+  public void nestedRefLockSessionCloseShouldNotReleaseTheLocks() throws Exception {
+    doReturn(true).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+
+    try (RefLockSession session = RefLockSession.open()) {
+      try (RefLockSession nestedSession = RefLockSession.open()) {
+        refUpdateValidator.executeRefUpdate(
+            refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+      }
+      verify(lock, never()).close();
+      assertThat(RefLockSession.isOpen()).isTrue();
+    }
+
+    verify(lock).close();
+  }
+
+  @Test
+  public void refLockSessionShouldReleaseTheLocksWhenAnUpdateFails() throws Exception {
+    doReturn(true).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+
+    GerritJUnit.assertThrows(
+        IOException.class,
+        () -> {
+          try (RefLockSession session = RefLockSession.open()) {
+            refUpdateValidator.executeRefUpdate(
+                refUpdate,
+                () -> {
+                  throw new IOException("update failed");
+                },
+                this::defaultRollback);
+          }
+        });
+
+    verify(lock).close();
+    assertThat(RefLockSession.isOpen()).isFalse();
+  }
+
+  @Test
+  public void refLockSessionShouldBoundTheLockWaitWhenTheLockTimeoutIsDisabled() throws Exception {
+    Config config = new Config();
+    config.setString(SharedRefDatabase.SECTION, null, SharedRefDatabase.LOCK_TIMEOUT_KEY, "0");
+    doReturn(true).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+    RefUpdateValidator validator =
+        newRefUpdateValidator(sharedRefDb, defaultRefEnforcement, config);
+
+    validator.executeRefUpdate(refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+    try (RefLockSession session = RefLockSession.open()) {
+      validator.executeRefUpdate(refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+    }
+
+    verify(sharedRefDb).lockRef(any(), anyString(), argThat(deadline -> !deadline.isBounded()));
+    verify(sharedRefDb).lockRef(any(), anyString(), argThat(Deadline::isBounded));
+  }
+
   @Test
   public void sharedRefDbShouldBeUpdatedWithRefDeleted() throws Exception {
     doReturn(ObjectId.zeroId()).when(refUpdate).getNewObjectId();
@@ -133,7 +266,7 @@ public class RefUpdateValidatorTest implements RefFixture {
     doReturn(true)
         .when(sharedRefDb)
         .compareAndPut(A_TEST_PROJECT_NAME_KEY, localRef, ObjectId.zeroId());
-    doReturn(localRef).doReturn(null).when(localRefDb).findRef(refName);
+    doReturn(localRef).doReturn(null).when(localRefDb).exactRef(refName);
 
     Result result =
         refUpdateValidator.executeRefUpdate(refUpdate, () -> Result.FORCED, this::defaultRollback);
@@ -153,7 +286,7 @@ public class RefUpdateValidatorTest implements RefFixture {
     doReturn(true)
         .when(sharedRefDb)
         .compareAndPut(A_TEST_PROJECT_NAME_KEY, localNullRef, newUpdateRef.getObjectId());
-    doReturn(localNullRef).doReturn(newUpdateRef).when(localRefDb).findRef(refName);
+    doReturn(localNullRef).doReturn(newUpdateRef).when(localRefDb).exactRef(refName);
 
     Result result =
         refUpdateValidator.executeRefUpdate(refUpdate, () -> Result.NEW, this::defaultRollback);
@@ -191,7 +324,7 @@ public class RefUpdateValidatorTest implements RefFixture {
     doReturn(false)
         .when(sharedRefDb)
         .compareAndPut(A_TEST_PROJECT_NAME_KEY, localRef, newUpdateRef.getObjectId());
-    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString());
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
 
     Result result =
         refUpdateValidator.executeRefUpdate(refUpdate, () -> Result.NEW, rollbackFunction);
@@ -235,9 +368,63 @@ public class RefUpdateValidatorTest implements RefFixture {
     verify(rollbackFunction, times(1)).invoke(any());
   }
 
+  @Test
+  public void identicalValueUpdateShouldBeShortCircuitedWhenUpToDate() throws Exception {
+    doReturn(newUpdateRef).when(refUpdate).getRef();
+    doReturn(true).when(sharedRefDb).isUpToDate(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class));
+
+    Result result =
+        refUpdateValidator.executeRefUpdate(
+            refUpdate, () -> Result.NO_CHANGE, this::defaultRollback, true);
+
+    assertThat(result).isEqualTo(Result.NO_CHANGE);
+    verify(refUpdate).setExpectedOldObjectId(newUpdateRef.getObjectId());
+    verify(validationMetrics).incrementIdenticalValueUpdate(IdenticalValueOutcome.SHORT_CIRCUITED);
+    verify(localRefDb, never()).exactRef(refName);
+    verify(sharedRefDb, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(sharedRefDb, never())
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+  }
+
+  @Test
+  public void identicalValueUpdateShouldBeValidatedWhenNotUpToDate() throws Exception {
+    doReturn(newUpdateRef).when(refUpdate).getRef();
+    doReturn(false).when(sharedRefDb).isUpToDate(any(Project.NameKey.class), any(Ref.class));
+    doReturn(true).when(sharedRefDb).exists(A_TEST_PROJECT_NAME_KEY, refName);
+
+    Result result =
+        refUpdateValidator.executeRefUpdate(
+            refUpdate, () -> Result.NO_CHANGE, this::defaultRollback, true);
+
+    assertThat(result).isEqualTo(Result.LOCK_FAILURE);
+    verify(validationMetrics).incrementIdenticalValueUpdate(IdenticalValueOutcome.VALIDATED);
+    verify(refUpdate, never()).setExpectedOldObjectId(any());
+  }
+
+  @Test
+  public void deleteShouldBeValidatedEvenWhenItsNewIdIsTheCurrentValue() throws Exception {
+    lenient().doReturn(newUpdateRef).when(refUpdate).getRef();
+    doReturn(newUpdateRef).when(localRefDb).exactRef(refName);
+    doReturn(true).when(sharedRefDb).isUpToDate(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class));
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+    doReturn(lock).when(sharedRefDb).lockRef(any(), anyString(), any(Deadline.class));
+
+    Result result =
+        refUpdateValidator.executeRefUpdate(refUpdate, () -> Result.FORCED, this::defaultRollback);
+
+    assertThat(result).isEqualTo(Result.FORCED);
+    verify(sharedRefDb).lockRef(eq(A_TEST_PROJECT_NAME_KEY), eq(refName), any(Deadline.class));
+    verify(sharedRefDb)
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), any(ObjectId.class));
+    verify(refUpdate, never()).setExpectedOldObjectId(any());
+    verify(validationMetrics, never()).incrementIdenticalValueUpdate(any());
+  }
+
   @Test
   public void shouldNotUpdateSharedRefDbWhenProjectIsLocal() throws Exception {
-    when(projectsFilter.matches(anyString())).thenReturn(false);
+    when(projectsFilter.matches(any(Project.NameKey.class))).thenReturn(false);
 
     refUpdateValidator.executeRefUpdate(refUpdate, () -> Result.NEW, this::defaultRollback);
 
@@ -245,17 +432,114 @@ public class RefUpdateValidatorTest implements RefFixture {
         .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
   }
 
+  @Test
+  public void asyncRefUpdateShouldBePublishedInBackgroundWithoutValidation() throws Exception {
+    Config asyncConfig = new Config();
+    asyncConfig.setString(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.SUBSECTION_ENFORCEMENT_RULES,
+        EnforcePolicy.ASYNC.name(),
+        A_TEST_PROJECT_NAME);
+    SharedRefEnforcement asyncRefEnforcement =
+        new CustomSharedRefEnforcementByProject(
+            new SharedRefDbConfiguration(asyncConfig, "testplugin"));
+
+    Result result =
+        newRefUpdateValidator(sharedRefDb, asyncRefEnforcement)
+            .executeRefUpdate(refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+
+    assertThat(result).isEqualTo(Result.FAST_FORWARD);
+    verify(asyncRefPublisher)
+        .publish(A_TEST_PROJECT_NAME_KEY, localRef, newUpdateRef.getObjectId());
+    verify(sharedRefDb, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(sharedRefDb, never())
+        .compareAndPut(any(Project.NameKey.class), any(Ref.class), any(ObjectId.class));
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void validatorWithoutBackgroundWritersShouldEnforceAsyncRefsAsRequired() throws Exception {
+    Config asyncConfig = new Config();
+    asyncConfig.setString(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.SUBSECTION_ENFORCEMENT_RULES,
+        EnforcePolicy.ASYNC.name(),
+        A_TEST_PROJECT_NAME);
+    SharedRefEnforcement asyncRefEnforcement =
+        new CustomSharedRefEnforcementByProject(
+            new SharedRefDbConfiguration(asyncConfig, "testplugin"));
+    doReturn(true).when(sharedRefDb).isUpToDate(A_TEST_PROJECT_NAME_KEY, localRef);
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, localRef, newUpdateRef.getObjectId());
+
+    Result result =
+        new RefUpdateValidator(
+                sharedRefDb,
+                validationMetrics,
+                asyncRefEnforcement,
+                new DummyLockWrapper(),
+                projectsFilter,
+                A_TEST_PROJECT_NAME,
+                localRefDb,
+                ImmutableSet.of())
+            .executeRefUpdate(refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+
+    assertThat(result).isEqualTo(Result.FAST_FORWARD);
+    verify(sharedRefDb)
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, localRef, newUpdateRef.getObjectId());
+    verify(asyncRefPublisher, never()).publish(any(), any(), any());
+  }
+
+  @Test
+  public void shadowRefUpdateShouldBeValidatedInBackgroundWithoutFailing() throws Exception {
+    Config shadowConfig = new Config();
+    shadowConfig.setString(
+        SharedRefDatabase.SECTION,
+        SharedRefDatabase.SUBSECTION_ENFORCEMENT_RULES,
+        EnforcePolicy.SHADOW.name(),
+        A_TEST_PROJECT_NAME);
+    SharedRefEnforcement shadowRefEnforcement =
+        new CustomSharedRefEnforcementByProject(
+            new SharedRefDbConfiguration(shadowConfig, "testplugin"));
+
+    Result result =
+        newRefUpdateValidator(sharedRefDb, shadowRefEnforcement)
+            .executeRefUpdate(refUpdate, () -> Result.FAST_FORWARD, this::defaultRollback);
+
+    assertThat(result).isEqualTo(Result.FAST_FORWARD);
+    verify(shadowRefValidator)
+        .validate(A_TEST_PROJECT_NAME_KEY, localRef, newUpdateRef.getObjectId());
+    verify(sharedRefDb, never()).lockRef(any(), any(), any(Deadline.class));
+    verify(rollbackFunction, never()).invoke(any());
+  }
+
   private Result defaultRollback(ObjectId objectId) {
     return Result.NO_CHANGE;
   }
 
   private RefUpdateValidator newRefUpdateValidator(SharedRefDatabaseWrapper refDbWrapper) {
+    return newRefUpdateValidator(refDbWrapper, defaultRefEnforcement);
+  }
+
+  private RefUpdateValidator newRefUpdateValidator(
+      SharedRefDatabaseWrapper refDbWrapper, SharedRefEnforcement refEnforcement) {
+    return newRefUpdateValidator(refDbWrapper, refEnforcement, new Config());
+  }
+
+  private RefUpdateValidator newRefUpdateValidator(
+      SharedRefDatabaseWrapper refDbWrapper, SharedRefEnforcement refEnforcement, Config config) {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(config, "testplugin");
     return new RefUpdateValidator(
         refDbWrapper,
         validationMetrics,
-        defaultRefEnforcement,
+        refEnforcement,
         new DummyLockWrapper(),
         projectsFilter,
+        asyncRefPublisher,
+        shadowRefValidator,
+        new LocalRefLocks(sharedRefDBMetrics, cfg),
+        cfg,
         A_TEST_PROJECT_NAME,
         localRefDb,
         ImmutableSet.of());
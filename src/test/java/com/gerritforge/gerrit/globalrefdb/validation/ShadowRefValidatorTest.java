@@ -0,0 +1,217 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.ShadowRefValidator.Outcome;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShadowRefValidatorTest implements RefFixture {
+  private static final int VERIFY_TIMEOUT_MS = 5000;
+
+  @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock ValidationMetrics metrics;
+  @Mock WorkQueue workQueue;
+  @Mock AutoCloseable lock;
+
+  private ScheduledExecutorService executor;
+  private Config config;
+  private ShadowRefValidator objectUnderTest;
+  private Ref oldRef;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    lenient().when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    config = new Config();
+    config.setInt(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.SHADOW_VALIDATION_QUEUE_SIZE_KEY, 1);
+    objectUnderTest = newShadowRefValidator();
+    oldRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private ShadowRefValidator newShadowRefValidator() {
+    return new ShadowRefValidator(
+        sharedRefDatabase, metrics, new SharedRefDbConfiguration(config, "testplugin"), workQueue);
+  }
+
+  @Test
+  public void shouldRecordSuccessfulValidationInBackground() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef)).thenReturn(true);
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .thenReturn(true);
+
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS)).incrementShadowValidation(Outcome.SUCCESS);
+    verify(metrics).recordShadowValidationLatency(anyLong());
+    verify(lock).close();
+  }
+
+  @Test
+  public void shouldRecordOutOfSyncWithoutUpdatingGlobalRefDb() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef)).thenReturn(false);
+    when(sharedRefDatabase.exists(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(true);
+
+    objectUnderTest.doValidate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics).incrementShadowValidation(Outcome.OUT_OF_SYNC);
+    verify(sharedRefDatabase, never()).compareAndPut(any(), any(Ref.class), any(ObjectId.class));
+  }
+
+  @Test
+  public void shouldRecordSplitBrainWhenGlobalRefDbRejectsUpdate() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef)).thenReturn(true);
+    when(sharedRefDatabase.compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2))
+        .thenReturn(false);
+
+    objectUnderTest.doValidate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics).incrementShadowValidation(Outcome.SPLIT_BRAIN);
+  }
+
+  @Test
+  public void shouldRecordLockFailure() {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME))
+        .thenThrow(new GlobalRefDbLockException(A_TEST_PROJECT_NAME, A_TEST_REF_NAME, null));
+
+    objectUnderTest.doValidate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+
+    verify(metrics).incrementShadowValidation(Outcome.LOCK_FAILURE);
+  }
+
+  @Test
+  public void shouldDropValidationsWhenPoolIsSaturated() throws Exception {
+    CountDownLatch lockAcquired = new CountDownLatch(1);
+    CountDownLatch releaseLock = new CountDownLatch(1);
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME))
+        .thenAnswer(
+            invocation -> {
+              lockAcquired.countDown();
+              releaseLock.await();
+              return lock;
+            });
+
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    lockAcquired.await();
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    releaseLock.countDown();
+
+    verify(metrics).incrementShadowValidation(Outcome.DROPPED);
+  }
+
+  @Test
+  public void shouldResyncInsteadOfRecordingTheValidationFollowingADroppedOne() throws Exception {
+    Ref droppedRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2);
+    when(sharedRefDatabase.isCircuitOpen()).thenReturn(true).thenReturn(false);
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.get(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME, ObjectId.class))
+        .thenReturn(Optional.of(AN_OBJECT_ID_1));
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(r -> r.getObjectId().equals(AN_OBJECT_ID_1)),
+            eq(AN_OBJECT_ID_3)))
+        .thenReturn(true);
+
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, droppedRef, AN_OBJECT_ID_3);
+
+    verify(lock, timeout(VERIFY_TIMEOUT_MS)).close();
+    verify(metrics).incrementShadowValidation(Outcome.DROPPED);
+    verify(metrics, never()).incrementShadowValidation(Outcome.OUT_OF_SYNC);
+    verify(metrics, never()).incrementShadowValidation(Outcome.SUCCESS);
+    verify(sharedRefDatabase, never()).isUpToDate(any(), any(Ref.class));
+  }
+
+  @Test
+  public void shouldValidateTheUpdatesOfTheSameRefInOrder() throws Exception {
+    config.setInt(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.SHADOW_VALIDATION_THREADS_KEY, 2);
+    executor.shutdownNow();
+    executor = Executors.newScheduledThreadPool(2);
+    when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    objectUnderTest = newShadowRefValidator();
+    Ref secondRef = newRef(A_TEST_REF_NAME, AN_OBJECT_ID_2);
+    CountDownLatch firstLocked = new CountDownLatch(1);
+    CountDownLatch releaseFirst = new CountDownLatch(1);
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME))
+        .thenAnswer(
+            invocation -> {
+              firstLocked.countDown();
+              releaseFirst.await();
+              return lock;
+            })
+        .thenReturn(lock);
+    when(sharedRefDatabase.isUpToDate(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class)))
+        .thenReturn(true);
+    when(sharedRefDatabase.compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), any()))
+        .thenReturn(true);
+
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    firstLocked.await();
+    objectUnderTest.validate(A_TEST_PROJECT_NAME_KEY, secondRef, AN_OBJECT_ID_3);
+    Thread.sleep(100);
+    verify(sharedRefDatabase, never()).isUpToDate(A_TEST_PROJECT_NAME_KEY, secondRef);
+    releaseFirst.countDown();
+
+    verify(metrics, timeout(VERIFY_TIMEOUT_MS).times(2)).incrementShadowValidation(Outcome.SUCCESS);
+    InOrder inOrder = inOrder(sharedRefDatabase);
+    inOrder
+        .verify(sharedRefDatabase)
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, oldRef, AN_OBJECT_ID_2);
+    inOrder
+        .verify(sharedRefDatabase)
+        .compareAndPut(A_TEST_PROJECT_NAME_KEY, secondRef, AN_OBJECT_ID_3);
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright (C) 2023 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefCompensator.Outcome;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.common.collect.ImmutableList;
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedRefCompensatorTest implements RefFixture {
+  private static final String ANOTHER_REF_NAME = "refs/heads/another";
+
+  @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock ValidationMetrics metrics;
+  @Mock WorkQueue workQueue;
+
+  private ScheduledExecutorService executor;
+  private SharedRefCompensator objectUnderTest;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newScheduledThreadPool(2);
+    lenient().when(workQueue.createQueue(anyInt(), anyString())).thenReturn(executor);
+    objectUnderTest =
+        new SharedRefCompensator(
+            sharedRefDatabase,
+            metrics,
+            new SharedRefDbConfiguration(new Config(), "testplugin"),
+            workQueue);
+  }
+
+  @After
+  public void tearDown() {
+    objectUnderTest.stop();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldRevertAllThePublishedRefs() {
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), eq(AN_OBJECT_ID_1)))
+        .thenReturn(true);
+
+    boolean compensated =
+        objectUnderTest.compensate(
+            A_TEST_PROJECT_NAME_KEY,
+            ImmutableList.of(
+                new RefPair(newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2),
+                new RefPair(newRef(ANOTHER_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2)));
+
+    assertThat(compensated).isTrue();
+    verify(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            refEquals(A_TEST_REF_NAME, AN_OBJECT_ID_2),
+            eq(AN_OBJECT_ID_1));
+    verify(sharedRefDatabase)
+        .compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            refEquals(ANOTHER_REF_NAME, AN_OBJECT_ID_2),
+            eq(AN_OBJECT_ID_1));
+    verify(metrics, times(2)).incrementCompensation(Outcome.SUCCESS);
+    verify(metrics, never()).incrementSplitBrain();
+  }
+
+  @Test
+  public void shouldRecordSplitBrainWhenRefHasBeenUpdatedInTheMeantime() {
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY), any(Ref.class), eq(AN_OBJECT_ID_1)))
+        .thenReturn(false);
+
+    boolean compensated =
+        objectUnderTest.compensate(
+            A_TEST_PROJECT_NAME_KEY,
+            ImmutableList.of(new RefPair(newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2)));
+
+    assertThat(compensated).isFalse();
+    verify(metrics).incrementCompensation(Outcome.FAILURE);
+    verify(metrics).incrementSplitBrain();
+  }
+
+  @Test
+  public void shouldCarryOnRevertingWhenGlobalRefDbFails() {
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            refEquals(A_TEST_REF_NAME, AN_OBJECT_ID_2),
+            eq(AN_OBJECT_ID_1)))
+        .thenThrow(new GlobalRefDbSystemError("test", new Exception()));
+    when(sharedRefDatabase.compareAndPut(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            refEquals(ANOTHER_REF_NAME, AN_OBJECT_ID_2),
+            eq(AN_OBJECT_ID_1)))
+        .thenReturn(true);
+
+    boolean compensated =
+        objectUnderTest.compensate(
+            A_TEST_PROJECT_NAME_KEY,
+            ImmutableList.of(
+                new RefPair(newRef(A_TEST_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2),
+                new RefPair(newRef(ANOTHER_REF_NAME, AN_OBJECT_ID_1), AN_OBJECT_ID_2)));
+
+    assertThat(compensated).isFalse();
+    verify(metrics).incrementCompensation(Outcome.SUCCESS);
+    verify(metrics).incrementCompensation(Outcome.FAILURE);
+    verify(metrics).incrementSplitBrain();
+  }
+
+  private static Ref refEquals(String refName, ObjectId objectId) {
+    return argThat(
+        ref -> ref != null && ref.getName().equals(refName) && ref.getObjectId().equals(objectId));
+  }
+}
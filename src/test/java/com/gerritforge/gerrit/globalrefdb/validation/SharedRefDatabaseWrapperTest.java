@@ -14,11 +14,24 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.gerritforge.gerrit.globalrefdb.Deadline;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbSystemError;
 import com.google.gerrit.entities.Project;
+import com.google.gerrit.extensions.registration.DynamicItem;
 import com.google.gerrit.metrics.Timer0.Context;
+import com.google.gerrit.testing.GerritJUnit;
+import java.time.Duration;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.junit.Before;
@@ -34,6 +47,10 @@ public class SharedRefDatabaseWrapperTest {
   @Mock SharedRefLogger sharedRefLogger;
   @Mock private Context context;
   @Mock private Ref ref;
+  @Mock private Tombstones tombstones;
+  @Mock private GlobalRefDbExecutor executor;
+  @Mock private ConcurrencyLimiter concurrencyLimiter;
+  @Mock private GlobalRefDatabase globalRefDb;
 
   private SharedRefDatabaseWrapper objectUnderTest;
   private String refName = "refs/heads/master";
@@ -47,7 +64,8 @@ public class SharedRefDatabaseWrapperTest {
     when(metrics.startExistsExecutionTime()).thenReturn(context);
     when(metrics.startIsUpToDateExecutionTime()).thenReturn(context);
     when(metrics.startRemoveExecutionTime()).thenReturn(context);
-    objectUnderTest = new SharedRefDatabaseWrapper(sharedRefLogger, metrics);
+    when(metrics.startCompareAndRemoveExecutionTime()).thenReturn(context);
+    objectUnderTest = newSharedRefDatabaseWrapper(null);
   }
 
   @Test
@@ -91,4 +109,134 @@ public class SharedRefDatabaseWrapperTest {
     verify(metrics).startRemoveExecutionTime();
     verify(context).close();
   }
+
+  @Test
+  public void shouldUpdateRemoveExecutionTimeMetricWhenRemoveChunkCalled() {
+    objectUnderTest.remove(projectName, 100);
+    verify(metrics).startRemoveExecutionTime();
+    verify(context).close();
+  }
+
+  @Test
+  public void shouldUpdateCompareAndRemoveExecutionTimeMetricWhenCompareAndRemoveCalled() {
+    objectUnderTest.compareAndRemove(projectName, ref);
+    verify(metrics).startCompareAndRemoveExecutionTime();
+    verify(context).close();
+  }
+
+  @Test
+  public void shouldUpdateMetricsAndLogWhenAllocateBlockIsCalled() {
+    when(metrics.startAllocateBlockExecutionTime()).thenReturn(context);
+    when(globalRefDb.allocateBlock(projectName, refName, 10)).thenReturn(1L);
+    objectUnderTest =
+        newSharedRefDatabaseWrapper(DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb));
+
+    assertThat(objectUnderTest.allocateBlock(projectName, refName, 10)).isEqualTo(1L);
+    verify(context).close();
+    verify(metrics).incrementAllocatedValues(10);
+    verify(sharedRefLogger).logRefUpdate(projectName.get(), refName, 0L, 10L);
+  }
+
+  @Test
+  public void shouldTrackTombstoneWhenRefIsDeleted() {
+    when(ref.getName()).thenReturn(refName);
+    objectUnderTest.compareAndPut(projectName, ref, ObjectId.zeroId());
+    verify(tombstones).add(projectName, refName);
+  }
+
+  @Test
+  public void shouldNotTrackTombstoneWhenRefIsUpdated() {
+    objectUnderTest.compareAndPut(
+        projectName, ref, ObjectId.fromString("0123456789abcdef0123456789abcdef01234567"));
+    verify(tombstones, never()).add(any(), any());
+  }
+
+  @Test
+  public void shouldGiveUpWithoutCallingTheGlobalRefDbOnceTheDeadlineHasExpired() {
+    try (Deadline.Scope scope = Deadline.after(Duration.ZERO).enter()) {
+      GerritJUnit.assertThrows(
+          GlobalRefDbLockException.class, () -> objectUnderTest.lockRef(projectName, refName));
+    }
+    verify(metrics).incrementDeadlineExceeded();
+    verify(metrics, never()).startLockRefExecutionTime();
+  }
+
+  @Test
+  public void shouldWaitForTheLockAtMostUntilTheDeadline() {
+    Duration timeout = Duration.ofMinutes(1);
+    objectUnderTest =
+        newSharedRefDatabaseWrapper(DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb));
+
+    try (Deadline.Scope scope = Deadline.after(timeout).enter()) {
+      objectUnderTest.lockRef(projectName, refName);
+    }
+    verify(globalRefDb)
+        .tryLockRef(
+            eq(projectName),
+            eq(refName),
+            argThat(wait -> !wait.isNegative() && wait.compareTo(timeout) <= 0));
+    verify(globalRefDb, never()).lockRef(projectName, refName);
+  }
+
+  @Test
+  public void shouldOpenTheCircuitBreakerWhenLockingFailsWithSystemErrors() {
+    when(globalRefDb.lockRef(projectName, refName))
+        .thenThrow(
+            new GlobalRefDbLockException(
+                projectName.get(), refName, new GlobalRefDbSystemError("unavailable", null)));
+    objectUnderTest =
+        newSharedRefDatabaseWrapper(
+            DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb), circuitBreakerConfig(2));
+
+    for (int i = 0; i < 2; i++) {
+      GerritJUnit.assertThrows(
+          GlobalRefDbLockException.class, () -> objectUnderTest.lockRef(projectName, refName));
+    }
+
+    assertThat(objectUnderTest.isCircuitOpen()).isTrue();
+  }
+
+  @Test
+  public void shouldNotOpenTheCircuitBreakerWhenTheLockIsHeldBySomeoneElse() {
+    when(globalRefDb.lockRef(projectName, refName))
+        .thenThrow(new GlobalRefDbLockException(projectName.get(), refName, null));
+    objectUnderTest =
+        newSharedRefDatabaseWrapper(
+            DynamicItem.itemOf(GlobalRefDatabase.class, globalRefDb), circuitBreakerConfig(2));
+
+    for (int i = 0; i < 2; i++) {
+      GerritJUnit.assertThrows(
+          GlobalRefDbLockException.class, () -> objectUnderTest.lockRef(projectName, refName));
+    }
+
+    assertThat(objectUnderTest.isCircuitOpen()).isFalse();
+  }
+
+  private static Config circuitBreakerConfig(int failureThreshold) {
+    Config config = new Config();
+    config.setInt(
+        SharedRefDbConfiguration.SharedRefDatabase.SECTION,
+        null,
+        SharedRefDbConfiguration.SharedRefDatabase.CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY,
+        failureThreshold);
+    return config;
+  }
+
+  private SharedRefDatabaseWrapper newSharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem) {
+    return newSharedRefDatabaseWrapper(sharedRefDbDynamicItem, new Config());
+  }
+
+  private SharedRefDatabaseWrapper newSharedRefDatabaseWrapper(
+      DynamicItem<GlobalRefDatabase> sharedRefDbDynamicItem, Config config) {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(config, "testplugin");
+    return new SharedRefDatabaseWrapper(
+        sharedRefDbDynamicItem,
+        sharedRefLogger,
+        metrics,
+        tombstones,
+        concurrencyLimiter,
+        new CircuitBreaker(metrics, cfg),
+        new ReadHedger(executor, metrics, cfg));
+  }
 }
@@ -16,23 +16,32 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.EMPTY_LIST;
-import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import com.gerritforge.gerrit.globalrefdb.validation.RefUpdateValidator.OneParameterVoidFunction;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.DefaultSharedRefEnforcement;
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.entities.Project;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
@@ -45,6 +54,7 @@ import org.junit.Test;
 import org.junit.rules.TestName;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentMatcher;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -53,12 +63,17 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
 
   @Mock SharedRefDatabaseWrapper sharedRefDb;
   @Mock BatchRefUpdate batchRefUpdate;
+  @Mock BatchRefUpdate rollbackBatchRefUpdate;
   @Mock BatchRefUpdateValidator batchRefUpdateValidator;
   @Mock RefDatabase refDatabase;
   @Mock RevWalk revWalk;
   @Mock ProgressMonitor progressMonitor;
   @Mock ValidationMetrics validationMetrics;
   @Mock ProjectsFilter projectsFilter;
+  @Mock AsyncRefPublisher asyncRefPublisher;
+  @Mock ShadowRefValidator shadowRefValidator;
+  @Mock SharedRefCompensator sharedRefCompensator;
+  @Mock SharedRefDBMetrics sharedRefDBMetrics;
 
   private final Ref oldRef =
       new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, A_TEST_REF_NAME, AN_OBJECT_ID_1);
@@ -68,9 +83,6 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
       createReceiveCommand(
           oldRef.getObjectId(), newRef.getObjectId(), oldRef.getName(), Result.NOT_ATTEMPTED);
 
-  ReceiveCommand successReceiveCommandAfterExecution =
-      createReceiveCommand(oldRef.getObjectId(), newRef.getObjectId(), oldRef.getName(), Result.OK);
-
   ReceiveCommand rejectReceiveCommandAfterExecution =
       createReceiveCommand(
           oldRef.getObjectId(),
@@ -96,7 +108,7 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
 
   @Before
   public void setup() {
-    when(projectsFilter.matches(anyString())).thenReturn(true);
+    when(projectsFilter.matches(any(Project.NameKey.class))).thenReturn(true);
   }
 
   @SuppressWarnings("deprecation")
@@ -104,12 +116,20 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
 
     doReturn(batchRefUpdate).when(refDatabase).newBatchUpdate();
 
-    when(batchRefUpdate.getCommands())
-        .thenReturn(asList(receiveCommandBeforeExecution))
-        .thenReturn(asList(successReceiveCommandAfterExecution));
-
-    doReturn(oldRef).when(refDatabase).getRef(A_TEST_REF_NAME);
-    doReturn(oldRef).when(refDatabase).exactRef(A_TEST_REF_NAME);
+    when(batchRefUpdate.getCommands()).thenReturn(asList(receiveCommandBeforeExecution));
+    lenient()
+        .doAnswer(
+            invocation -> {
+              receiveCommandBeforeExecution.setResult(Result.OK);
+              return null;
+            })
+        .when(batchRefUpdate)
+        .execute(any(), any(), any());
+
+    lenient()
+        .doReturn(ImmutableMap.of(A_TEST_REF_NAME, oldRef))
+        .when(refDatabase)
+        .exactRef(new String[] {A_TEST_REF_NAME});
 
     sharedRefDbRefUpdate = getSharedRefDbBatchRefUpdateWithDefaultPolicyEnforcement();
 
@@ -130,6 +150,49 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
         .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), refEquals(oldRef), eq(newRef.getObjectId()));
   }
 
+  @Test
+  public void executeSuccessfullyShouldNotCreateTheRollbackBatchUpdate() throws Exception {
+    setMockRequiredReturnValues();
+    doReturn(true).when(sharedRefDb).isUpToDate(A_TEST_PROJECT_NAME_KEY, oldRef);
+    doReturn(true)
+        .when(sharedRefDb)
+        .compareAndPut(eq(A_TEST_PROJECT_NAME_KEY), refEquals(oldRef), eq(newRef.getObjectId()));
+
+    sharedRefDbRefUpdate.execute(revWalk, progressMonitor, EMPTY_LIST);
+
+    verify(refDatabase, times(1)).newBatchUpdate();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void rollbackShouldCreateBatchUpdateWithTheSameSettings() throws Exception {
+    PersonIdent refLogIdent = new PersonIdent("Test User", "test@example.com");
+    List<ReceiveCommand> rollbackCommands = asList(receiveCommandBeforeExecution);
+    doReturn(batchRefUpdate).doReturn(rollbackBatchRefUpdate).when(refDatabase).newBatchUpdate();
+    doReturn(rollbackBatchRefUpdate)
+        .when(rollbackBatchRefUpdate)
+        .addCommand(ArgumentMatchers.<Collection<ReceiveCommand>>any());
+    doAnswer(
+            invocation -> {
+              invocation.getArgument(4, OneParameterVoidFunction.class).invoke(rollbackCommands);
+              return null;
+            })
+        .when(batchRefUpdateValidator)
+        .executeBatchUpdateWithValidation(any(), any(), any(), any(), any());
+
+    sharedRefDbRefUpdate = getSharedRefDbBatchRefUpdateWithMockedValidator();
+    sharedRefDbRefUpdate.setAllowNonFastForwards(true);
+    sharedRefDbRefUpdate.setRefLogIdent(refLogIdent);
+    sharedRefDbRefUpdate.setRefLogMessage("test message", true);
+    sharedRefDbRefUpdate.execute(revWalk, progressMonitor, EMPTY_LIST);
+
+    verify(rollbackBatchRefUpdate).setAllowNonFastForwards(true);
+    verify(rollbackBatchRefUpdate).setRefLogIdent(refLogIdent);
+    verify(rollbackBatchRefUpdate).setRefLogMessage("test message", true);
+    verify(rollbackBatchRefUpdate).addCommand(rollbackCommands);
+    verify(rollbackBatchRefUpdate).execute(revWalk, progressMonitor, EMPTY_LIST);
+  }
+
   private Ref refEquals(Ref oldRef) {
     return argThat(new RefMatcher(oldRef));
   }
@@ -139,7 +202,7 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
     sharedRefDbRefUpdate = getSharedRefDbBatchRefUpdateWithMockedValidator();
     doThrow(new IOException("IO Test Exception"))
         .when(batchRefUpdateValidator)
-        .executeBatchUpdateWithValidation(any(), any(), any());
+        .executeBatchUpdateWithValidation(any(), any(), any(), any(), any());
 
     sharedRefDbRefUpdate.execute(revWalk, progressMonitor, EMPTY_LIST);
   }
@@ -177,6 +240,12 @@ public class SharedRefDbBatchRefUpdateTest implements RefFixture {
                 new DefaultSharedRefEnforcement(),
                 new DummyLockWrapper(),
                 projectsFilter,
+                asyncRefPublisher,
+                shadowRefValidator,
+                new LocalRefLocks(
+                    sharedRefDBMetrics, new SharedRefDbConfiguration(new Config(), "testplugin")),
+                sharedRefCompensator,
+                new SharedRefDbConfiguration(new Config(), "testplugin"),
                 projectName,
                 refDb,
                 ignoredRefs);
@@ -0,0 +1,119 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.CustomSharedRefEnforcementByProject;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
+import com.google.gerrit.entities.Project;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedRefDbConfigurationTest {
+  private static final String A_REF = "refs/heads/master";
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File configFile;
+  private SharedRefDbConfiguration objectUnderTest;
+
+  @Before
+  public void setUp() throws Exception {
+    configFile = tempFolder.newFile("testplugin.config");
+    writeConfig("[projects]\n  pattern = foo\n");
+    objectUnderTest =
+        new SharedRefDbConfiguration(new FileBasedConfig(configFile, FS.DETECTED), "testplugin");
+  }
+
+  @Test
+  public void shouldReloadProjectsAndSharedRefDbSettings() throws Exception {
+    assertThat(objectUnderTest.projects().getPatterns()).containsExactly("foo");
+    assertThat(objectUnderTest.getSharedRefDb().isEnabled()).isFalse();
+
+    writeConfig("[projects]\n  pattern = bar\n[ref-database]\n  enabled = true\n");
+
+    assertThat(objectUnderTest.reload()).isTrue();
+    assertThat(objectUnderTest.projects().getPatterns()).containsExactly("bar");
+    assertThat(objectUnderTest.getSharedRefDb().isEnabled()).isTrue();
+  }
+
+  @Test
+  public void shouldKeepCurrentSettingsWhenReloadedFileIsInvalid() throws Exception {
+    assertThat(objectUnderTest.projects().getPatterns()).containsExactly("foo");
+
+    writeConfig("[projects\n");
+
+    assertThat(objectUnderTest.reload()).isFalse();
+    assertThat(objectUnderTest.projects().getPatterns()).containsExactly("foo");
+  }
+
+  @Test
+  public void shouldNotifyReloadListeners() throws Exception {
+    AtomicInteger reloads = new AtomicInteger();
+    objectUnderTest.addReloadListener(reloads::incrementAndGet);
+
+    objectUnderTest.reload();
+
+    assertThat(reloads.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotReloadConfigNotBackedByFile() {
+    SharedRefDbConfiguration inMemoryConfig =
+        new SharedRefDbConfiguration(new Config(), "testplugin");
+
+    assertThat(inMemoryConfig.isOutdated()).isFalse();
+    assertThat(inMemoryConfig.reload()).isFalse();
+  }
+
+  @Test
+  public void shouldRebuildProjectsFilterUponReload() throws Exception {
+    ProjectsFilter projectsFilter = new ProjectsFilter(objectUnderTest);
+    assertThat(projectsFilter.matches(Project.nameKey("foo"))).isTrue();
+    assertThat(projectsFilter.matches(Project.nameKey("bar"))).isFalse();
+
+    writeConfig("[projects]\n  pattern = bar\n");
+    objectUnderTest.reload();
+
+    assertThat(projectsFilter.matches(Project.nameKey("foo"))).isFalse();
+    assertThat(projectsFilter.matches(Project.nameKey("bar"))).isTrue();
+  }
+
+  @Test
+  public void shouldRebuildEnforcementRulesUponReload() throws Exception {
+    SharedRefEnforcement refEnforcement = new CustomSharedRefEnforcementByProject(objectUnderTest);
+    assertThat(refEnforcement.getPolicy("foo", A_REF)).isEqualTo(EnforcePolicy.REQUIRED);
+
+    writeConfig("[ref-database \"enforcementRules\"]\n  IGNORED = foo\n");
+    objectUnderTest.reload();
+
+    assertThat(refEnforcement.getPolicy("foo", A_REF)).isEqualTo(EnforcePolicy.IGNORED);
+  }
+
+  private void writeConfig(String content) throws Exception {
+    Files.write(configFile.toPath(), content.getBytes(UTF_8));
+  }
+}
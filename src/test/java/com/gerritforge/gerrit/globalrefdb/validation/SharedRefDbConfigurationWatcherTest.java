@@ -0,0 +1,63 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.gerrit.server.git.WorkQueue;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SharedRefDbConfigurationWatcherTest {
+
+  @Mock SharedRefDbConfiguration cfg;
+  @Mock WorkQueue workQueue;
+
+  @Test
+  public void shouldReloadOutdatedConfiguration() {
+    when(cfg.isOutdated()).thenReturn(true);
+
+    new SharedRefDbConfigurationWatcher(cfg, workQueue).reloadIfOutdated();
+
+    verify(cfg).reload();
+  }
+
+  @Test
+  public void shouldNotReloadUpToDateConfiguration() {
+    when(cfg.isOutdated()).thenReturn(false);
+
+    new SharedRefDbConfigurationWatcher(cfg, workQueue).reloadIfOutdated();
+
+    verify(cfg, never()).reload();
+  }
+
+  @Test
+  public void shouldNotWatchConfigurationWhenReloadIsDisabled() {
+    SharedRefDbConfiguration disabledReloadCfg =
+        new SharedRefDbConfiguration(new Config(), "testplugin");
+
+    new SharedRefDbConfigurationWatcher(disabledReloadCfg, workQueue).start();
+
+    verify(workQueue, never()).createQueue(anyInt(), anyString());
+  }
+}
@@ -16,9 +16,12 @@ package com.gerritforge.gerrit.globalrefdb.validation;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
 import com.google.common.collect.ImmutableSet;
 import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.gerrit.server.git.LocalDiskRepositoryManager;
@@ -28,10 +31,14 @@ import com.google.inject.Injector;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Names;
 import java.util.Collections;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
 
@@ -42,11 +49,21 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
 
   @Mock LocalDiskRepositoryManager localDiskRepositoryManagerMock;
 
-  @Mock SharedRefDbRepository.Factory sharedRefDbRepositoryFactoryMock;
+  @Mock SharedRefDbRefUpdate.Factory refUpdateFactoryMock;
+
+  @Mock SharedRefDbBatchRefUpdate.Factory batchRefUpdateFactoryMock;
+
+  @Mock ProjectsFilter projectsFilterMock;
+
+  @Mock SharedRefEnforcement refEnforcementMock;
+
+  @Mock SharedRefDbConfiguration sharedRefDbConfigurationMock;
 
   @Mock Repository repositoryMock;
 
-  @Mock SharedRefDbRepository sharedRefDbRepositoryMock;
+  @Mock RefDatabase refDatabaseMock;
+
+  @Mock RefUpdate refUpdateMock;
 
   SharedRefDbGitRepositoryManager msRepoMgr;
 
@@ -57,9 +74,13 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
 
   @Before
   public void setUp() throws Exception {
-    doReturn(sharedRefDbRepositoryMock)
-        .when(sharedRefDbRepositoryFactoryMock)
-        .create(A_TEST_PROJECT_NAME, repositoryMock, ImmutableSet.of());
+    doReturn(new SharedRefDbConfiguration(new Config(), "testplugin").getSharedRefDb())
+        .when(sharedRefDbConfigurationMock)
+        .getSharedRefDb();
+    doReturn(true).when(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+    doReturn(EnforcePolicy.REQUIRED).when(refEnforcementMock).getPolicy(A_TEST_PROJECT_NAME);
+    doReturn(true).when(repositoryMock).isBare();
+    doReturn(refDatabaseMock).when(repositoryMock).getRefDatabase();
     msRepoMgr = getInjector(ImmutableSet.of()).getInstance(SharedRefDbGitRepositoryManager.class);
   }
 
@@ -69,9 +90,9 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
         .when(localDiskRepositoryManagerMock)
         .openRepository(A_TEST_PROJECT_NAME_KEY);
 
-    msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY);
+    Repository repository = msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY);
 
-    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(ImmutableSet.of());
+    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(repository, ImmutableSet.of());
   }
 
   @Test
@@ -81,11 +102,12 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
         .when(localDiskRepositoryManagerMock)
         .openRepository(A_TEST_PROJECT_NAME_KEY);
 
-    getInjector(IGNORED_REFS)
-        .getInstance(SharedRefDbGitRepositoryManager.class)
-        .openRepository(A_TEST_PROJECT_NAME_KEY);
+    Repository repository =
+        getInjector(IGNORED_REFS)
+            .getInstance(SharedRefDbGitRepositoryManager.class)
+            .openRepository(A_TEST_PROJECT_NAME_KEY);
 
-    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(IGNORED_REFS);
+    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(repository, IGNORED_REFS);
   }
 
   @Test
@@ -94,9 +116,9 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
         .when(localDiskRepositoryManagerMock)
         .createRepository(A_TEST_PROJECT_NAME_KEY);
 
-    msRepoMgr.createRepository(A_TEST_PROJECT_NAME_KEY);
+    Repository repository = msRepoMgr.createRepository(A_TEST_PROJECT_NAME_KEY);
 
-    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(ImmutableSet.of());
+    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(repository, ImmutableSet.of());
   }
 
   @Test
@@ -106,11 +128,62 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
         .when(localDiskRepositoryManagerMock)
         .createRepository(A_TEST_PROJECT_NAME_KEY);
 
-    getInjector(IGNORED_REFS)
-        .getInstance(SharedRefDbGitRepositoryManager.class)
-        .createRepository(A_TEST_PROJECT_NAME_KEY);
+    Repository repository =
+        getInjector(IGNORED_REFS)
+            .getInstance(SharedRefDbGitRepositoryManager.class)
+            .createRepository(A_TEST_PROJECT_NAME_KEY);
+
+    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(repository, IGNORED_REFS);
+  }
+
+  @Test
+  public void openRepositoryShouldNotWrapRepositoriesOfNonGlobalProjects() throws Exception {
+    doReturn(false).when(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+    doReturn(repositoryMock)
+        .when(localDiskRepositoryManagerMock)
+        .openRepository(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY)).isSameInstanceAs(repositoryMock);
+  }
+
+  @Test
+  public void openRepositoryShouldNotWrapRepositoriesOfProjectsWithIgnoredPolicy()
+      throws Exception {
+    doReturn(EnforcePolicy.IGNORED).when(refEnforcementMock).getPolicy(A_TEST_PROJECT_NAME);
+    doReturn(repositoryMock)
+        .when(localDiskRepositoryManagerMock)
+        .openRepository(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY)).isSameInstanceAs(repositoryMock);
+  }
+
+  @Test
+  public void openRepositoryShouldReuseTheProjectContext() throws Exception {
+    doReturn(repositoryMock)
+        .when(localDiskRepositoryManagerMock)
+        .openRepository(A_TEST_PROJECT_NAME_KEY);
+
+    msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY);
+    msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY);
+
+    verify(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+  }
+
+  @Test
+  public void openRepositoryShouldResolveTheProjectContextAgainAfterReload() throws Exception {
+    ArgumentCaptor<Runnable> reloadListener = ArgumentCaptor.forClass(Runnable.class);
+    verify(sharedRefDbConfigurationMock).addReloadListener(reloadListener.capture());
+    doReturn(repositoryMock)
+        .when(localDiskRepositoryManagerMock)
+        .openRepository(A_TEST_PROJECT_NAME_KEY);
+
+    assertThat(msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY))
+        .isInstanceOf(SharedRefDbRepository.class);
+    doReturn(false).when(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+    reloadListener.getValue().run();
 
-    verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(IGNORED_REFS);
+    assertThat(msRepoMgr.openRepository(A_TEST_PROJECT_NAME_KEY)).isSameInstanceAs(repositoryMock);
+    verify(projectsFilterMock, times(2)).matches(A_TEST_PROJECT_NAME_KEY);
   }
 
   @Test
@@ -149,15 +222,29 @@ public class SharedRefDbGitRepositoryManagerTest implements RefFixture {
             bind(new TypeLiteral<ImmutableSet<String>>() {})
                 .annotatedWith(Names.named(SharedRefDbGitRepositoryManager.IGNORED_REFS))
                 .toInstance(ignoredRefs);
-            bind(SharedRefDbRepository.Factory.class).toInstance(sharedRefDbRepositoryFactoryMock);
+            bind(SharedRefDbRefUpdate.Factory.class).toInstance(refUpdateFactoryMock);
+            bind(SharedRefDbBatchRefUpdate.Factory.class).toInstance(batchRefUpdateFactoryMock);
+            bind(ProjectsFilter.class).toInstance(projectsFilterMock);
+            bind(SharedRefEnforcement.class).toInstance(refEnforcementMock);
+            bind(SharedRefDbConfiguration.class).toInstance(sharedRefDbConfigurationMock);
             bind(LocalDiskRepositoryManager.class).toInstance(localDiskRepositoryManagerMock);
           }
         });
   }
 
   private void verifyThatSharedRefDbRepositoryWrapperHasBeenCreated(
-      ImmutableSet<String> ignoredRefs) {
-    verify(sharedRefDbRepositoryFactoryMock)
-        .create(A_TEST_PROJECT_NAME, repositoryMock, ignoredRefs);
+      Repository repository, ImmutableSet<String> ignoredRefs) throws Exception {
+    assertThat(repository).isInstanceOf(SharedRefDbRepository.class);
+    String refName = A_TEST_REF_NAME;
+    doReturn(refName).when(refUpdateMock).getName();
+    doReturn(EnforcePolicy.REQUIRED)
+        .when(refEnforcementMock)
+        .getPolicy(A_TEST_PROJECT_NAME, refName);
+    doReturn(refUpdateMock).when(repositoryMock).updateRef(refName);
+
+    repository.updateRef(refName);
+
+    verify(refUpdateFactoryMock)
+        .create(A_TEST_PROJECT_NAME, refUpdateMock, refDatabaseMock, ignoredRefs);
   }
 }
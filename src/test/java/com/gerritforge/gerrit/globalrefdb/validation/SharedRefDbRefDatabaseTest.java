@@ -14,13 +14,19 @@
 
 package com.gerritforge.gerrit.globalrefdb.validation;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 
 import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.SharedRefEnforcement.EnforcePolicy;
 import com.google.common.collect.ImmutableSet;
+import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.RefUpdate;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
@@ -40,26 +46,106 @@ public class SharedRefDbRefDatabaseTest implements RefFixture {
 
   @Mock RefUpdate refUpdateMock;
 
+  @Mock BatchRefUpdate batchRefUpdateMock;
+
+  @Mock ProjectsFilter projectsFilterMock;
+
+  @Mock SharedRefEnforcement refEnforcementMock;
+
   @Override
   public String testBranch() {
     return "branch_" + nameRule.getMethodName();
   }
 
+  @Before
+  public void setup() {
+    doReturn(true).when(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+    doReturn(EnforcePolicy.REQUIRED).when(refEnforcementMock).getPolicy(A_TEST_PROJECT_NAME);
+  }
+
   @Test
   public void newUpdateShouldCreateSharedRefDbRefUpdate() throws Exception {
     String refName = aBranchRef();
-    SharedRefDbRefDatabase sharedRefDbRefDb =
-        new SharedRefDbRefDatabase(
-            refUpdateFactoryMock,
-            refBatchUpdateFactoryMock,
-            A_TEST_PROJECT_NAME,
-            refDatabaseMock,
-            ImmutableSet.of());
+    doReturn(refName).when(refUpdateMock).getName();
+    doReturn(EnforcePolicy.REQUIRED)
+        .when(refEnforcementMock)
+        .getPolicy(A_TEST_PROJECT_NAME, refName);
     doReturn(refUpdateMock).when(refDatabaseMock).newUpdate(refName, false);
 
-    sharedRefDbRefDb.newUpdate(refName, false);
+    newSharedRefDbRefDatabase(ImmutableSet.of()).newUpdate(refName, false);
 
     verify(refUpdateFactoryMock)
         .create(A_TEST_PROJECT_NAME, refUpdateMock, refDatabaseMock, ImmutableSet.of());
   }
+
+  @Test
+  public void newUpdateShouldNotWrapIgnoredRefs() throws Exception {
+    String refName = aBranchRef();
+    doReturn(refName).when(refUpdateMock).getName();
+    doReturn(refUpdateMock).when(refDatabaseMock).newUpdate(refName, false);
+
+    RefUpdate refUpdate =
+        newSharedRefDbRefDatabase(ImmutableSet.of(refName)).newUpdate(refName, false);
+
+    assertThat(refUpdate).isSameInstanceAs(refUpdateMock);
+    verifyNoInteractions(refUpdateFactoryMock);
+  }
+
+  @Test
+  public void newUpdateShouldNotWrapRefsWithIgnoredPolicy() throws Exception {
+    String refName = "refs/changes/01/1/1";
+    doReturn(refName).when(refUpdateMock).getName();
+    doReturn(EnforcePolicy.IGNORED)
+        .when(refEnforcementMock)
+        .getPolicy(A_TEST_PROJECT_NAME, refName);
+    doReturn(refUpdateMock).when(refDatabaseMock).newUpdate(refName, false);
+
+    RefUpdate refUpdate = newSharedRefDbRefDatabase(ImmutableSet.of()).newUpdate(refName, false);
+
+    assertThat(refUpdate).isSameInstanceAs(refUpdateMock);
+    verifyNoInteractions(refUpdateFactoryMock);
+  }
+
+  @Test
+  public void newUpdateShouldNotWrapUpdatesOfNonGlobalProjects() throws Exception {
+    String refName = aBranchRef();
+    doReturn(refName).when(refUpdateMock).getName();
+    doReturn(false).when(projectsFilterMock).matches(A_TEST_PROJECT_NAME_KEY);
+    doReturn(refUpdateMock).when(refDatabaseMock).newUpdate(refName, false);
+
+    RefUpdate refUpdate = newSharedRefDbRefDatabase(ImmutableSet.of()).newUpdate(refName, false);
+
+    assertThat(refUpdate).isSameInstanceAs(refUpdateMock);
+    verifyNoInteractions(refUpdateFactoryMock);
+  }
+
+  @Test
+  public void newBatchUpdateShouldCreateSharedRefDbBatchRefUpdate() {
+    newSharedRefDbRefDatabase(ImmutableSet.of()).newBatchUpdate();
+
+    verify(refBatchUpdateFactoryMock)
+        .create(A_TEST_PROJECT_NAME, refDatabaseMock, ImmutableSet.of());
+  }
+
+  @Test
+  public void newBatchUpdateShouldNotWrapUpdatesOfProjectsWithIgnoredPolicy() {
+    doReturn(EnforcePolicy.IGNORED).when(refEnforcementMock).getPolicy(A_TEST_PROJECT_NAME);
+    doReturn(batchRefUpdateMock).when(refDatabaseMock).newBatchUpdate();
+
+    BatchRefUpdate batchRefUpdate = newSharedRefDbRefDatabase(ImmutableSet.of()).newBatchUpdate();
+
+    assertThat(batchRefUpdate).isSameInstanceAs(batchRefUpdateMock);
+    verifyNoInteractions(refBatchUpdateFactoryMock);
+  }
+
+  private SharedRefDbRefDatabase newSharedRefDbRefDatabase(ImmutableSet<String> ignoredRefs) {
+    return new SharedRefDbRefDatabase(
+        refUpdateFactoryMock,
+        refBatchUpdateFactoryMock,
+        projectsFilterMock,
+        refEnforcementMock,
+        A_TEST_PROJECT_NAME,
+        refDatabaseMock,
+        ignoredRefs);
+  }
 }
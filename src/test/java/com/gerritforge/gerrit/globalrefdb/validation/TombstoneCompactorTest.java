@@ -0,0 +1,163 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.gerritforge.gerrit.globalrefdb.GlobalRefDbLockException;
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import com.google.gerrit.entities.BranchNameKey;
+import com.google.gerrit.server.git.WorkQueue;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TombstoneCompactorTest implements RefFixture {
+  private static final long AFTER_GRACE_PERIOD_MS = TimeUnit.MINUTES.toMillis(2);
+
+  @Mock SharedRefDatabaseWrapper sharedRefDatabase;
+  @Mock SharedRefDBMetrics metrics;
+  @Mock WorkQueue workQueue;
+  @Mock AutoCloseable lock;
+
+  private Tombstones tombstones;
+  private TombstoneCompactor compactor;
+
+  @Before
+  public void setUp() {
+    Config config = new Config();
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.TOMBSTONE_GRACE_PERIOD_KEY, "1 min");
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(config, "testplugin");
+    tombstones = new Tombstones(cfg, metrics);
+    compactor = new TombstoneCompactor(sharedRefDatabase, tombstones, metrics, cfg, workQueue);
+  }
+
+  @Test
+  public void shouldPurgeExpiredTombstoneUnderLock() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.compareAndRemove(eq(A_TEST_PROJECT_NAME_KEY), any())).thenReturn(true);
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    compactor.compact(System.currentTimeMillis() + AFTER_GRACE_PERIOD_MS);
+
+    verify(sharedRefDatabase)
+        .compareAndRemove(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(
+                ref ->
+                    ref.getName().equals(A_TEST_REF_NAME)
+                        && ref.getObjectId().equals(ObjectId.zeroId())));
+    verify(lock).close();
+    verify(metrics).incrementPurgedTombstones();
+  }
+
+  @Test
+  public void shouldNotPurgeTombstoneBeforeGracePeriod() throws Exception {
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    compactor.compact(System.currentTimeMillis());
+
+    verify(sharedRefDatabase, never()).lockRef(any(), any());
+    verify(sharedRefDatabase, never()).compareAndRemove(any(), any());
+  }
+
+  @Test
+  public void shouldRetainRecreatedRef() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.compareAndRemove(eq(A_TEST_PROJECT_NAME_KEY), any())).thenReturn(false);
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    compactor.compact(System.currentTimeMillis() + AFTER_GRACE_PERIOD_MS);
+
+    verify(metrics).incrementRetainedTombstones();
+    verify(metrics, never()).incrementPurgedTombstones();
+  }
+
+  @Test
+  public void shouldRetainTombstoneWhenLockFails() throws Exception {
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME))
+        .thenThrow(new GlobalRefDbLockException(A_TEST_PROJECT_NAME, A_TEST_REF_NAME, null));
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    compactor.compact(System.currentTimeMillis() + AFTER_GRACE_PERIOD_MS);
+
+    verify(sharedRefDatabase, never()).compareAndRemove(any(), any());
+    verify(metrics).incrementRetainedTombstones();
+  }
+
+  @Test
+  public void shouldPurgeTombstonesListedByTheGlobalRefDb() throws Exception {
+    long nowMillis = System.currentTimeMillis() + AFTER_GRACE_PERIOD_MS;
+    long deletedBeforeMillis = nowMillis - TimeUnit.MINUTES.toMillis(1);
+    when(sharedRefDatabase.listTombstones(deletedBeforeMillis, TombstoneCompactor.LIST_BATCH_SIZE))
+        .thenReturn(List.of(BranchNameKey.create(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)));
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.compareAndRemove(eq(A_TEST_PROJECT_NAME_KEY), any())).thenReturn(true);
+
+    compactor.compact(nowMillis);
+
+    verify(sharedRefDatabase)
+        .compareAndRemove(
+            eq(A_TEST_PROJECT_NAME_KEY),
+            argThat(
+                ref ->
+                    ref.getName().equals(A_TEST_REF_NAME)
+                        && ref.getObjectId().equals(ObjectId.zeroId())));
+    verify(lock).close();
+    verify(metrics).incrementPurgedTombstones();
+  }
+
+  @Test
+  public void shouldStopListingWhenNoListedTombstoneIsPurged() throws Exception {
+    List<BranchNameKey> fullBatch =
+        Collections.nCopies(
+            TombstoneCompactor.LIST_BATCH_SIZE,
+            BranchNameKey.create(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME));
+    when(sharedRefDatabase.listTombstones(anyLong(), anyInt())).thenReturn(fullBatch);
+    when(sharedRefDatabase.lockRef(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME)).thenReturn(lock);
+    when(sharedRefDatabase.compareAndRemove(eq(A_TEST_PROJECT_NAME_KEY), any())).thenReturn(false);
+
+    compactor.compact(System.currentTimeMillis() + AFTER_GRACE_PERIOD_MS);
+
+    verify(sharedRefDatabase, times(1)).listTombstones(anyLong(), anyInt());
+    verify(metrics, never()).incrementPurgedTombstones();
+  }
+
+  @Test
+  public void shouldNotScheduleCompactionWhenDisabled() {
+    SharedRefDbConfiguration cfg = new SharedRefDbConfiguration(new Config(), "testplugin");
+    new TombstoneCompactor(sharedRefDatabase, tombstones, metrics, cfg, workQueue).start();
+
+    verify(workQueue, never()).createQueue(anyInt(), any());
+  }
+}
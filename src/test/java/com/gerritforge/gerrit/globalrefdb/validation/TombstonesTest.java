@@ -0,0 +1,87 @@
+// Copyright (C) 2020 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.gerritforge.gerrit.globalrefdb.validation;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.gerritforge.gerrit.globalrefdb.validation.SharedRefDbConfiguration.SharedRefDatabase;
+import com.gerritforge.gerrit.globalrefdb.validation.dfsrefdb.RefFixture;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jgit.lib.Config;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TombstonesTest implements RefFixture {
+  private static final long GRACE_PERIOD_MS = TimeUnit.MINUTES.toMillis(1);
+
+  @Mock SharedRefDBMetrics metrics;
+
+  @Test
+  public void shouldNotTrackTombstonesWhenCompactionIsDisabled() {
+    Tombstones tombstones = newTombstones(new Config());
+
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    assertThat(tombstones.pollExpired(Long.MAX_VALUE)).isEmpty();
+    verify(metrics, never()).incrementPendingTombstones();
+  }
+
+  @Test
+  public void shouldReturnOnlyExpiredTombstones() {
+    Tombstones tombstones = newTombstones(compactionConfig(10));
+    long now = System.currentTimeMillis();
+
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+
+    assertThat(tombstones.pollExpired(now)).isEmpty();
+    List<Tombstones.Tombstone> expired = tombstones.pollExpired(now + 2 * GRACE_PERIOD_MS);
+    assertThat(expired).hasSize(1);
+    assertThat(expired.get(0).project).isEqualTo(A_TEST_PROJECT_NAME_KEY);
+    assertThat(expired.get(0).refName).isEqualTo(A_TEST_REF_NAME);
+    assertThat(tombstones.pollExpired(Long.MAX_VALUE)).isEmpty();
+    verify(metrics).decrementPendingTombstones();
+  }
+
+  @Test
+  public void shouldNotTrackMoreThanMaxPendingTombstones() {
+    Tombstones tombstones = newTombstones(compactionConfig(1));
+
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME);
+    tombstones.add(A_TEST_PROJECT_NAME_KEY, A_TEST_REF_NAME + "-2");
+
+    assertThat(tombstones.pollExpired(Long.MAX_VALUE)).hasSize(1);
+    verify(metrics, times(1)).incrementPendingTombstones();
+  }
+
+  private Config compactionConfig(int maxPending) {
+    Config config = new Config();
+    config.setString(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.TOMBSTONE_GRACE_PERIOD_KEY, "1 min");
+    config.setInt(
+        SharedRefDatabase.SECTION, null, SharedRefDatabase.TOMBSTONE_MAX_PENDING_KEY, maxPending);
+    return config;
+  }
+
+  private Tombstones newTombstones(Config config) {
+    return new Tombstones(new SharedRefDbConfiguration(config, "testplugin"), metrics);
+  }
+}